@@ -0,0 +1,174 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+/**
+ * An aggregate function over the records of a group, for GROUP BY queries.
+ * Aggregates are built with the static factory methods and passed to Table.aggregate().
+ * Blank fields are skipped, like SQL skips nulls. SUM, MIN, MAX and AVG take columns of
+ * a primitive type, whose values are added up and compared in their primitive form.
+ * The state of an aggregate in a group is two longs: the number of values, and the
+ * sum, minimum or maximum, which holds the bits of a double for DOUBLE columns.
+ */
+public final class Aggregate {
+    enum Function {
+        COUNT, SUM, MIN, MAX, AVG
+    }
+
+    private final Function function;
+    // -1 for COUNT(*)
+    private final int colIndex;
+    // The column's type. Null until the aggregate is bound to a table
+    private final DataType type;
+
+    private Aggregate(Function function, int colIndex, DataType type) {
+        this.function = function;
+        this.colIndex = colIndex;
+        this.type = type;
+    }
+
+    /**
+     * COUNT(*): the number of records.
+     */
+    public static Aggregate count() {
+        return new Aggregate(Function.COUNT, -1, null);
+    }
+
+    /**
+     * The number of non blank values of a column.
+     */
+    public static Aggregate count(int colIndex) {
+        return new Aggregate(Function.COUNT, colIndex, null);
+    }
+
+    public static Aggregate sum(int colIndex) {
+        return new Aggregate(Function.SUM, colIndex, null);
+    }
+
+    public static Aggregate min(int colIndex) {
+        return new Aggregate(Function.MIN, colIndex, null);
+    }
+
+    public static Aggregate max(int colIndex) {
+        return new Aggregate(Function.MAX, colIndex, null);
+    }
+
+    public static Aggregate avg(int colIndex) {
+        return new Aggregate(Function.AVG, colIndex, null);
+    }
+
+    /**
+     * Binds the aggregate to the columns of a table.
+     * Throws an IndexOutOfBoundsException if the aggregate refers to a column outside
+     * the table, and an IllegalArgumentException if it needs a primitive type.
+     * @return The aggregate to compute on the table.
+     */
+    Aggregate bind(Column[] columns) {
+        if (colIndex == -1) {
+            return this;
+        }
+        if (colIndex < 0 || colIndex >= columns.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        DataType type = columns[colIndex].getType();
+        if (function != Function.COUNT && !type.isPrimitive()) {
+            throw new IllegalArgumentException("Column is not a numeric type.");
+        }
+
+        return new Aggregate(function, colIndex, type);
+    }
+
+    /**
+     * Adds a record's value to the state of the aggregate in its group.
+     * @param slot The index of the state in counts and values.
+     */
+    void add(long[] counts, long[] values, int slot, String[] record) {
+        if (colIndex == -1) {
+            counts[slot]++;
+            return;
+        }
+
+        String value = record[colIndex];
+        if (DataType.isBlank(value)) {
+            return;
+        }
+        if (function == Function.COUNT) {
+            counts[slot]++;
+            return;
+        }
+
+        combine(counts, values, slot, 1, type.encode(value));
+    }
+
+    /**
+     * Combines the state of the aggregate in another partial aggregation of the group.
+     */
+    void combine(long[] counts, long[] values, int slot, long count, long value) {
+        if (count == 0) {
+            return;
+        }
+        if (counts[slot] == 0 || function == Function.COUNT) {
+            counts[slot] += count;
+            values[slot] = value;
+            return;
+        }
+
+        long current = values[slot];
+        switch (function) {
+            case SUM:
+            case AVG:
+                if (type == DataType.DOUBLE) {
+                    values[slot] = Double.doubleToRawLongBits(Double.longBitsToDouble(current) +
+                            Double.longBitsToDouble(value));
+                } else {
+                    values[slot] = current + value;
+                }
+                break;
+            case MIN:
+                if (type.compareEncoded(value, current) < 0) {
+                    values[slot] = value;
+                }
+                break;
+            case MAX:
+                if (type.compareEncoded(value, current) > 0) {
+                    values[slot] = value;
+                }
+                break;
+            default:
+                break;
+        }
+        counts[slot] += count;
+    }
+
+    /**
+     * @return The value of the aggregate, from its state. Null, except for COUNT, if the
+     * group has no values.
+     */
+    String result(long count, long value) {
+        if (function == Function.COUNT) {
+            return Long.toString(count);
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        switch (function) {
+            case SUM:
+                return type == DataType.DOUBLE ? Double.toString(Double.longBitsToDouble(value)) : Long.toString(value);
+            case AVG:
+                return Double.toString(type.toDouble(value) / count);
+            default:
+                return type.decode(value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return function + "(" + (colIndex == -1 ? "*" : Integer.toString(colIndex)) + ")";
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An in-memory B+ tree record store.
+ * Records are held in the leaves, which are linked together so that
+ * range scans and ordered iteration only walk the leaves they need.
+ * Iterators are fail-fast: inserting or deleting keys while iterating
+ * throws a ConcurrentModificationException. Replacing the record of an
+ * existing key does not.
+ */
+public class BTreeRecordStore implements OrderedRecordStore {
+    private static final int DEFAULT_ORDER = 64;
+
+    // Maximum and minimum number of keys in a node, except the root
+    private final int maxKeys;
+    private final int minKeys;
+    private final Comparator<String> comparator;
+    private Node root;
+    private int size;
+    // Counts structural modifications, for fail-fast iterators
+    private int modCount;
+
+    BTreeRecordStore() {
+        this(DEFAULT_ORDER, DataType.STRING);
+    }
+
+    /**
+     * @param comparator The order of the keys, e.g. the data type of the PK column.
+     */
+    BTreeRecordStore(Comparator<String> comparator) {
+        this(DEFAULT_ORDER, comparator);
+    }
+
+    /**
+     * @param order The maximum number of keys in a node.
+     * @param comparator The order of the keys.
+     */
+    BTreeRecordStore(int order, Comparator<String> comparator) {
+        if (order < 3) {
+            throw new IllegalArgumentException("B+ tree order must be at least 3.");
+        }
+
+        this.maxKeys = order;
+        this.minKeys = order / 2;
+        this.comparator = comparator;
+        root = new Leaf();
+    }
+
+    @Override
+    public Record get(String key) {
+        Leaf leaf = findLeaf(key);
+        int i = leaf.search(key);
+
+        return i >= 0 ? leaf.values[i] : null;
+    }
+
+    @Override
+    public void put(String key, Record r) {
+        Split split = root.insert(key, r);
+        if (split != null) {
+            Inner newRoot = new Inner();
+            newRoot.keys[0] = split.key;
+            newRoot.children[0] = root;
+            newRoot.children[1] = split.right;
+            newRoot.n = 1;
+            root = newRoot;
+        }
+    }
+
+    @Override
+    public Record remove(String key) {
+        Record r = root.remove(key);
+
+        // Shrink the tree when the root has a single child
+        if (root instanceof Inner && root.n == 0) {
+            root = ((Inner) root).children[0];
+        }
+
+        return r;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        Leaf leaf = findLeaf(key);
+        return leaf.search(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        root = new Leaf();
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Stream<Map.Entry<String, Record>> entries() {
+        return range(null, null);
+    }
+
+    @Override
+    public Stream<Map.Entry<String, Record>> range(String from, String to) {
+        Iterator<Map.Entry<String, Record>> it = new LeafIterator(from, to);
+        Spliterator<Map.Entry<String, Record>> spliterator = Spliterators.spliteratorUnknownSize(it,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Record>> cursor(String from) {
+        return new LeafIterator(from, null);
+    }
+
+    @Override
+    public Comparator<String> comparator() {
+        return comparator;
+    }
+
+    /**
+     * @return The number of levels in the tree.
+     */
+    public int height() {
+        int height = 1;
+        Node node = root;
+        while (node instanceof Inner) {
+            node = ((Inner) node).children[0];
+            height++;
+        }
+
+        return height;
+    }
+
+    // Helper Functions
+
+    /**
+     * @param key The key to look for. Null for the leftmost leaf.
+     * @return The leaf that holds or would hold the key.
+     */
+    private Leaf findLeaf(String key) {
+        Node node = root;
+        while (node instanceof Inner) {
+            Inner inner = (Inner) node;
+            node = inner.children[key == null ? 0 : inner.childIndex(key)];
+        }
+
+        return (Leaf) node;
+    }
+
+    // Tree nodes
+
+    /**
+     * The result of splitting a node. The separator key is moved to the parent.
+     */
+    private static class Split {
+        final String key;
+        final Node right;
+
+        Split(String key, Node right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+
+    private abstract class Node {
+        String[] keys = new String[maxKeys + 1];
+        int n;
+
+        /**
+         * Binary search on the node's keys.
+         * @return The index of the key, or (-(insertion point) - 1) if not found.
+         */
+        int search(String key) {
+            int lo = 0;
+            int hi = n - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = comparator.compare(keys[mid], key);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -(lo + 1);
+        }
+
+        abstract Split insert(String key, Record r);
+
+        abstract Record remove(String key);
+    }
+
+    private class Leaf extends Node {
+        Record[] values = new Record[maxKeys + 1];
+        Leaf next;
+
+        @Override
+        Split insert(String key, Record r) {
+            int i = search(key);
+            if (i >= 0) {
+                values[i] = r;
+                return null;
+            }
+
+            i = -(i + 1);
+            System.arraycopy(keys, i, keys, i + 1, n - i);
+            System.arraycopy(values, i, values, i + 1, n - i);
+            keys[i] = key;
+            values[i] = r;
+            n++;
+            size++;
+            modCount++;
+
+            if (n <= maxKeys) {
+                return null;
+            }
+
+            // Move the upper half to a new leaf
+            Leaf right = new Leaf();
+            int mid = n / 2;
+            right.n = n - mid;
+            System.arraycopy(keys, mid, right.keys, 0, right.n);
+            System.arraycopy(values, mid, right.values, 0, right.n);
+            Arrays.fill(keys, mid, n, null);
+            Arrays.fill(values, mid, n, null);
+            n = mid;
+
+            right.next = next;
+            next = right;
+
+            return new Split(right.keys[0], right);
+        }
+
+        @Override
+        Record remove(String key) {
+            int i = search(key);
+            if (i < 0) {
+                return null;
+            }
+
+            Record r = values[i];
+            System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+            System.arraycopy(values, i + 1, values, i, n - i - 1);
+            n--;
+            keys[n] = null;
+            values[n] = null;
+            size--;
+            modCount++;
+
+            return r;
+        }
+    }
+
+    private class Inner extends Node {
+        Node[] children = new Node[maxKeys + 2];
+
+        /**
+         * @return The index of the child that holds the key.
+         */
+        int childIndex(String key) {
+            int i = search(key);
+            // Keys equal to a separator are in the right subtree
+            return i >= 0 ? i + 1 : -(i + 1);
+        }
+
+        @Override
+        Split insert(String key, Record r) {
+            int i = childIndex(key);
+            Split split = children[i].insert(key, r);
+            if (split == null) {
+                return null;
+            }
+
+            System.arraycopy(keys, i, keys, i + 1, n - i);
+            System.arraycopy(children, i + 1, children, i + 2, n - i);
+            keys[i] = split.key;
+            children[i + 1] = split.right;
+            n++;
+
+            if (n <= maxKeys) {
+                return null;
+            }
+
+            // The middle key moves up, the upper half moves to a new node
+            Inner right = new Inner();
+            int mid = n / 2;
+            String separator = keys[mid];
+            right.n = n - mid - 1;
+            System.arraycopy(keys, mid + 1, right.keys, 0, right.n);
+            System.arraycopy(children, mid + 1, right.children, 0, right.n + 1);
+            Arrays.fill(keys, mid, n, null);
+            Arrays.fill(children, mid + 1, n + 1, null);
+            n = mid;
+
+            return new Split(separator, right);
+        }
+
+        @Override
+        Record remove(String key) {
+            int i = childIndex(key);
+            Node child = children[i];
+            Record r = child.remove(key);
+
+            if (r != null && child.n < minKeys) {
+                rebalance(i);
+            }
+
+            return r;
+        }
+
+        /**
+         * Restores the minimum number of keys in a child by borrowing
+         * from a sibling, or merging with it.
+         */
+        private void rebalance(int i) {
+            Node left = i > 0 ? children[i - 1] : null;
+            Node right = i < n ? children[i + 1] : null;
+
+            if (left != null && left.n > minKeys) {
+                borrowFromLeft(i);
+            } else if (right != null && right.n > minKeys) {
+                borrowFromRight(i);
+            } else if (left != null) {
+                merge(i - 1);
+            } else if (right != null) {
+                merge(i);
+            }
+        }
+
+        private void borrowFromLeft(int i) {
+            Node child = children[i];
+            Node left = children[i - 1];
+
+            System.arraycopy(child.keys, 0, child.keys, 1, child.n);
+            if (child instanceof Leaf) {
+                Leaf leaf = (Leaf) child;
+                Leaf leftLeaf = (Leaf) left;
+                System.arraycopy(leaf.values, 0, leaf.values, 1, leaf.n);
+                leaf.keys[0] = leftLeaf.keys[left.n - 1];
+                leaf.values[0] = leftLeaf.values[left.n - 1];
+                leftLeaf.values[left.n - 1] = null;
+                keys[i - 1] = leaf.keys[0];
+            } else {
+                Inner inner = (Inner) child;
+                Inner leftInner = (Inner) left;
+                System.arraycopy(inner.children, 0, inner.children, 1, inner.n + 1);
+                inner.keys[0] = keys[i - 1];
+                inner.children[0] = leftInner.children[left.n];
+                leftInner.children[left.n] = null;
+                keys[i - 1] = left.keys[left.n - 1];
+            }
+            left.keys[left.n - 1] = null;
+            left.n--;
+            child.n++;
+        }
+
+        private void borrowFromRight(int i) {
+            Node child = children[i];
+            Node right = children[i + 1];
+
+            if (child instanceof Leaf) {
+                Leaf leaf = (Leaf) child;
+                Leaf rightLeaf = (Leaf) right;
+                leaf.keys[leaf.n] = rightLeaf.keys[0];
+                leaf.values[leaf.n] = rightLeaf.values[0];
+                System.arraycopy(rightLeaf.values, 1, rightLeaf.values, 0, right.n - 1);
+                rightLeaf.values[right.n - 1] = null;
+                System.arraycopy(right.keys, 1, right.keys, 0, right.n - 1);
+                keys[i] = right.keys[0];
+            } else {
+                Inner inner = (Inner) child;
+                Inner rightInner = (Inner) right;
+                inner.keys[inner.n] = keys[i];
+                inner.children[inner.n + 1] = rightInner.children[0];
+                keys[i] = right.keys[0];
+                System.arraycopy(right.keys, 1, right.keys, 0, right.n - 1);
+                System.arraycopy(rightInner.children, 1, rightInner.children, 0, right.n);
+                rightInner.children[right.n] = null;
+            }
+            right.keys[right.n - 1] = null;
+            right.n--;
+            child.n++;
+        }
+
+        /**
+         * Merges child i+1 into child i and removes their separator.
+         */
+        private void merge(int i) {
+            Node left = children[i];
+            Node right = children[i + 1];
+
+            if (left instanceof Leaf) {
+                Leaf leftLeaf = (Leaf) left;
+                Leaf rightLeaf = (Leaf) right;
+                System.arraycopy(right.keys, 0, left.keys, left.n, right.n);
+                System.arraycopy(rightLeaf.values, 0, leftLeaf.values, left.n, right.n);
+                left.n += right.n;
+                leftLeaf.next = rightLeaf.next;
+            } else {
+                Inner leftInner = (Inner) left;
+                Inner rightInner = (Inner) right;
+                left.keys[left.n] = keys[i];
+                System.arraycopy(right.keys, 0, left.keys, left.n + 1, right.n);
+                System.arraycopy(rightInner.children, 0, leftInner.children, left.n + 1, right.n + 1);
+                left.n += right.n + 1;
+            }
+
+            // Remove the separator and the right child
+            System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+            System.arraycopy(children, i + 2, children, i + 1, n - i - 1);
+            n--;
+            keys[n] = null;
+            children[n + 1] = null;
+        }
+    }
+
+    /**
+     * Walks the linked leaves from a start key to an end key.
+     */
+    private class LeafIterator implements Iterator<Map.Entry<String, Record>> {
+        private final String to;
+        private final int expectedModCount;
+        private Leaf leaf;
+        private int index;
+
+        LeafIterator(String from, String to) {
+            this.to = to;
+            expectedModCount = modCount;
+            leaf = findLeaf(from);
+            if (from != null) {
+                int i = leaf.search(from);
+                index = i >= 0 ? i : -(i + 1);
+            }
+            skipExhaustedLeaves();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            return leaf != null && (to == null || comparator.compare(leaf.keys[index], to) <= 0);
+        }
+
+        @Override
+        public Map.Entry<String, Record> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Map.Entry<String, Record> entry = new AbstractMap.SimpleImmutableEntry<>(leaf.keys[index], leaf.values[index]);
+            index++;
+            skipExhaustedLeaves();
+
+            return entry;
+        }
+
+        private void skipExhaustedLeaves() {
+            while (leaf != null && index >= leaf.n) {
+                leaf = leaf.next;
+                index = 0;
+            }
+        }
+    }
+
+    // Unit Testing
+
+    private static void test_against_sorted_map() {
+        // Small order to exercise splits and merges
+        BTreeRecordStore tree = new BTreeRecordStore(4, Comparator.naturalOrder());
+        TreeMap<String, Record> expected = new TreeMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 5000; i++) {
+            String key = String.format("%05d", random.nextInt(2000));
+            if (random.nextInt(3) == 0) {
+                assert(tree.remove(key) == expected.remove(key));
+            } else {
+                Record r = new Record(key);
+                tree.put(key, r);
+                expected.put(key, r);
+            }
+            assert(tree.size() == expected.size());
+        }
+
+        // Ordered iteration
+        Iterator<Map.Entry<String, Record>> it = tree.cursor(null);
+        for (Map.Entry<String, Record> e : expected.entrySet()) {
+            Map.Entry<String, Record> actual = it.next();
+            assert(actual.getKey().equals(e.getKey()) && actual.getValue() == e.getValue());
+        }
+        assert(!it.hasNext());
+
+        // Point lookups
+        for (int i = 0; i < 2000; i++) {
+            String key = String.format("%05d", i);
+            assert(tree.get(key) == expected.get(key));
+            assert(tree.containsKey(key) == expected.containsKey(key));
+        }
+
+        // Range scans, including bounds that are not in the tree
+        Object[] range = tree.range("00500", "01000").map(Map.Entry::getKey).toArray();
+        assert(Arrays.equals(range, expected.subMap("00500", true, "01000", true).keySet().toArray()));
+        assert(tree.range("99999", null).count() == 0);
+        assert(tree.range(null, "00010").count() == expected.headMap("00010", true).size());
+
+        // Remove everything
+        for (String key : new ArrayList<>(expected.keySet())) {
+            assert(tree.remove(key) != null);
+        }
+        assert(tree.size() == 0 && tree.height() == 1);
+        assert(tree.entries().count() == 0);
+    }
+
+    private static void test_cursor() {
+        BTreeRecordStore tree = new BTreeRecordStore();
+        for (int i = 0; i < 1000; i++) {
+            String key = String.format("%04d", i);
+            tree.put(key, new Record(key));
+        }
+
+        // Page through the tree, 100 keys at a time
+        String from = null;
+        int pages = 0;
+        while (true) {
+            Iterator<Map.Entry<String, Record>> cursor = tree.cursor(from);
+            String last = null;
+            int n = 0;
+            while (n < 100 && cursor.hasNext()) {
+                last = cursor.next().getKey();
+                n++;
+            }
+            if (!cursor.hasNext()) {
+                break;
+            }
+            from = cursor.next().getKey();
+            pages++;
+            assert(last.equals(String.format("%04d", pages * 100 - 1)));
+        }
+        assert(pages == 9);
+
+        // Fail-fast on structural modification
+        Iterator<Map.Entry<String, Record>> cursor = tree.cursor(null);
+        tree.put("0000", new Record("0000"));
+        cursor.next();
+        tree.put("x", new Record("x"));
+        boolean failed = false;
+        try {
+            cursor.next();
+        } catch (ConcurrentModificationException e) {
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    public static void main(String[] args) {
+        test_against_sorted_map();
+        test_cursor();
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * A fixed number of page frames over a page file, so that the data can be far larger
+ * than memory. A page is pinned while it's used, and unpinned when done; a pinned page
+ * stays in its frame. When a page that isn't in memory is pinned, an unpinned page is
+ * evicted with the CLOCK policy: a hand sweeps the frames, clearing the reference bit
+ * of each page, and evicts the first page whose bit is already clear. So a page used
+ * since the hand last passed gets a second chance.
+ * Changed ("dirty") pages are written back through the StorageEngine when they are
+ * evicted, or when the pool is flushed.
+ * The frames are held in one direct buffer, outside the Java heap.
+ * Pinning and unpinning are synchronized, so that parallel readers can share a pool: a
+ * pinned page stays in its frame, and its contents can be read by the thread that pinned
+ * it. Writing a page's contents is left to its single writer. A thread that needs a frame
+ * while every frame is pinned waits for another thread to unpin one, or fails if it holds
+ * all the pins itself.
+ */
+class BufferPool {
+    static final int PAGE_SIZE = 8192;
+    private static final int NO_PAGE = -1;
+
+    private final StorageEngine engine;
+    private final FileChannel channel;
+    private final ByteBuffer memory;
+    private final ByteBuffer[] frames;
+    // The page in each frame, its pin count, reference bit and dirty bit
+    private final int[] pages;
+    private final int[] pins;
+    private final boolean[] referenced;
+    private final boolean[] dirty;
+    // Page -> frame
+    private final Map<Integer, Integer> frameOf;
+    private int hand;
+    // The number of pins, and the number held by the current thread
+    private int pinned;
+    private final ThreadLocal<int[]> held;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    /**
+     * @param channel The page file, open for reading and writing.
+     * @param frames The number of pages held in memory.
+     */
+    BufferPool(StorageEngine engine, FileChannel channel, int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException("A buffer pool needs at least one frame.");
+        }
+
+        this.engine = engine;
+        this.channel = channel;
+        memory = ByteBuffer.allocateDirect(frames * PAGE_SIZE);
+        this.frames = new ByteBuffer[frames];
+        for (int i = 0; i < frames; i++) {
+            ByteBuffer frame = memory.duplicate();
+            frame.position(i * PAGE_SIZE);
+            frame.limit((i + 1) * PAGE_SIZE);
+            this.frames[i] = frame.slice();
+        }
+        pages = new int[frames];
+        Arrays.fill(pages, NO_PAGE);
+        pins = new int[frames];
+        referenced = new boolean[frames];
+        dirty = new boolean[frames];
+        frameOf = new HashMap<>(frames * 2);
+        held = ThreadLocal.withInitial(() -> new int[1]);
+    }
+
+    /**
+     * Pins a page, reading it from the file if it isn't in memory.
+     * A page past the end of the file reads as zeros.
+     * @return The page's frame. Use absolute gets and puts, and do not keep it after unpin().
+     */
+    synchronized ByteBuffer pin(int page) {
+        return pin(page, true);
+    }
+
+    /**
+     * Pins a page that's new, or whose contents are about to be replaced, without reading it.
+     * @return The page's frame, zero filled.
+     */
+    synchronized ByteBuffer pinNew(int page) {
+        ByteBuffer frame = pin(page, false);
+        for (int i = 0; i < PAGE_SIZE; i += Long.BYTES) {
+            frame.putLong(i, 0);
+        }
+
+        return frame;
+    }
+
+    private ByteBuffer pin(int page, boolean read) {
+        Integer frame = frameOf.get(page);
+        while (frame == null && (frame = victim()) == NO_PAGE) {
+            // Every frame is pinned. Pins held by other threads are released in time
+            if (held.get()[0] == pinned) {
+                throw new IllegalStateException("Every page of the buffer pool is pinned.");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a frame.");
+            }
+            frame = frameOf.get(page);
+        }
+
+        if (pages[frame] == page) {
+            hits++;
+        } else {
+            misses++;
+            if (pages[frame] != NO_PAGE) {
+                if (dirty[frame]) {
+                    writeBack(frame);
+                }
+                frameOf.remove(pages[frame]);
+                evictions++;
+            }
+            if (read) {
+                engine.readPage(channel, page, frames[frame]);
+            }
+            pages[frame] = page;
+            frameOf.put(page, frame);
+        }
+
+        pins[frame]++;
+        pinned++;
+        held.get()[0]++;
+        referenced[frame] = true;
+        return frames[frame];
+    }
+
+    /**
+     * Releases a pinned page.
+     * @param changed True if the page was changed, so that it's written back.
+     */
+    synchronized void unpin(int page, boolean changed) {
+        Integer frame = frameOf.get(page);
+        if (frame == null || pins[frame] == 0) {
+            throw new IllegalStateException("Page " + page + " is not pinned.");
+        }
+
+        pins[frame]--;
+        pinned--;
+        held.get()[0]--;
+        dirty[frame] |= changed;
+        if (pins[frame] == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return A free frame, or the frame of the page to evict. NO_PAGE if every frame is pinned.
+     */
+    private int victim() {
+        for (int i = 0; i < 2 * frames.length; i++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (pins[frame] > 0) {
+                continue;
+            }
+            if (pages[frame] != NO_PAGE && referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+
+            return frame;
+        }
+
+        return NO_PAGE;
+    }
+
+    private void writeBack(int frame) {
+        engine.writePage(channel, pages[frame], frames[frame]);
+        dirty[frame] = false;
+        writeBacks++;
+    }
+
+    /**
+     * Writes the dirty pages back to the file. They stay in memory.
+     */
+    synchronized void flush() {
+        for (int frame = 0; frame < frames.length; frame++) {
+            if (dirty[frame]) {
+                writeBack(frame);
+            }
+        }
+    }
+
+    /**
+     * Drops every page, without writing it back, and empties the file.
+     */
+    synchronized void clear() {
+        for (int frame = 0; frame < frames.length; frame++) {
+            if (pins[frame] > 0) {
+                throw new IllegalStateException("Page " + pages[frame] + " is pinned.");
+            }
+            pages[frame] = NO_PAGE;
+            referenced[frame] = false;
+            dirty[frame] = false;
+        }
+        frameOf.clear();
+        engine.truncatePages(channel);
+    }
+
+    /**
+     * Closes the file, dropping the pages held in memory.
+     */
+    synchronized void close() {
+        frameOf.clear();
+        Arrays.fill(pages, NO_PAGE);
+        engine.closePages(channel);
+    }
+
+    int frames() {
+        return frames.length;
+    }
+
+    /**
+     * @return The number of pins that found the page in memory.
+     */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of pins that had to bring the page into a frame.
+     */
+    synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of pages evicted to free a frame.
+     */
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of dirty pages written to the file.
+     */
+    synchronized long writeBacks() {
+        return writeBacks;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d frames, %d hits, %d misses, %d evictions, %d write-backs",
+                frames.length, hits, misses, evictions, writeBacks);
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        File file = new File("Databases", "BufferPoolTest.pages");
+        StorageEngine engine = new StorageEngine();
+        BufferPool pool = new BufferPool(engine, engine.openPages(file), 3);
+        try {
+            // New pages, written back when they are evicted
+            for (int page = 0; page < 6; page++) {
+                ByteBuffer frame = pool.pinNew(page);
+                frame.putInt(0, page * 10);
+                pool.unpin(page, true);
+            }
+            assert(pool.evictions() == 3 && pool.writeBacks() == 3);
+            assert(file.length() == 3 * PAGE_SIZE);
+
+            // Evicted pages are read back
+            for (int page = 0; page < 6; page++) {
+                assert(pool.pin(page).getInt(0) == page * 10);
+                pool.unpin(page, false);
+            }
+            assert(pool.misses() == 12 && pool.hits() == 0);
+
+            // Pinned pages are never evicted
+            pool.pin(0);
+            for (int page = 10; page < 20; page++) {
+                pool.pin(page);
+                pool.unpin(page, false);
+            }
+            assert(pool.frameOf.containsKey(0) && pool.pin(0).getInt(0) == 0);
+            pool.pin(1);
+            pool.pin(2);
+            boolean failed = false;
+            try {
+                pool.pin(3);
+            } catch (IllegalStateException e) {
+                failed = true;
+            }
+            assert(failed);
+            pool.unpin(0, false);
+            pool.unpin(0, false);
+            pool.unpin(1, false);
+            pool.unpin(2, false);
+
+            failed = false;
+            try {
+                pool.unpin(2, false);
+            } catch (IllegalStateException e) {
+                failed = true;
+            }
+            assert(failed);
+
+            // Flushing writes dirty pages and keeps them
+            pool.pin(5).putInt(4, 55);
+            pool.unpin(5, true);
+            long writeBacks = pool.writeBacks();
+            pool.flush();
+            assert(pool.writeBacks() == writeBacks + 1);
+            pool.flush();
+            assert(pool.writeBacks() == writeBacks + 1 && pool.pin(5).getInt(4) == 55);
+            pool.unpin(5, false);
+
+            pool.clear();
+            assert(file.length() == 0 && pool.pin(5).getInt(4) == 0);
+            pool.unpin(5, false);
+
+            // A page used since the hand last passed gets a second chance
+            pool.clear();
+            for (int page = 0; page < 4; page++) {
+                pool.pin(page);
+                pool.unpin(page, false);
+            }
+            int[] left = IntStream.range(0, 3).filter(pool.frameOf::containsKey).toArray();
+            assert(left.length == 2);
+            pool.pin(left[1]);
+            pool.unpin(left[1], false);
+            pool.pin(4);
+            pool.unpin(4, false);
+            assert(pool.frameOf.containsKey(left[1]) && pool.frameOf.containsKey(3));
+            assert(!pool.frameOf.containsKey(left[0]));
+
+            // More readers than frames each read their own page, waiting for a frame if need be
+            for (int page = 0; page < 12; page++) {
+                pool.pinNew(page).putInt(0, page * 10);
+                pool.unpin(page, true);
+            }
+            AtomicInteger wrong = new AtomicInteger();
+            Table.runConcurrently(8, thread -> {
+                for (int i = 0; i < 2000; i++) {
+                    int page = (thread + i) % 12;
+                    if (pool.pin(page).getInt(0) != page * 10) {
+                        wrong.incrementAndGet();
+                    }
+                    Thread.yield();
+                    pool.unpin(page, false);
+                }
+            });
+            assert(wrong.get() == 0 && pool.pinned == 0);
+        } finally {
+            pool.close();
+            file.delete();
+        }
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
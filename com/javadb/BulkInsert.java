@@ -0,0 +1,255 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Inserts a batch of records into a table.
+ * The column constraints and indexes are looked up once for the whole batch,
+ * and the table is grown to its final size before the first record is added.
+ * Constraints are checked against both the table and the earlier records of the
+ * batch, so a duplicate inside the batch is rejected like any other duplicate.
+ * Values of typed columns are converted to their canonical form before the checks.
+ * Rejected records are reported instead of silently dropped.
+ * On a concurrent table, the batch runs alongside other writes. Each record is checked
+ * and inserted under the locks of its unique values, so the batch is not atomic.
+ */
+public class BulkInsert {
+    private final Table table;
+
+    BulkInsert(Table table) {
+        this.table = table;
+    }
+
+    public Report run(Stream<Record> records) {
+        return run(records.collect(Collectors.toList()));
+    }
+
+    public Report run(Iterable<Record> records) {
+        Collection<Record> batch;
+        if (records instanceof Collection) {
+            batch = (Collection<Record>) records;
+        } else {
+            batch = new ArrayList<>();
+            records.forEach(batch::add);
+        }
+
+        table.beginWrite();
+        try {
+            return insert(batch);
+        } finally {
+            table.endWrite();
+        }
+    }
+
+    private Report insert(Collection<Record> batch) {
+        // Look up the constraints and indexes of each column once
+        int columns = table.columns();
+        int pkColIndex = table.getPKColIndex();
+        Constraint[][] constraints = new Constraint[columns][];
+        Index[] indexes = new Index[columns];
+        Column[] cols = table.getColumns();
+        for (int i = 0; i < columns; i++) {
+            constraints[i] = cols[i].getConstraints().toArray(new Constraint[0]);
+            indexes[i] = table.getIndex(i);
+        }
+
+        table.reserve(batch.size());
+
+        Report report = new Report();
+        int row = 0;
+        for (Record r : batch) {
+            Reject reject = validateFields(r, row, columns);
+            if (reject == null) {
+                int[] held = table.lockRecord(r);
+                try {
+                    reject = validateConstraints(r, row, constraints, indexes);
+                    if (reject == null) {
+                        table.encodeValues(r);
+                        String key = r.getValue(pkColIndex);
+                        table.putRecord(key, r);
+                        for (int i = 0; i < columns; i++) {
+                            if (indexes[i] != null) {
+                                indexes[i].add(r.getValue(i), key);
+                            }
+                        }
+                        report.inserted++;
+                    }
+                } finally {
+                    table.unlock(held);
+                }
+            }
+            if (reject != null) {
+                report.rejects.add(reject);
+            }
+            row++;
+        }
+
+        return report;
+    }
+
+    /**
+     * Checks the number of fields and their types, and converts the values to canonical form.
+     * @return The reason a record is rejected, or null if its fields are valid.
+     */
+    private Reject validateFields(Record r, int row, int columns) {
+        // Checks if record has the same number of fields as columns
+        if (r.size() != columns) {
+            return new Reject(row, r, null, -1);
+        }
+
+        int invalid = table.normalizeValues(r);
+        if (invalid != -1) {
+            return new Reject(row, r, null, invalid);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The constraint a record violates, or null if it can be inserted.
+     */
+    private Reject validateConstraints(Record r, int row, Constraint[][] constraints, Index[] indexes) {
+        for (int i = 0; i < constraints.length; i++) {
+            for (Constraint constraint : constraints[i]) {
+                if (constraint.isViolated(indexes[i], r.getValue(i))) {
+                    return new Reject(row, r, constraint, i);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The outcome of a bulk insert.
+     */
+    public static class Report {
+        private int inserted;
+        private final List<Reject> rejects = new ArrayList<>();
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public List<Reject> getRejects() {
+            return rejects;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                    "inserted=" + inserted +
+                    ", rejected=" + rejects.size() +
+                    '}';
+        }
+    }
+
+    /**
+     * A record that was not inserted, and the reason why.
+     */
+    public static class Reject {
+        private final int row;
+        private final Record record;
+        private final Constraint constraint;
+        private final int colIndex;
+
+        Reject(int row, Record record, Constraint constraint, int colIndex) {
+            this.row = row;
+            this.record = record;
+            this.constraint = constraint;
+            this.colIndex = colIndex;
+        }
+
+        /**
+         * @return The position of the record in the batch.
+         */
+        public int getRow() {
+            return row;
+        }
+
+        public Record getRecord() {
+            return record;
+        }
+
+        /**
+         * @return The violated constraint, or null if the record does not have
+         * the same number of fields as the table has columns, or holds a value
+         * that is not valid for the column's type.
+         */
+        public Constraint getConstraint() {
+            return constraint;
+        }
+
+        /**
+         * @return The column of the violated constraint or invalid value, or -1.
+         */
+        public int getColIndex() {
+            return colIndex;
+        }
+
+        @Override
+        public String toString() {
+            return "Reject{" +
+                    "row=" + row +
+                    ", constraint=" + (constraint == null ? (colIndex == -1 ? "FIELD_COUNT" : "DATA_TYPE") : constraint) +
+                    ", colIndex=" + colIndex +
+                    '}';
+        }
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("First_Name", Constraint.NOT_NULL);
+        Column c2 = new Column("Email", Constraint.UNIQUE);
+
+        Table t1 = new Table("t1", c0, c1, c2);
+        t1.insert(new Record("0", "Angela", "angela@mail.com"));
+
+        List<Record> batch = new ArrayList<>();
+        batch.add(new Record("1", "Tom", "tom@mail.com"));
+        batch.add(new Record("0", "Paul", "paul@mail.com"));            // Existing PK
+        batch.add(new Record("2", "", "hannah@mail.com"));              // Null first name
+        batch.add(new Record("3", "Helen", "tom@mail.com"));            // Duplicate in batch
+        batch.add(new Record("4", "Jane"));                             // Missing field
+        batch.add(new Record("1", "John", "john@mail.com"));            // Duplicate PK in batch
+        batch.add(new Record("5", "Amy", "amy@mail.com"));
+
+        Report report = new BulkInsert(t1).run(batch);
+        assert(report.getInserted() == 2);
+        assert(t1.rows() == 3);
+
+        List<Reject> rejects = report.getRejects();
+        assert(rejects.size() == 5);
+        assert(rejects.get(0).getRow() == 1 && rejects.get(0).getConstraint() == Constraint.PRIMARY_KEY);
+        assert(rejects.get(1).getRow() == 2 && rejects.get(1).getConstraint() == Constraint.NOT_NULL);
+        assert(rejects.get(2).getRow() == 3 && rejects.get(2).getConstraint() == Constraint.UNIQUE);
+        assert(rejects.get(2).getColIndex() == 2);
+        assert(rejects.get(3).getRow() == 4 && rejects.get(3).getConstraint() == null);
+        assert(rejects.get(4).getRow() == 5 && rejects.get(4).getRecord() == batch.get(5));
+
+        // Indexes are kept up to date
+        assert(t1.insert(new Record("6", "Tom", "amy@mail.com")) == false);
+        assert(t1.selectWhere(2, "tom@mail.com").iterator().next() == batch.get(0));
+
+        // Streams
+        Report streamReport = new BulkInsert(t1).run(Stream.of(
+                new Record("7", "Paul", "paul@mail.com"),
+                new Record("8", "Paul", "paul@mail.com")));
+        assert(streamReport.getInserted() == 1 && streamReport.getRejects().size() == 1);
+        assert(t1.rows() == 4);
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A streaming CSV parser, that reads records rather than lines.
+ * Follows RFC 4180: a field that starts with a double quote is quoted, and may hold
+ * delimiters, line breaks and escaped double quotes (""). Records end at a line break
+ * outside quotes, either "\n" or "\r\n". Empty lines hold no record.
+ * The reader reuses its buffers: each record is read into a Row, which keeps the fields
+ * as characters and turns them into Strings only when asked for.
+ */
+public class CSVReader implements Closeable {
+    private static final char DELIMITER_CHAR = ',';
+    private static final char QUOTES_CHAR = '"';
+    private static final char NEWLINE_CHAR = '\n';
+    private static final char RETURN_CHAR = '\r';
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader in;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+
+    public CSVReader(Reader in) {
+        this.in = in;
+        buffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * The fields of a record. A row is reused for every record read into it.
+     */
+    public static class Row {
+        private char[] chars = new char[256];
+        private int length;
+        // The end of each field in chars
+        private int[] ends = new int[16];
+        private int fields;
+
+        public int size() {
+            return fields;
+        }
+
+        public String getValue(int n) {
+            if (n < 0 || n >= fields) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+
+            int start = n == 0 ? 0 : ends[n - 1];
+            return new String(chars, start, ends[n] - start);
+        }
+
+        /**
+         * @return The field as a view of the row's characters, valid until the next record.
+         */
+        public CharSequence getChars(int n) {
+            if (n < 0 || n >= fields) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+
+            int start = n == 0 ? 0 : ends[n - 1];
+            return CharBuffer.wrap(chars, start, ends[n] - start);
+        }
+
+        public String[] getValues() {
+            String[] values = new String[fields];
+            for (int i = 0; i < fields; i++) {
+                values[i] = getValue(i);
+            }
+
+            return values;
+        }
+
+        private void clear() {
+            length = 0;
+            fields = 0;
+        }
+
+        private void append(char c) {
+            if (length == chars.length) {
+                chars = Arrays.copyOf(chars, length * 2);
+            }
+            chars[length++] = c;
+        }
+
+        private void append(char[] source, int start, int end) {
+            int count = end - start;
+            if (length + count > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + count));
+            }
+            System.arraycopy(source, start, chars, length, count);
+            length += count;
+        }
+
+        private void endField() {
+            if (fields == ends.length) {
+                ends = Arrays.copyOf(ends, fields * 2);
+            }
+            ends[fields++] = length;
+        }
+    }
+
+    /**
+     * Reads the next record into a row.
+     * @return False if there are no more records.
+     */
+    public boolean next(Row row) throws IOException {
+        row.clear();
+        boolean inQuotes = false;
+        // Whether the current field started with a quote, which makes it a quoted field
+        boolean fieldStart = true;
+        boolean empty = true;
+
+        while (true) {
+            if (position == limit && !fill()) {
+                if (empty) {
+                    return false;
+                }
+                // The last record of the input may have no line break
+                row.endField();
+                return true;
+            }
+
+            if (inQuotes) {
+                // Copy the run of plain characters at once
+                int start = position;
+                while (position < limit && buffer[position] != QUOTES_CHAR) {
+                    position++;
+                }
+                row.append(buffer, start, position);
+                if (position == limit) {
+                    continue;
+                }
+
+                position++;
+                if (peek() == QUOTES_CHAR) {
+                    // An escaped quote, eg. "val""ue"
+                    position++;
+                    row.append(QUOTES_CHAR);
+                } else {
+                    inQuotes = false;
+                }
+                continue;
+            }
+
+            char c = buffer[position++];
+            if (c == DELIMITER_CHAR) {
+                row.endField();
+                fieldStart = true;
+                empty = false;
+            } else if (c == NEWLINE_CHAR || (c == RETURN_CHAR && peek() == NEWLINE_CHAR)) {
+                if (c == RETURN_CHAR) {
+                    position++;
+                }
+                if (!empty) {
+                    row.endField();
+                    return true;
+                }
+            } else if (c == QUOTES_CHAR && fieldStart) {
+                inQuotes = true;
+                fieldStart = false;
+                empty = false;
+            } else {
+                row.append(c);
+                fieldStart = false;
+                empty = false;
+            }
+        }
+    }
+
+    /**
+     * @return The next character, without consuming it. -1 at the end of the input.
+     */
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // Unit Testing
+
+    private static List<String[]> readAll(String csv) {
+        List<String[]> records = new ArrayList<>();
+        try (CSVReader reader = new CSVReader(new StringReader(csv))) {
+            Row row = new Row();
+            while (reader.next(row)) {
+                records.add(row.getValues());
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+
+        return records;
+    }
+
+    private static void test_parser() {
+        List<String[]> records = readAll("abc,ZYX,123\r\n" +
+                "abc,\"kl,m\",qwe\n" +
+                "\n" +
+                "abc,\"\"\"Hi\"\"\",\"\"\"Do it, if you\"\"\"\n" +
+                "\"Dear,\r\n How\",,\"\"\n" +
+                "last,record");
+        assert(records.size() == 5);
+        assert(Arrays.equals(records.get(0), new String[] {"abc", "ZYX", "123"}));
+        assert(Arrays.equals(records.get(1), new String[] {"abc", "kl,m", "qwe"}));
+        assert(Arrays.equals(records.get(2), new String[] {"abc", "\"Hi\"", "\"Do it, if you\""}));
+        assert(Arrays.equals(records.get(3), new String[] {"Dear,\r\n How", "", ""}));
+        assert(Arrays.equals(records.get(4), new String[] {"last", "record"}));
+
+        // A quote inside an unquoted field is a plain character
+        assert(Arrays.equals(readAll("5\" disk,a\n").get(0), new String[] {"5\" disk", "a"}));
+        assert(readAll("").isEmpty() && readAll("\n\r\n").isEmpty());
+    }
+
+    private static void test_generator_and_reader() {
+        String[][] rows = {
+                {"Amy", "O'hare", "Biologist, diver"},
+                {"My favorites quote is \"Carpe Diem\"", "Not much to say\n I love cats!", ""},
+        };
+        StringBuilder csv = new StringBuilder();
+        for (String[] row : rows) {
+            csv.append(CSVutils.generateCSVRecord(row));
+        }
+
+        List<String[]> records = readAll(csv.toString());
+        assert(records.size() == 2);
+        assert(Arrays.equals(records.get(0), rows[0]) && Arrays.equals(records.get(1), rows[1]));
+    }
+
+    private static void test_buffer_boundaries() {
+        // Records and escaped quotes that span the reader's buffer
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < BUFFER_SIZE + 10; i++) {
+            large.append(i % 100 == 0 ? '"' : (char) ('a' + i % 26));
+        }
+        String[] row = {"1", large.toString(), "x\ny"};
+        String csv = CSVutils.generateCSVRecord(row) + CSVutils.generateCSVRecord(row);
+
+        List<String[]> records = readAll(csv);
+        assert(records.size() == 2 && Arrays.equals(records.get(1), row));
+    }
+
+    private static String singleLineRecords() {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            csv.append(CSVutils.generateCSVRecord(new String[] {Integer.toString(i), "name" + i,
+                    "Bristol, UK", "He said \"Hi\"", Double.toString(i / 3.0)}));
+        }
+
+        return csv.toString();
+    }
+
+    private static void test_single_line_records() {
+        String input = singleLineRecords();
+        String[] lines = input.split("\n");
+
+        // Both parse single line records alike
+        List<String[]> records = readAll(input);
+        assert(records.size() == lines.length);
+        for (int i = 0; i < lines.length; i += 1000) {
+            assert(Arrays.equals(records.get(i), CSVutils.parseCSVline(lines[i])));
+        }
+    }
+
+    /**
+     * Compares the throughput of the reader with that of CSVutils.parseCSVline() on
+     * single line records, which both parse the same way.
+     * Run with the argument "benchmark"; the unit tests do not run it.
+     */
+    private static void benchmark() {
+        String input = singleLineRecords();
+        String[] lines = input.split("\n");
+
+        long parserTime = 0;
+        long readerTime = 0;
+        long fields = 0;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            for (String line : lines) {
+                fields += CSVutils.parseCSVline(line).length;
+            }
+            parserTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            try (CSVReader reader = new CSVReader(new StringReader(input))) {
+                Row row = new Row();
+                while (reader.next(row)) {
+                    for (int i = 0; i < row.size(); i++) {
+                        fields += row.getChars(i).length();
+                    }
+                }
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+            readerTime = System.nanoTime() - start;
+        }
+
+        double megabytes = input.length() / 1e6;
+        System.out.printf("CSV parsing: parseCSVline %.0f MB/s, CSVReader %.0f MB/s (%d fields)%n",
+                megabytes / (parserTime / 1e9), megabytes / (readerTime / 1e9), fields);
+    }
+
+    public static void main(String[] args) {
+        test_parser();
+        test_generator_and_reader();
+        test_buffer_boundaries();
+        test_single_line_records();
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            benchmark();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A streaming CSV writer, that formats records like CSVutils.generateCSVRecord() does.
+ * Fields are encoded as UTF-8 straight into a large reusable buffer, which is written to
+ * a channel whenever it fills up, so no String or builder is made per record. Each field
+ * is encoded in a single pass: plain ASCII is copied as is, and if a char needs the field
+ * quoted, the bytes written so far are moved up to make room for the opening quote.
+ * Call flush() when done.
+ */
+public class CSVWriter implements Flushable {
+    private static final byte DELIMITER = ',';
+    private static final byte QUOTES = '"';
+    private static final byte NEWLINE = '\n';
+    private static final int BUFFER_SIZE = 1 << 20;
+    // The most bytes a char takes: 3 in UTF-8, or 2 for an escaped quote
+    private static final int MAX_CHAR_BYTES = 4;
+
+    private final WritableByteChannel channel;
+    private final CRC32 checksum;
+    private final byte[] buffer;
+    // The chars of the field being written
+    private final char[] chars;
+    // The number of bytes in the buffer
+    private int count;
+    private boolean fieldStart;
+
+    public CSVWriter(WritableByteChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * @param checksum Updated with every byte written. Ignored if null.
+     */
+    CSVWriter(WritableByteChannel channel, CRC32 checksum) {
+        this.channel = channel;
+        this.checksum = checksum;
+        buffer = new byte[BUFFER_SIZE];
+        chars = new char[(BUFFER_SIZE - 2) / MAX_CHAR_BYTES];
+        fieldStart = true;
+    }
+
+    public void writeRecord(String[] values) throws IOException {
+        for (String value : values) {
+            writeField(value);
+        }
+        endRecord();
+    }
+
+    /**
+     * Writes a field of the current record. Null fields are written as "null".
+     */
+    public void writeField(String value) throws IOException {
+        if (value == null) {
+            value = "null";
+        }
+
+        if (!fieldStart) {
+            put(DELIMITER);
+        }
+        fieldStart = false;
+
+        int length = value.length();
+        if (length > chars.length) {
+            writeLargeField(value);
+            return;
+        }
+        // Room for every char at its largest, and the quotes
+        if (buffer.length - count < length * MAX_CHAR_BYTES + 2) {
+            writeBuffer();
+        }
+
+        char[] chars = this.chars;
+        byte[] buffer = this.buffer;
+        value.getChars(0, length, chars, 0);
+        int start = count;
+
+        // Plain ASCII, the common case, is copied as is
+        int i = 0;
+        for (; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x80 || c == DELIMITER || c == QUOTES || c == NEWLINE) {
+                break;
+            }
+            buffer[start + i] = (byte) c;
+        }
+        int count = start + i;
+
+        // The rest is encoded char by char, and the field quoted once a char needs it
+        boolean quoted = false;
+        for (; i < length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                if (c == QUOTES) {
+                    // Escape quote with another preceding quote
+                    buffer[count++] = QUOTES;
+                    quoted = true;
+                } else if (c == DELIMITER || c == NEWLINE) {
+                    quoted = true;
+                }
+                buffer[count++] = (byte) c;
+            } else {
+                count = putMultiByte(buffer, count, chars, i, length);
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+                    i++;
+                }
+            }
+        }
+
+        if (quoted) {
+            System.arraycopy(buffer, start, buffer, start + 1, count - start);
+            buffer[start] = QUOTES;
+            buffer[count + 1] = QUOTES;
+            count += 2;
+        }
+        this.count = count;
+    }
+
+    /**
+     * Writes a field too long to be copied in one go, char by char.
+     */
+    private void writeLargeField(String value) throws IOException {
+        int length = value.length();
+        boolean quoted = false;
+        for (int i = 0; i < length && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == DELIMITER || c == QUOTES || c == NEWLINE;
+        }
+
+        if (quoted) {
+            put(QUOTES);
+        }
+        char[] pair = new char[2];
+        for (int i = 0; i < length; i++) {
+            if (buffer.length - count < MAX_CHAR_BYTES) {
+                writeBuffer();
+            }
+
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c == QUOTES) {
+                    buffer[count++] = QUOTES;
+                }
+                buffer[count++] = (byte) c;
+            } else {
+                pair[0] = c;
+                pair[1] = i + 1 < length ? value.charAt(i + 1) : 0;
+                count = putMultiByte(buffer, count, pair, 0, 2);
+                if (Character.isHighSurrogate(c) && Character.isLowSurrogate(pair[1])) {
+                    i++;
+                }
+            }
+        }
+        if (quoted) {
+            put(QUOTES);
+        }
+    }
+
+    /**
+     * Encodes a char of 0x80 or more as UTF-8, with the char after it if they are a
+     * surrogate pair.
+     * @return The count of bytes in the buffer after it.
+     */
+    private static int putMultiByte(byte[] buffer, int count, char[] chars, int i, int length) {
+        char c = chars[i];
+        if (c < 0x800) {
+            buffer[count++] = (byte) (0xC0 | c >> 6);
+            buffer[count++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+            int codePoint = Character.toCodePoint(c, chars[i + 1]);
+            buffer[count++] = (byte) (0xF0 | codePoint >> 18);
+            buffer[count++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            buffer[count++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            buffer[count++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (Character.isSurrogate(c)) {
+            // A lone surrogate can't be encoded, like String.getBytes() does
+            buffer[count++] = '?';
+        } else {
+            buffer[count++] = (byte) (0xE0 | c >> 12);
+            buffer[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+            buffer[count++] = (byte) (0x80 | c & 0x3F);
+        }
+
+        return count;
+    }
+
+    public void endRecord() throws IOException {
+        put(NEWLINE);
+        fieldStart = true;
+    }
+
+    /**
+     * Writes the buffered records to the channel.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+    }
+
+    private void put(byte b) throws IOException {
+        if (count == buffer.length) {
+            writeBuffer();
+        }
+        buffer[count++] = b;
+    }
+
+    private void writeBuffer() throws IOException {
+        if (checksum != null) {
+            checksum.update(buffer, 0, count);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        count = 0;
+    }
+
+    // Unit Testing
+
+    private static byte[] write(String[][] records) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CSVWriter writer = new CSVWriter(Channels.newChannel(out));
+        try {
+            for (String[] record : records) {
+                writer.writeRecord(record);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] generate(String[][] records) {
+        StringBuilder sb = new StringBuilder();
+        for (String[] record : records) {
+            sb.append(CSVutils.generateCSVRecord(record));
+        }
+
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void test_writer() {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            large.append(i % 1000 == 0 ? "\"" : "\u00e9");
+        }
+        String[][] records = {
+                {"Amy", "O'hare", "Biologist, diver", null, ""},
+                {"My favorites quote is \"Carpe Diem\"", "Not much to say\n I love cats!"},
+                {"Z\u00fcrich", "\u20ac5", "\ud83d\ude00 smile", "lone \ud83d surrogate"},
+                {"1", large.toString(), "end"},
+                {"caf\u00e9, \"bar\"", "\ud83d\ude00\n", "\u00e9\ud83d"},
+        };
+
+        // The output is the same as that of CSVutils.generateCSVRecord()
+        assert(Arrays.equals(write(records), generate(records)));
+
+        // Records that fill the buffer many times over
+        String[][] many = new String[100000][];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = new String[] {Integer.toString(i), i % 3 == 0 ? "Bristol, UK" : "\u00e9" + i, "\"" + i};
+        }
+        assert(Arrays.equals(write(many), generate(many)));
+
+        // The checksum covers every byte
+        CRC32 checksum = new CRC32();
+        CSVWriter writer = new CSVWriter(Channels.newChannel(new ByteArrayOutputStream()), checksum);
+        try {
+            for (String[] record : records) {
+                writer.writeRecord(record);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        CRC32 expected = new CRC32();
+        expected.update(generate(records));
+        assert(checksum.getValue() == expected.getValue());
+    }
+
+    /**
+     * Compares the throughput of the writer with that of CSVutils.generateCSVRecord().
+     * Run with the argument "benchmark"; the unit tests do not run it.
+     */
+    private static void benchmark() {
+        String[][] records = new String[200000][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new String[] {Integer.toString(i), "name" + i, "Bristol, UK", "He said \"Hi\"",
+                    Double.toString(i / 3.0)};
+        }
+
+        long generatorTime = 0;
+        long writerTime = 0;
+        int bytes = 0;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            bytes = generate(records).length;
+            generatorTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            write(records);
+            writerTime = System.nanoTime() - start;
+        }
+
+        double megabytes = bytes / 1e6;
+        System.out.printf("CSV writing: generateCSVRecord %.0f MB/s, CSVWriter %.0f MB/s%n",
+                megabytes / (generatorTime / 1e9), megabytes / (writerTime / 1e9));
+    }
+
+    public static void main(String[] args) {
+        test_writer();
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            benchmark();
+        }
+    }
+}
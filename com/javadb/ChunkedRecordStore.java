@@ -0,0 +1,287 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A record store that keeps the records densely packed in fixed size chunks,
+ * with a hash map from key to slot.
+ * Its streams split into equal halves down to the chunk size, so parallel
+ * scans spread evenly over the available cores.
+ * Deleting a record moves the last record into its slot, so the records
+ * are not kept in insertion order.
+ * Streams are fail-fast: inserting or deleting records while a stream is
+ * running throws a ConcurrentModificationException instead of returning
+ * missing or duplicate records. Replacing the record of an existing key does not.
+ */
+public class ChunkedRecordStore implements RecordStore {
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private String[][] keys;
+    private Record[][] records;
+    private final Map<String, Integer> slots;
+    private int size;
+    // Counts structural modifications. Volatile, so a scan on another thread sees them.
+    private volatile int modCount;
+
+    ChunkedRecordStore() {
+        keys = new String[1][];
+        records = new Record[1][];
+        slots = new HashMap<>();
+    }
+
+    @Override
+    public Record get(String key) {
+        Integer slot = slots.get(key);
+        return slot == null ? null : recordAt(slot);
+    }
+
+    @Override
+    public void put(String key, Record r) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            records[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = r;
+            return;
+        }
+
+        int chunk = size >>> CHUNK_SHIFT;
+        if (chunk == records.length) {
+            keys = Arrays.copyOf(keys, chunk * 2);
+            records = Arrays.copyOf(records, chunk * 2);
+        }
+        if (records[chunk] == null) {
+            keys[chunk] = new String[CHUNK_SIZE];
+            records[chunk] = new Record[CHUNK_SIZE];
+        }
+
+        keys[chunk][size & CHUNK_MASK] = key;
+        records[chunk][size & CHUNK_MASK] = r;
+        slots.put(key, size);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Record remove(String key) {
+        Integer slot = slots.remove(key);
+        if (slot == null) {
+            return null;
+        }
+
+        Record r = recordAt(slot);
+
+        // Fill the hole with the last record
+        int last = size - 1;
+        if (slot != last) {
+            String lastKey = keyAt(last);
+            keys[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = lastKey;
+            records[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = recordAt(last);
+            slots.put(lastKey, slot);
+        }
+        keys[last >>> CHUNK_SHIFT][last & CHUNK_MASK] = null;
+        records[last >>> CHUNK_SHIFT][last & CHUNK_MASK] = null;
+        size--;
+        modCount++;
+
+        return r;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return slots.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        keys = new String[1][];
+        records = new Record[1][];
+        slots.clear();
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Stream<Map.Entry<String, Record>> entries() {
+        return StreamSupport.stream(new SlotSpliterator<>(0, size, modCount,
+                slot -> new AbstractMap.SimpleImmutableEntry<>(keyAt(slot), recordAt(slot))), false);
+    }
+
+    @Override
+    public Stream<Record> values() {
+        return StreamSupport.stream(new SlotSpliterator<>(0, size, modCount, this::recordAt), false);
+    }
+
+    private String keyAt(int slot) {
+        return keys[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    private Record recordAt(int slot) {
+        return records[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    /**
+     * @return False if the slot is past the records, which a scan can find if it runs on
+     * while records are deleted.
+     */
+    private boolean isOccupied(int slot) {
+        String[][] keys = this.keys;
+        int chunk = slot >>> CHUNK_SHIFT;
+        return chunk < keys.length && keys[chunk] != null && keys[chunk][slot & CHUNK_MASK] != null;
+    }
+
+    /**
+     * Walks a range of slots. Splits in half, on chunk boundaries once the range
+     * spans more than one chunk.
+     */
+    private class SlotSpliterator<T> implements Spliterator<T> {
+        private int lo;
+        private final int hi;
+        private final int expectedModCount;
+        private final IntFunction<T> element;
+
+        SlotSpliterator(int lo, int hi, int expectedModCount, IntFunction<T> element) {
+            this.lo = lo;
+            this.hi = hi;
+            this.expectedModCount = expectedModCount;
+            this.element = element;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (lo < hi) {
+                checkForComodification();
+                int slot = lo++;
+                if (isOccupied(slot)) {
+                    action.accept(element.apply(slot));
+                    return true;
+                }
+            }
+
+            checkForComodification();
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (tryAdvance(action)) {
+                // Each record is checked like a single advance, so a modification by the
+                // action is caught before the next record
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int mid = (lo + hi) >>> 1;
+            if (hi - lo > CHUNK_SIZE) {
+                // Round to the nearest chunk boundary
+                mid = (mid + CHUNK_SIZE / 2) & ~CHUNK_MASK;
+            }
+            if (mid <= lo || mid >= hi) {
+                return null;
+            }
+
+            Spliterator<T> prefix = new SlotSpliterator<>(lo, mid, expectedModCount, element);
+            lo = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return hi - lo;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED |
+                    Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+
+        private void checkForComodification() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        ChunkedRecordStore store = new ChunkedRecordStore();
+        Map<String, Record> expected = new HashMap<>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 20000; i++) {
+            String key = Integer.toString(random.nextInt(8000));
+            if (random.nextInt(4) == 0) {
+                assert(store.remove(key) == expected.remove(key));
+            } else {
+                Record r = new Record(key);
+                store.put(key, r);
+                expected.put(key, r);
+            }
+        }
+        assert(store.size() == expected.size());
+        for (Map.Entry<String, Record> e : expected.entrySet()) {
+            assert(store.get(e.getKey()) == e.getValue());
+        }
+
+        // Streams return every record once, sequential or parallel
+        assert(store.values().count() == expected.size());
+        assert(store.values().parallel().distinct().count() == expected.size());
+        assert(store.entries().parallel().allMatch(e -> expected.get(e.getKey()) == e.getValue()));
+
+        // Splits are even
+        Spliterator<Record> right = store.values().spliterator();
+        Spliterator<Record> left = right.trySplit();
+        assert(Math.abs(left.estimateSize() - right.estimateSize()) <= CHUNK_SIZE);
+
+        // Fail-fast on structural modification
+        boolean failed = false;
+        try {
+            store.values().forEach(r -> {
+                if (store.size() == expected.size()) {
+                    store.put("new", new Record("new"));
+                }
+            });
+        } catch (ConcurrentModificationException e) {
+            failed = true;
+        }
+        assert(failed);
+
+        // Deleting while a stream runs fails before a deleted or moved slot is returned
+        List<Record> seen = new ArrayList<>();
+        failed = false;
+        try {
+            store.values().forEach(r -> {
+                seen.add(r);
+                store.remove(r.getValue(0));
+            });
+        } catch (ConcurrentModificationException e) {
+            failed = true;
+        }
+        assert(failed && seen.size() == 1 && seen.get(0) != null);
+
+        store.clear();
+        assert(store.size() == 0 && store.entries().count() == 0);
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
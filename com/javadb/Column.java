@@ -13,15 +13,22 @@ import java.util.Set;
 
 /**
  * A column in a table.
- * Currently holds only it's name but later can be used to add Constraints, Data Types.
+ * Holds the column's name, data type, constraints, and the dictionary of dictionary encoded columns.
  */
 public class Column {
     private String name;
+    private final DataType type;
     private final EnumSet<Constraint> constraints;
     private final boolean isPK;
+    private Dictionary dictionary;
 
     Column(String name, Constraint... constraints) {
+        this(name, DataType.STRING, constraints);
+    }
+
+    Column(String name, DataType type, Constraint... constraints) {
         this.name = name;
+        this.type = type;
         this.constraints = addConstraints(constraints);
         isPK = this.constraints.contains(Constraint.PRIMARY_KEY);
     }
@@ -30,10 +37,21 @@ public class Column {
         return name;
     }
 
+    public DataType getType() {
+        return type;
+    }
+
     public boolean isPK() {
         return isPK;
     }
 
+    /**
+     * @return True if the column values must be unique, either as a UNIQUE column or as PK.
+     */
+    public boolean isUnique() {
+        return isPK || constraints.contains(Constraint.UNIQUE);
+    }
+
     public void setName(String name) {
         this.name = name;
     }
@@ -42,6 +60,38 @@ public class Column {
         return constraints;
     }
 
+    public boolean isDictionaryEncoded() {
+        return dictionary != null;
+    }
+
+    /**
+     * @return The column's dictionary, or null if the column is not dictionary encoded.
+     */
+    public Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Opts the column in to dictionary encoding, for columns with few distinct values.
+     * The column's values are stored as codes of a dictionary shared by every table
+     * the column is added to afterwards. Use Table.encodeColumn() for a column that
+     * is already in a table.
+     */
+    public void setDictionaryEncoded(boolean encoded) {
+        if (!encoded) {
+            dictionary = null;
+        } else if (dictionary == null) {
+            dictionary = new Dictionary();
+        }
+    }
+
+    /**
+     * Sets the column's dictionary, when loading a table from disk.
+     */
+    void setDictionary(Dictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
     /**
      * Constructs a set of constrains.
      * @param constraints
@@ -0,0 +1,650 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * A column oriented record store.
+ * Each column is stored in its own contiguous array of values, so scanning one
+ * column does not read the others. Records are assembled from the columns on
+ * access, so the Record returned by get() is a copy, and changes to it are only
+ * stored through put() or setValue().
+ * Adding a column does not touch the existing rows: a new column holds a single
+ * fill value until one of its fields is written. Dropping a column drops its array.
+ * Dictionary encoded columns are stored as an array of int codes, and equality
+ * predicates on them compare codes instead of strings. Columns of the other
+ * non STRING types are stored in their primitive form, as an array of longs.
+ * Deleting a record moves the last record into its slot.
+ */
+public class ColumnarRecordStore implements RecordStore {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] keys;
+    private final List<Vector> vectors;
+    private final Map<String, Integer> slots;
+    private int size;
+    private int capacity;
+    // Counts structural modifications, for fail-fast streams
+    private int modCount;
+
+    ColumnarRecordStore() {
+        capacity = INITIAL_CAPACITY;
+        keys = new String[capacity];
+        vectors = new ArrayList<>();
+        slots = new HashMap<>();
+    }
+
+    @Override
+    public Record get(String key) {
+        Integer slot = slots.get(key);
+        return slot == null ? null : recordAt(slot);
+    }
+
+    @Override
+    public void put(String key, Record r) {
+        if (r.size() != vectors.size()) {
+            throw new IllegalArgumentException("Record does not match the number of columns.");
+        }
+
+        Integer slot = slots.get(key);
+        boolean added = slot == null;
+        if (added) {
+            if (size == capacity) {
+                grow(capacity * 2);
+            }
+            slot = size;
+        }
+
+        String[] values = r.rawValues();
+        for (int i = 0; i < values.length; i++) {
+            write(i, slot, values[i]);
+        }
+
+        // Count the new slot after its fields are written, so that columns
+        // materialized by the write are only filled up to the existing rows
+        if (added) {
+            keys[slot] = key;
+            slots.put(key, slot);
+            size++;
+            modCount++;
+        }
+    }
+
+    @Override
+    public void setValue(String key, int colIndex, String value) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            write(colIndex, slot, value);
+        }
+    }
+
+    @Override
+    public Record remove(String key) {
+        Integer slot = slots.remove(key);
+        if (slot == null) {
+            return null;
+        }
+
+        Record r = recordAt(slot);
+
+        // Fill the hole with the last record
+        int last = size - 1;
+        if (slot != last) {
+            keys[slot] = keys[last];
+            slots.put(keys[slot], slot);
+            for (Vector vector : vectors) {
+                vector.move(last, slot);
+            }
+        }
+        keys[last] = null;
+        size--;
+        modCount++;
+
+        return r;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return slots.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        capacity = INITIAL_CAPACITY;
+        keys = new String[capacity];
+        for (int i = 0; i < vectors.size(); i++) {
+            Vector vector = vectors.get(i);
+            vectors.set(i, new FillVector(vector.fill(), vector.dictionary(), vector.type()));
+        }
+        slots.clear();
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public void ensureCapacity(int size) {
+        if (size > capacity) {
+            grow(size);
+        }
+    }
+
+    @Override
+    public boolean altersInPlace() {
+        return true;
+    }
+
+    @Override
+    public void addField(int colIndex, Column c, String value) {
+        vectors.add(colIndex, new FillVector(value, c.getDictionary(), c.getType()));
+    }
+
+    @Override
+    public void dropField(int colIndex) {
+        vectors.remove(colIndex);
+    }
+
+    /**
+     * Converts a column to an array of dictionary codes.
+     */
+    @Override
+    public void encodeField(int colIndex, Dictionary dictionary) {
+        Vector vector = vectors.get(colIndex);
+        if (vector instanceof FillVector) {
+            vectors.set(colIndex, new FillVector(vector.fill(), dictionary, vector.type()));
+            return;
+        }
+
+        CodeVector codes = new CodeVector(dictionary, capacity);
+        for (int slot = 0; slot < size; slot++) {
+            codes.set(slot, vector.get(slot));
+        }
+        vectors.set(colIndex, codes);
+    }
+
+    @Override
+    public Stream<Map.Entry<String, Record>> entries() {
+        int expectedModCount = modCount;
+        return IntStream.range(0, size).mapToObj(slot -> {
+            checkForComodification(expectedModCount);
+            return new AbstractMap.SimpleImmutableEntry<>(keys[slot], recordAt(slot));
+        });
+    }
+
+    @Override
+    public Stream<Record> values() {
+        int expectedModCount = modCount;
+        return IntStream.range(0, size).mapToObj(slot -> {
+            checkForComodification(expectedModCount);
+            return recordAt(slot);
+        });
+    }
+
+    /**
+     * Streams the values of a single column, without assembling the records.
+     */
+    @Override
+    public Stream<String> column(int colIndex) {
+        Vector vector = vectors.get(colIndex);
+        return IntStream.range(0, size).mapToObj(vector::get);
+    }
+
+    /**
+     * Evaluates the predicate column by column, and assembles only the matching records.
+     */
+    @Override
+    public Stream<Record> select(Predicate where) {
+        IntPredicate match = where.compile(this);
+        int expectedModCount = modCount;
+        return IntStream.range(0, size).filter(match).mapToObj(slot -> {
+            checkForComodification(expectedModCount);
+            return recordAt(slot);
+        });
+    }
+
+    /**
+     * @return A test on the slots whose value in the column is one of the values.
+     */
+    IntPredicate matchAny(int colIndex, Set<String> values) {
+        Vector vector = vectors.get(colIndex);
+        if (vector instanceof CodeVector) {
+            // Compare codes. Values that are not in the dictionary cannot match.
+            CodeVector codeVector = (CodeVector) vector;
+            boolean[] hits = new boolean[codeVector.dictionary.size()];
+            for (String value : values) {
+                int code = codeVector.dictionary.codeOf(value);
+                if (code >= 0) {
+                    hits[code] = true;
+                }
+            }
+            int[] codes = codeVector.codes;
+            return slot -> hits[codes[slot]];
+        }
+
+        return slot -> values.contains(vector.get(slot));
+    }
+
+    /**
+     * @return A test on the slots whose value in the column is in a range.
+     * Columns stored in primitive form compare primitives, others use the fallback test.
+     */
+    IntPredicate matchRange(int colIndex, DataType type, String from, String to,
+                            java.util.function.Predicate<String> fallback) {
+        Vector vector = vectors.get(colIndex);
+        if (!(vector instanceof LongVector) || vector.type() != type) {
+            return match(colIndex, fallback);
+        }
+
+        LongVector longs = (LongVector) vector;
+        long lo = from == null ? 0 : type.encode(from);
+        long hi = to == null ? 0 : type.encode(to);
+        return slot -> !longs.blanks.get(slot) &&
+                (from == null || type.compareEncoded(longs.values[slot], lo) >= 0) &&
+                (to == null || type.compareEncoded(longs.values[slot], hi) <= 0);
+    }
+
+    @Override
+    public LongStream longs(int colIndex, DataType type) {
+        Vector vector = vectors.get(colIndex);
+        if (vector instanceof LongVector) {
+            LongVector longs = (LongVector) vector;
+            return IntStream.range(0, size).filter(slot -> !longs.blanks.get(slot)).mapToLong(slot -> longs.values[slot]);
+        }
+
+        return RecordStore.super.longs(colIndex, type);
+    }
+
+    @Override
+    public DoubleStream doubles(int colIndex, DataType type) {
+        Vector vector = vectors.get(colIndex);
+        if (vector instanceof LongVector) {
+            LongVector longs = (LongVector) vector;
+            return IntStream.range(0, size).filter(slot -> !longs.blanks.get(slot))
+                    .mapToDouble(slot -> type.toDouble(longs.values[slot]));
+        }
+
+        return RecordStore.super.doubles(colIndex, type);
+    }
+
+    /**
+     * @return A test on the value of a column at a slot.
+     */
+    IntPredicate match(int colIndex, java.util.function.Predicate<String> test) {
+        Vector vector = vectors.get(colIndex);
+        return slot -> test.test(vector.get(slot));
+    }
+
+    // Helper Functions
+
+    private Record recordAt(int slot) {
+        String[] values = new String[vectors.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = vectors.get(i).get(slot);
+        }
+
+        return new Record(values);
+    }
+
+    private void write(int colIndex, int slot, String value) {
+        Vector vector = vectors.get(colIndex);
+        if (vector instanceof FillVector) {
+            if (Objects.equals(vector.fill(), value)) {
+                return;
+            }
+
+            // First write to the column, give it its own array
+            vector = ((FillVector) vector).materialize(size, capacity);
+            vectors.set(colIndex, vector);
+        }
+
+        vector.set(slot, value);
+    }
+
+    private void grow(int newCapacity) {
+        keys = Arrays.copyOf(keys, newCapacity);
+        for (Vector vector : vectors) {
+            vector.grow(newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    private void checkForComodification(int expectedModCount) {
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    // Column vectors
+
+    private static abstract class Vector {
+        abstract String get(int slot);
+
+        abstract void set(int slot, String value);
+
+        /**
+         * Copies the value of one slot to another.
+         */
+        abstract void move(int from, int to);
+
+        abstract void grow(int capacity);
+
+        /**
+         * @return The value of a new row in the column.
+         */
+        String fill() {
+            return " ";
+        }
+
+        /**
+         * @return The column's dictionary, or null if it's not encoded.
+         */
+        Dictionary dictionary() {
+            return null;
+        }
+
+        DataType type() {
+            return DataType.STRING;
+        }
+    }
+
+    /**
+     * A column that holds the same value in every row.
+     */
+    private static class FillVector extends Vector {
+        private final String fill;
+        private final Dictionary dictionary;
+        private final DataType type;
+
+        FillVector(String fill, Dictionary dictionary, DataType type) {
+            this.fill = fill;
+            this.dictionary = dictionary;
+            this.type = type;
+        }
+
+        @Override
+        String get(int slot) {
+            return fill;
+        }
+
+        @Override
+        void set(int slot, String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        void move(int from, int to) {
+        }
+
+        @Override
+        void grow(int capacity) {
+        }
+
+        @Override
+        String fill() {
+            return fill;
+        }
+
+        @Override
+        Dictionary dictionary() {
+            return dictionary;
+        }
+
+        @Override
+        DataType type() {
+            return type;
+        }
+
+        /**
+         * @return A vector that can hold a different value in each row.
+         */
+        Vector materialize(int size, int capacity) {
+            Vector vector;
+            if (dictionary != null) {
+                vector = new CodeVector(dictionary, capacity);
+            } else if (type.isPrimitive()) {
+                vector = new LongVector(type, capacity);
+            } else {
+                vector = new StringVector(capacity);
+            }
+            for (int slot = 0; slot < size; slot++) {
+                vector.set(slot, fill);
+            }
+
+            return vector;
+        }
+    }
+
+    private static class StringVector extends Vector {
+        private String[] values;
+
+        StringVector(int capacity) {
+            values = new String[capacity];
+        }
+
+        @Override
+        String get(int slot) {
+            return values[slot];
+        }
+
+        @Override
+        void set(int slot, String value) {
+            values[slot] = value;
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            values[from] = null;
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    private static class CodeVector extends Vector {
+        private final Dictionary dictionary;
+        private int[] codes;
+
+        CodeVector(Dictionary dictionary, int capacity) {
+            this.dictionary = dictionary;
+            codes = new int[capacity];
+        }
+
+        @Override
+        String get(int slot) {
+            return dictionary.decode(codes[slot]);
+        }
+
+        @Override
+        void set(int slot, String value) {
+            codes[slot] = dictionary.encode(value);
+        }
+
+        @Override
+        void move(int from, int to) {
+            codes[to] = codes[from];
+        }
+
+        @Override
+        void grow(int capacity) {
+            codes = Arrays.copyOf(codes, capacity);
+        }
+
+        @Override
+        Dictionary dictionary() {
+            return dictionary;
+        }
+    }
+
+    /**
+     * A column of a primitive type. Blank fields are flagged in a bit set.
+     */
+    private static class LongVector extends Vector {
+        private final DataType type;
+        private long[] values;
+        private final BitSet blanks;
+
+        LongVector(DataType type, int capacity) {
+            this.type = type;
+            values = new long[capacity];
+            blanks = new BitSet();
+        }
+
+        @Override
+        String get(int slot) {
+            return blanks.get(slot) ? "" : type.decode(values[slot]);
+        }
+
+        @Override
+        void set(int slot, String value) {
+            if (DataType.isBlank(value)) {
+                blanks.set(slot);
+            } else {
+                values[slot] = type.encode(value);
+                blanks.clear(slot);
+            }
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            blanks.set(to, blanks.get(from));
+            blanks.clear(from);
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        String fill() {
+            return "";
+        }
+
+        @Override
+        DataType type() {
+            return type;
+        }
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        ColumnarRecordStore store = new ColumnarRecordStore();
+        store.addField(0, new Column("Id"), " ");
+        store.addField(1, new Column("Value"), " ");
+
+        for (int i = 0; i < 100; i++) {
+            store.put(Integer.toString(i), new Record(Integer.toString(i), "v" + i));
+        }
+        assert(store.size() == 100);
+        assert(store.get("42").getValue(1).equals("v42"));
+
+        // Records are copies
+        store.get("42").setValue(1, "changed");
+        assert(store.get("42").getValue(1).equals("v42"));
+        store.setValue("42", 1, "changed");
+        assert(store.get("42").getValue(1).equals("changed"));
+
+        // Added columns hold their fill value until written
+        store.addField(1, new Column("Value"), " ");
+        assert(store.get("7").size() == 3 && store.get("7").getValue(1).equals(" "));
+        assert(store.get("7").getValue(2).equals("v7"));
+        store.setValue("7", 1, "x");
+        assert(store.get("7").getValue(1).equals("x") && store.get("8").getValue(1).equals(" "));
+
+        store.dropField(2);
+        assert(store.get("7").size() == 2 && store.get("7").getValue(1).equals("x"));
+
+        // Remove moves the last record into the hole
+        assert(store.remove("0").getValue(0).equals("0"));
+        assert(store.get("99").getValue(0).equals("99"));
+        assert(store.column(0).count() == 99);
+        assert(store.column(1).filter(v -> v.equals("x")).count() == 1);
+
+        store.clear();
+        assert(store.size() == 0 && store.values().count() == 0);
+        store.put("a", new Record("a", "b"));
+        assert(store.get("a").getValue(1).equals("b"));
+    }
+
+    private static void test_dictionary_encoding() {
+        ColumnarRecordStore store = new ColumnarRecordStore();
+        store.addField(0, new Column("Id"), " ");
+        store.addField(1, new Column("Value"), " ");
+        String[] counties = {"Bristol", "London", "Essex"};
+        for (int i = 0; i < 30; i++) {
+            store.put(Integer.toString(i), new Record(Integer.toString(i), counties[i % 3]));
+        }
+
+        // Encode an existing column
+        Dictionary dictionary = new Dictionary();
+        store.encodeField(1, dictionary);
+        assert(dictionary.size() == 3);
+        assert(store.get("4").getValue(1).equals("London"));
+        assert(store.select(Predicate.eq(1, "London")).count() == 10);
+        assert(store.select(Predicate.in(1, "London", "Essex", "York")).count() == 20);
+        assert(store.select(Predicate.eq(1, "York")).count() == 0);
+
+        // Writes and removes keep the codes in place
+        store.setValue("4", 1, "York");
+        assert(dictionary.size() == 4 && store.get("4").getValue(1).equals("York"));
+        store.remove("0");
+        assert(store.get("29").getValue(1).equals("Essex"));
+        assert(store.select(Predicate.eq(1, "Bristol")).count() == 9);
+
+        // Encoded added columns
+        store.addField(2, new Column("Flag"), " ");
+        Dictionary flags = new Dictionary();
+        store.encodeField(2, flags);
+        store.setValue("5", 2, "yes");
+        assert(store.get("5").getValue(2).equals("yes") && store.get("6").getValue(2).equals(" "));
+        assert(store.select(Predicate.isEmpty(2)).count() == 28);
+    }
+
+    private static void test_primitive_columns() {
+        ColumnarRecordStore store = new ColumnarRecordStore();
+        store.addField(0, new Column("Id"), " ");
+        store.addField(1, new Column("Price", DataType.DOUBLE), "");
+        store.addField(2, new Column("Stock", DataType.INT), "");
+        for (int i = 0; i < 10; i++) {
+            store.put(Integer.toString(i), new Record(Integer.toString(i), i + ".5", i % 2 == 0 ? "" : Integer.toString(i)));
+        }
+
+        assert(store.get("3").getValue(1).equals("3.5") && store.get("3").getValue(2).equals("3"));
+        assert(store.get("4").getValue(2).equals(""));
+        assert(store.doubles(1, DataType.DOUBLE).sum() == 50.0);
+        assert(store.longs(2, DataType.INT).sum() == 25);
+
+        // Ranges compare primitives, blanks never match
+        assert(store.select(Predicate.range(2, "3", "7").bind(new Column[] {
+                new Column("Id"), new Column("Price", DataType.DOUBLE), new Column("Stock", DataType.INT)})).count() == 3);
+
+        store.remove("1");
+        assert(store.get("9").getValue(2).equals("9"));
+        assert(store.longs(2, DataType.INT).sum() == 24);
+    }
+
+    public static void main(String[] args) {
+        test();
+        test_dictionary_encoding();
+        test_primitive_columns();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * A record store that can be used by several threads at once.
+ * Tables backed by a ConcurrentRecordStore run in concurrent mode: writes lock only
+ * the stripes of the values they touch, and reads do not lock at all.
+ * Records are never changed in place. Writing a field replaces the record with a
+ * changed copy, so a reader sees either the old or the new record.
+ * Streams are weakly consistent: they never throw a ConcurrentModificationException,
+ * and may or may not see the records written while they run. Records are not kept
+ * in insertion order.
+ */
+public class ConcurrentRecordStore implements RecordStore {
+    private final ConcurrentHashMap<String, Record> records;
+
+    ConcurrentRecordStore() {
+        records = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public Record get(String key) {
+        return records.get(key);
+    }
+
+    @Override
+    public void put(String key, Record r) {
+        records.put(key, r);
+    }
+
+    @Override
+    public void setValue(String key, int colIndex, String value) {
+        records.computeIfPresent(key, (k, r) -> {
+            Record copy = r.copy();
+            copy.setValue(colIndex, value);
+            return copy;
+        });
+    }
+
+    @Override
+    public Record remove(String key) {
+        return records.remove(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return records.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return records.size();
+    }
+
+    @Override
+    public void clear() {
+        records.clear();
+    }
+
+    @Override
+    public Stream<Map.Entry<String, Record>> entries() {
+        return records.entrySet().stream();
+    }
+
+    @Override
+    public Stream<Record> values() {
+        return records.values().stream();
+    }
+}
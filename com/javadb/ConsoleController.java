@@ -25,55 +25,57 @@ public class ConsoleController {
             return;
         }
 
-        // Compute the width of each column
-        int[] colWidth = computeColWidth(t);
-
-        // First row contains the column names
-        Column[] columns = t.getColumns();
-        String[] colNames = new String[t.columns()];
-        for(int i = 0; i<t.columns(); i++) {
-            colNames[i] = columns[i].getName();
-        }
-        consoleView.printRow(colNames, colWidth);
+        // Both passes read the same snapshot, so the widths fit the rows printed
+        // even if the table is written in between
+        try (Table.Snapshot snapshot = t.snapshot()) {
+            // Compute the width of each column
+            Column[] columns = t.getColumns();
+            int[] colWidth = computeColWidth(columns, snapshot);
+
+            // First row contains the column names
+            String[] colNames = new String[columns.length];
+            for(int i = 0; i<columns.length; i++) {
+                colNames[i] = columns[i].getName();
+            }
+            consoleView.printRow(colNames, colWidth);
 
-        // Display rows
-        t.getRows().forEach(entry -> {
-            Record r = entry.getValue();
-            consoleView.printRow(r.getValues(), colWidth);
-        });
+            // Display rows
+            snapshot.getRows().forEach(entry -> {
+                Record r = entry.getValue();
+                consoleView.printRow(r.getValues(), colWidth);
+            });
 
-        // Closing table border
-        consoleView.printTableBorder(colWidth);
+            // Closing table border
+            consoleView.printTableBorder(colWidth);
+        }
     }
 
     /**
      * Computes the column width in chars for a table.
-     * Goes through all the records in a table and finds
+     * Goes through all the records in a snapshot of the table and finds
      * the longest value in each column.
-     * @param t
+     * @param columns The table's columns.
+     * @param snapshot
      * @return An array containing the width of each column.
      */
-    private int[] computeColWidth(Table t) {
-        if (t == null) {
+    private int[] computeColWidth(Column[] columns, Table.Snapshot snapshot) {
+        if (snapshot == null) {
             throw new NullPointerException();
         }
 
         // Calculate the width of each column by finding how many chars is the longest string
-        int[] maxWidth = new int[t.columns()];
+        int[] maxWidth = new int[columns.length];
 
         // Start by column names
-        Column[] columns = t.getColumns();
-        for (int i = 0; i < t.columns(); i++) {
+        for (int i = 0; i < columns.length; i++) {
             maxWidth[i] = columns[i].getName().length();
         }
 
-        // Go trough fields by column
-        t.getRows().forEach(entry -> {
-            Record r = entry.getValue();
-
-            for(int i=0; i < t.columns(); i++) {
-                if (r.getValue(i).length() > maxWidth[i]) {
-                    maxWidth[i] = r.getValue(i).length();
+        // Go trough fields by column. Snapshot streams run sequentially
+        snapshot.scan(null, null).forEach(values -> {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].length() > maxWidth[i]) {
+                    maxWidth[i] = values[i].length();
                 }
             }
         });
@@ -6,33 +6,27 @@
 
 package com.javadb;
 
-import java.util.Map;
-import java.util.stream.Stream;
-
 /**
  * Defines the available column constraints and implements the Violates interface for each of them.
  */
 public enum Constraint implements Violates {
     NOT_NULL {
         @Override
-        public boolean isViolated(Stream<Map.Entry<String, Record>> s, String newValue, int colIndex) {
+        public boolean isViolated(Index index, String newValue) {
             return newValue.equals("");
         }
     },
     UNIQUE {
         @Override
-        public boolean isViolated(Stream<Map.Entry<String, Record>> s, String newValue, int colIndex) {
-            return s.anyMatch(entry -> {
-                Record r = entry.getValue();
-                return r.getValue(colIndex).equals(newValue);
-            });
+        public boolean isViolated(Index index, String newValue) {
+            return index.contains(newValue);
         }
     },
     // PK implies UNIQUE and NOT NULL.
     PRIMARY_KEY {
         @Override
-        public boolean isViolated(Stream<Map.Entry<String, Record>> s, String newValue, int colIndex) {
-            return NOT_NULL.isViolated(s, newValue, colIndex) || UNIQUE.isViolated(s, newValue, colIndex);
+        public boolean isViolated(Index index, String newValue) {
+            return NOT_NULL.isViolated(index, newValue) || UNIQUE.isViolated(index, newValue);
         }
     }
 }
@@ -0,0 +1,277 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Defines the available column data types.
+ * Values are validated and converted to a canonical text form when they are written,
+ * e.g. "007" becomes "7" in an INT column. Every type except STRING also has a primitive
+ * form packed in a long, which column oriented stores use instead of the text.
+ * Blank fields are allowed in every type, and stand for a missing value. Use the
+ * NOT_NULL constraint to forbid them.
+ * Each type compares values in its own order, e.g. "9" comes before "10" in an INT column.
+ */
+public enum DataType implements Comparator<String> {
+    INT {
+        @Override
+        long encode(String value) {
+            return Integer.parseInt(value.trim());
+        }
+
+        @Override
+        String decode(long bits) {
+            return Long.toString(bits);
+        }
+    },
+    LONG {
+        @Override
+        long encode(String value) {
+            return Long.parseLong(value.trim());
+        }
+
+        @Override
+        String decode(long bits) {
+            return Long.toString(bits);
+        }
+    },
+    DOUBLE {
+        @Override
+        long encode(String value) {
+            return Double.doubleToLongBits(Double.parseDouble(value.trim()));
+        }
+
+        @Override
+        String decode(long bits) {
+            return Double.toString(Double.longBitsToDouble(bits));
+        }
+
+        @Override
+        double toDouble(long bits) {
+            return Double.longBitsToDouble(bits);
+        }
+
+        @Override
+        int compareEncoded(long a, long b) {
+            return Double.compare(Double.longBitsToDouble(a), Double.longBitsToDouble(b));
+        }
+    },
+    BOOLEAN {
+        @Override
+        long encode(String value) {
+            String v = value.trim();
+            if (v.equalsIgnoreCase("true")) {
+                return 1;
+            } else if (v.equalsIgnoreCase("false")) {
+                return 0;
+            }
+
+            throw new IllegalArgumentException("Not a boolean: " + value);
+        }
+
+        @Override
+        String decode(long bits) {
+            return bits != 0 ? "true" : "false";
+        }
+    },
+    STRING {
+        @Override
+        long encode(String value) {
+            throw new UnsupportedOperationException("Strings have no primitive form.");
+        }
+
+        @Override
+        String decode(long bits) {
+            throw new UnsupportedOperationException("Strings have no primitive form.");
+        }
+
+        @Override
+        public String normalize(String value) {
+            return value;
+        }
+
+        @Override
+        public int compare(String a, String b) {
+            if (a == null || b == null) {
+                return a == null ? (b == null ? 0 : -1) : 1;
+            }
+
+            return a.compareTo(b);
+        }
+    },
+    // ISO-8601 instants, e.g. 2018-03-01T10:15:30Z. Stored as milliseconds since the epoch,
+    // so instants with a finer fraction of a second, or too far from the epoch, are not valid.
+    TIMESTAMP {
+        @Override
+        long encode(String value) {
+            Instant instant;
+            try {
+                instant = Instant.parse(value.trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Not a timestamp: " + value);
+            }
+            if (instant.getNano() % 1000000 != 0) {
+                throw new IllegalArgumentException("Timestamps are stored to the millisecond: " + value);
+            }
+
+            try {
+                return instant.toEpochMilli();
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Timestamp out of range: " + value);
+            }
+        }
+
+        @Override
+        String decode(long bits) {
+            return Instant.ofEpochMilli(bits).toString();
+        }
+    };
+
+    /**
+     * @return The primitive form of a valid, non blank value.
+     * @throws IllegalArgumentException If the value is not valid for the type.
+     */
+    abstract long encode(String value);
+
+    /**
+     * @return The canonical text form of a primitive value.
+     */
+    abstract String decode(long bits);
+
+    /**
+     * @return The primitive value as a double, for arithmetic.
+     */
+    double toDouble(long bits) {
+        return bits;
+    }
+
+    /**
+     * Compares two primitive values.
+     */
+    int compareEncoded(long a, long b) {
+        return Long.compare(a, b);
+    }
+
+    /**
+     * @return True for the types with a primitive form.
+     */
+    public boolean isPrimitive() {
+        return this != STRING;
+    }
+
+    /**
+     * @return The canonical form of the value, or null if it's not a valid value of the type.
+     * Blank values are returned as the empty string.
+     */
+    public String normalize(String value) {
+        if (isBlank(value)) {
+            return "";
+        }
+
+        try {
+            return decode(encode(value));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compares two values of the type. Blank values come first.
+     */
+    @Override
+    public int compare(String a, String b) {
+        boolean aBlank = isBlank(a);
+        boolean bBlank = isBlank(b);
+        if (aBlank || bBlank) {
+            return aBlank ? (bBlank ? 0 : -1) : 1;
+        }
+        if ((this == INT || this == LONG) && isCanonicalInteger(a) && isCanonicalInteger(b)) {
+            // Stored values are canonical, so they compare by sign, length and digits
+            // without being parsed
+            boolean aNegative = a.charAt(0) == '-';
+            if (aNegative != (b.charAt(0) == '-')) {
+                return aNegative ? -1 : 1;
+            }
+            int c = a.length() != b.length() ? Integer.compare(a.length(), b.length()) : a.compareTo(b);
+            return aNegative ? -c : c;
+        }
+
+        return compareEncoded(encode(a), encode(b));
+    }
+
+    /**
+     * @return True if the value is an integer as Long.toString() writes it: no sign
+     * unless negative, and no leading zeros.
+     */
+    private static boolean isCanonicalInteger(String value) {
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        int length = value.length();
+        if (start == length || (value.charAt(start) == '0' && length > 1)) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        // Validation and canonical form
+        assert(INT.normalize("007").equals("7"));
+        assert(INT.normalize("12.5") == null);
+        assert(INT.normalize("3000000000") == null);
+        assert(LONG.normalize("3000000000").equals("3000000000"));
+        assert(DOUBLE.normalize("1.50").equals("1.5"));
+        assert(BOOLEAN.normalize("TRUE").equals("true"));
+        assert(BOOLEAN.normalize("yes") == null);
+        assert(TIMESTAMP.normalize("2018-03-01T10:15:30.000Z").equals("2018-03-01T10:15:30Z"));
+        assert(TIMESTAMP.normalize("yesterday") == null);
+        assert(TIMESTAMP.normalize("2018-03-01T10:15:30.123Z").equals("2018-03-01T10:15:30.123Z"));
+        assert(TIMESTAMP.normalize("2018-03-01T10:15:30.123456Z") == null);
+        assert(TIMESTAMP.normalize("+1000000000-01-01T00:00:00Z") == null);
+        assert(STRING.normalize(" abc ").equals(" abc "));
+
+        // Blank values are missing values
+        assert(INT.normalize(" ").equals(""));
+
+        // Typed order
+        assert(INT.compare("9", "10") < 0);
+        assert(STRING.compare("9", "10") > 0);
+        assert(DOUBLE.compare("-1.5", "0.25") < 0);
+        assert(TIMESTAMP.compare("2018-03-01T10:15:30Z", "2017-03-01T10:15:30Z") > 0);
+        assert(INT.compare("", "-5") < 0);
+        assert(INT.compare("007", "10") < 0 && INT.compare(" 5", "-5") > 0);
+        Random random = new Random(9);
+        for (int i = 0; i < 10000; i++) {
+            long a = random.nextInt(5) == 0 ? 0 : random.nextLong() >> random.nextInt(64);
+            long b = random.nextInt(5) == 0 ? 0 : random.nextLong() >> random.nextInt(64);
+            assert(Integer.signum(LONG.compare(Long.toString(a), Long.toString(b))) == Long.signum(Long.compare(a, b)));
+        }
+
+        // Primitive form
+        assert(DOUBLE.toDouble(DOUBLE.encode("2.5")) == 2.5);
+        assert(LONG.toDouble(LONG.encode("42")) == 42.0);
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
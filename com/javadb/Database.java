@@ -6,23 +6,59 @@
 
 package com.javadb;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
 
 /**
  * A collection of related tables.
  */
 public class Database {
+    private static final int LOAD_THREADS_PER_CORE = 4;
+    // The share of the heap still in use after a garbage collection that counts as memory pressure
+    private static final double MEMORY_PRESSURE = 0.8;
+    // The thresholds are JVM wide, so they are set while any database loads lazily:
+    // the number of such databases, and the thresholds of the pools before the first
+    private static int lazyDatabases;
+    private static Map<MemoryPoolMXBean, Long> previousThresholds;
     private String name;
     private List<Table> tables;
     private StorageEngine storageEngine;
+    // Takes periodic checkpoints. Null unless they are scheduled
+    private ScheduledExecutorService checkpoints;
+    private volatile boolean deltaSaves;
+    private volatile boolean pagedFiles;
+    private volatile boolean lazyLoading;
+    // Set when the heap is still nearly full after a garbage collection
+    private volatile boolean memoryPressure;
+    private NotificationListener memoryListener;
 
     Database(String name) {
         this.name = name;
-        tables = new ArrayList<>();
+        // Tables are added and dropped rarely, and read by every thread
+        tables = new CopyOnWriteArrayList<>();
         storageEngine = new StorageEngine();
     }
 
@@ -34,33 +70,529 @@ public class Database {
         return tables;
     }
 
+    /**
+     * Adds tables to the database. If the database is logged, a checkpoint saves the
+     * new tables, since the log only holds the writes to tables already saved.
+     */
     public void addTable(Table... t) {
         tables.addAll(Arrays.asList(t));
+        if (deltaSaves) {
+            for (Table table : t) {
+                table.trackChangedKeys();
+            }
+        }
+        WriteAheadLog log = getLog();
+        if (log != null) {
+            for (Table table : t) {
+                table.setLog(log);
+            }
+            checkpoint();
+        }
+    }
+
+    /**
+     * Drops a table and releases its records.
+     * @return False if the database has no table with the name.
+     */
+    public boolean dropTable(String tableName) {
+        for (Table t : tables) {
+            if (t.getName().equals(tableName) && tables.remove(t)) {
+                t.setLog(null);
+                t.close();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Starts a transaction over the database's tables.
+     */
+    public Transaction begin() {
+        return new Transaction(this);
     }
 
     /**
-     * Loads all database tables from disk.
+     * Receives the progress of loadDb(), e.g. to report it to a startup probe.
+     * It's called from the threads that load the tables.
+     */
+    public interface LoadProgress {
+        /**
+         * @param loaded The number of table files done so far, including failed ones.
+         * @param total The number of table files to load.
+         */
+        void tableLoaded(String fileName, int loaded, int total);
+
+        default void tableFailed(String fileName, Throwable error) {
+        }
+    }
+
+    /**
+     * Loads all database tables from disk. See loadDb(LoadProgress).
      */
     public void loadDb() {
+        loadDb(null);
+    }
+
+    /**
+     * Loads all database tables from disk, from both CSV and paged table files.
+     * A table saved in both formats is loaded from its paged table file.
+     * The tables are loaded concurrently, and added in the order of their file names.
+     * If some tables fail to load, the others are still loaded, and then a single Error
+     * names every table that failed, with their errors suppressed in it. No table is
+     * added to the database then, and the tables that did load are closed.
+     * If the database was logged, the writes made since the last checkpoint are replayed.
+     * @param progress Called as each table file is done. May be null.
+     */
+    public void loadDb(LoadProgress progress) {
         Path dbDir = FileSystems.getDefault().getPath("Databases", name);
-        try(DirectoryStream<Path> contents = Files.newDirectoryStream(dbDir, "*.csv")) {
+        List<Path> files = new ArrayList<>();
+        try(DirectoryStream<Path> contents = Files.newDirectoryStream(dbDir, "*.{csv,tbl}")) {
             for(Path path : contents ) {
-                Table t = storageEngine.loadTableFile(path.toFile());
-                tables.add(t);
+                String fileName = path.getFileName().toString();
+                if (fileName.endsWith(".csv") && Files.exists(dbDir.resolve(
+                        fileName.substring(0, fileName.length() - 4) + PagedTableFile.EXTENSION))) {
+                    continue;
+                }
+                files.add(path);
             }
         }catch (IOException e) {
             throw new Error("Unable to load database.");
         }
+        Collections.sort(files);
+
+        List<Table> loaded = loadTables(files, progress);
+
+        File logFile = logFile();
+        if (logFile.exists()) {
+            storageEngine.replayLog(logFile, loaded);
+        }
+
+        WriteAheadLog log = getLog();
+        for (Table t : loaded) {
+            t.setLog(log);
+            if (deltaSaves) {
+                t.trackChangedKeys();
+            }
+            if (t.isLazy()) {
+                t.setBeforeLoad(this::relieveMemoryPressure);
+            }
+        }
+        tables.addAll(loaded);
+    }
+
+    /**
+     * Loads table files on a bounded pool of threads. Loading a table is mostly waiting
+     * for the disk, so the pool has more threads than there are cores.
+     * @return The tables, in the order of their files.
+     */
+    private List<Table> loadTables(List<Path> files, LoadProgress progress) {
+        int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors() * LOAD_THREADS_PER_CORE);
+        if (threads == 0) {
+            return new ArrayList<>();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, name + "-load");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger done = new AtomicInteger();
+        List<Future<Table>> futures = new ArrayList<>();
+        for (Path path : files) {
+            String fileName = path.getFileName().toString();
+            futures.add(pool.submit(() -> {
+                try {
+                    Table t = lazyLoading ? storageEngine.openTableFile(path.toFile()) :
+                            storageEngine.loadTableFile(path.toFile());
+                    if (pagedFiles && fileName.endsWith(".csv")) {
+                        t.forceFullSave();
+                    }
+                    if (progress != null) {
+                        progress.tableLoaded(fileName, done.incrementAndGet(), files.size());
+                    }
+                    return t;
+                } catch (RuntimeException | Error e) {
+                    if (progress != null) {
+                        progress.tableFailed(fileName, e);
+                        progress.tableLoaded(fileName, done.incrementAndGet(), files.size());
+                    }
+                    throw e;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        List<Table> tables = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                Table t = futures.get(i).get();
+                // An empty file holds no table
+                if (t != null) {
+                    tables.add(t);
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof VirtualMachineError) {
+                    tables.forEach(Table::close);
+                    throw (VirtualMachineError) e.getCause();
+                }
+                failed.add(files.get(i).getFileName().toString());
+                errors.add(e.getCause());
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+                tables.forEach(Table::close);
+                throw new Error("Interrupted while loading database.");
+            }
+        }
+
+        if (!failed.isEmpty()) {
+            // The loaded tables are not added, so their records are released now
+            tables.forEach(Table::close);
+            Error error = new Error("Unable to load tables: " + String.join(", ", failed) + ".");
+            errors.forEach(error::addSuppressed);
+            throw error;
+        }
+
+        return tables;
     }
 
     /**
-     * Saves all database tables to disk.
+     * Saves the database tables that changed since they were last saved to disk.
+     * With delta saves, a table with few changed rows saves only those rows.
      */
     public void saveDB() {
+        String extension = pagedFiles ? PagedTableFile.EXTENSION : ".csv";
+        for (Table t : tables) {
+            Path path = FileSystems.getDefault().getPath("Databases", name, t.getName() + extension);
+            storageEngine.saveChanges(t, path.toFile());
+        }
+
+    }
+
+    /**
+     * Saves the tables in paged table files, rather than CSV files, from now on.
+     * The paged files are smaller and faster to load, and keep the full schema.
+     * Every table is saved in full on the next save.
+     */
+    public void enablePagedFiles() {
+        pagedFiles = true;
+        for (Table t : tables) {
+            t.forceFullSave();
+        }
+    }
+
+    /**
+     * Saves the tables that changed in a delta file next to the table file, holding
+     * only the rows written since the table was last saved in full, while they are few.
+     * The tables keep track of the keys they write from now on.
+     */
+    public void enableDeltaSaves() {
+        deltaSaves = true;
+        for (Table t : tables) {
+            t.trackChangedKeys();
+        }
+    }
+
+    /**
+     * Opens the tables saved in paged table files without loading their rows, from the
+     * next loadDb() on. A table's rows are loaded the first time they are accessed, but a
+     * single key or the row count is read from the file without loading the table.
+     * Tables are saved in paged table files from now on, see enablePagedFiles().
+     * When the heap is still nearly full after a garbage collection, the tables that are
+     * unchanged since they were last saved are unloaded, the next time a table is loaded.
+     */
+    public synchronized void enableLazyLoading() {
+        lazyLoading = true;
+        enablePagedFiles();
+        if (memoryListener != null) {
+            return;
+        }
+
+        setMemoryThresholds();
+        memoryListener = (notification, handback) -> {
+            if (notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+                memoryPressure = true;
+            }
+        };
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(memoryListener, null, null);
+    }
+
+    /**
+     * Sets a collection usage threshold on the heap pools that have none, if no other
+     * database has.
+     */
+    private static synchronized void setMemoryThresholds() {
+        if (lazyDatabases++ > 0) {
+            return;
+        }
+
+        previousThresholds = new HashMap<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() &&
+                    max > 0 && pool.getCollectionUsageThreshold() == 0) {
+                previousThresholds.put(pool, pool.getCollectionUsageThreshold());
+                pool.setCollectionUsageThreshold((long) (max * MEMORY_PRESSURE));
+            }
+        }
+    }
+
+    /**
+     * Restores the thresholds setMemoryThresholds() changed, once no database loads lazily.
+     */
+    private static synchronized void restoreMemoryThresholds() {
+        if (--lazyDatabases > 0) {
+            return;
+        }
+
+        for (Map.Entry<MemoryPoolMXBean, Long> pair : previousThresholds.entrySet()) {
+            pair.getKey().setCollectionUsageThreshold(pair.getValue());
+        }
+        previousThresholds = null;
+    }
+
+    /**
+     * Unloads the rows of the lazy tables that are unchanged since they were last saved
+     * in full. They are loaded again on access.
+     * @return The number of tables unloaded.
+     */
+    public int unloadTables() {
+        int unloaded = 0;
+        for (Table t : tables) {
+            if (t.unload()) {
+                unloaded++;
+            }
+        }
+
+        return unloaded;
+    }
+
+    /**
+     * Runs before a lazy table is loaded, on the thread that loads it, so that tables
+     * are only unloaded by a thread that uses the database.
+     * The table being loaded, and the tables that may still be read by a stream or
+     * cursor, stay loaded.
+     */
+    private void relieveMemoryPressure(Table loading) {
+        if (memoryPressure) {
+            memoryPressure = false;
+            for (Table t : tables) {
+                if (t != loading && !t.isScanned()) {
+                    t.unload();
+                }
+            }
+        }
+    }
+
+    // Write-Ahead Log
+
+    /**
+     * Logs every write to the database's tables, so that the writes made since the last
+     * checkpoint survive a crash, and are replayed by loadDb().
+     * Call it after loadDb(), and take a checkpoint to save tables that were never saved.
+     * @param policy When the log is synced to disk. With ALWAYS, every write is on disk
+     * when it returns.
+     */
+    public void openLog(WriteAheadLog.SyncPolicy policy) {
+        storageEngine.openLog(logFile(), policy);
+        for (Table t : tables) {
+            t.setLog(getLog());
+        }
+    }
+
+    /**
+     * Saves every table, and drops the writes logged before the save from the log.
+     * Writes go on while the checkpoint runs: the ones logged after it started are kept.
+     */
+    public synchronized void checkpoint() {
+        WriteAheadLog log = getLog();
+        long position = log == null ? 0 : log.position();
+        saveDB();
+        if (log != null) {
+            log.truncate(position);
+        }
+    }
+
+    /**
+     * Takes a checkpoint periodically, in the background, so the log stays short.
+     */
+    public synchronized void scheduleCheckpoints(long period, TimeUnit unit) {
+        if (checkpoints != null) {
+            checkpoints.shutdown();
+        }
+
+        checkpoints = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, name + "-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpoints.scheduleWithFixedDelay(this::checkpoint, period, period, unit);
+    }
+
+    /**
+     * Stops the periodic checkpoints and closes the log. The log is kept for the next loadDb().
+     */
+    public synchronized void close() {
+        if (checkpoints != null) {
+            checkpoints.shutdown();
+            checkpoints = null;
+        }
         for (Table t : tables) {
-            Path path = FileSystems.getDefault().getPath("Databases", name, t.getName() + ".csv");
-            storageEngine.saveTable(t, path.toFile());
+            t.setLog(null);
+        }
+        storageEngine.closeLog();
+        if (memoryListener != null) {
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(memoryListener);
+            } catch (ListenerNotFoundException e) {
+                // Already removed
+            }
+            memoryListener = null;
+            restoreMemoryThresholds();
+        }
+    }
+
+    WriteAheadLog getLog() {
+        return storageEngine.getLog();
+    }
+
+    private File logFile() {
+        return FileSystems.getDefault().getPath("Databases", name, "wal.log").toFile();
+    }
+
+    // Unit Testing
+
+    private static void test_load() {
+        File dir = new File("Databases", "LoadTest");
+        dir.mkdirs();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+
+        StorageEngine storageEngine = new StorageEngine();
+        for (int i = 0; i < 20; i++) {
+            Table t = new Table("t" + (char) ('a' + (i * 7) % 20), new Column("Id", Constraint.PRIMARY_KEY));
+            t.insert(new Record(Integer.toString(i)));
+            String extension = i % 2 == 0 ? ".csv" : PagedTableFile.EXTENSION;
+            storageEngine.saveTable(t, new File(dir, t.getName() + extension));
+        }
+
+        // Tables are added in the order of their file names
+        List<String> progress = new CopyOnWriteArrayList<>();
+        Database db = new Database("LoadTest");
+        db.loadDb((fileName, loaded, total) -> {
+            assert(total == 20);
+            progress.add(loaded + "/" + total);
+        });
+        assert(db.getTables().size() == 20 && progress.size() == 20 && progress.contains("20/20"));
+        for (int i = 0; i < 20; i++) {
+            assert(db.getTables().get(i).getName().equals("t" + (char) ('a' + i)));
         }
 
+        // Every failed table is reported, and the others still load
+        try {
+            Files.write(new File(dir, "tb.tbl").toPath(), new byte[] {1, 2, 3});
+            Files.write(new File(dir, "td.tbl").toPath(), new byte[100]);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        List<String> failed = new CopyOnWriteArrayList<>();
+        AtomicInteger loaded = new AtomicInteger();
+        Database db2 = new Database("LoadTest");
+        try {
+            db2.loadDb(new LoadProgress() {
+                @Override
+                public void tableLoaded(String fileName, int done, int total) {
+                    loaded.incrementAndGet();
+                }
+
+                @Override
+                public void tableFailed(String fileName, Throwable error) {
+                    failed.add(fileName);
+                }
+            });
+            assert(false);
+        } catch (Error e) {
+            assert(e.getMessage().equals("Unable to load tables: tb.tbl, td.tbl."));
+            assert(e.getSuppressed().length == 2);
+        }
+        assert(loaded.get() == 20 && failed.size() == 2 && db2.getTables().isEmpty());
+    }
+
+    private static void test_lazy_load() {
+        File dir = new File("Databases", "LazyTest");
+        dir.mkdirs();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+
+        StorageEngine storageEngine = new StorageEngine();
+        Table people = new Table("people", new Column("Id", DataType.INT, Constraint.PRIMARY_KEY),
+                new Column("Email", Constraint.UNIQUE), new Column("City"));
+        for (int i = 0; i < 3000; i++) {
+            people.insert(new Record(Integer.toString(i), "user" + i + "@mail.com", i % 2 == 0 ? "Bristol" : "London"));
+        }
+        storageEngine.saveTable(people, new File(dir, "people.tbl"));
+        Table cities = new Table("cities", new Column("Name", Constraint.PRIMARY_KEY));
+        cities.insert(new Record("Bristol"));
+        storageEngine.saveTable(cities, new File(dir, "cities.tbl"));
+
+        // Only the schemas are loaded
+        Database db = new Database("LazyTest");
+        db.enableLazyLoading();
+        db.loadDb();
+        Table t = db.getTables().get(1);
+        assert(t.getName().equals("people") && t.isLazy() && !t.isLoaded());
+        assert(t.getColumns()[0].getType() == DataType.INT && t.getColumns()[1].isUnique());
+
+        // Single keys and the row count are read from the file
+        assert(t.select_record("1234").getValue(1).equals("user1234@mail.com"));
+        assert(t.select_record("3000") == null && t.select_record("") == null);
+        assert(t.rows() == 3000 && !t.isLoaded());
+
+        // Rows are loaded on first access, with their indexes
+        assert(!t.insert(new Record("3000", "user5@mail.com", "")));
+        assert(t.isLoaded() && t.rows() == 3000);
+        assert(t.insert(new Record("3000", "user3000@mail.com", "Leeds")));
+
+        // A changed table is only unloaded once it is saved
+        assert(db.unloadTables() == 0);
+        db.saveDB();
+        assert(db.unloadTables() == 1 && !t.isLoaded());
+        assert(t.select_record("3000").getValue(2).equals("Leeds") && t.rows() == 3001);
+
+        // A table with an open snapshot stays loaded
+        Table.Snapshot snapshot = t.snapshot();
+        assert(snapshot.rows() == 3001 && t.isLoaded());
+        assert(db.unloadTables() == 0);
+        snapshot.close();
+
+        // Under memory pressure, loading a table unloads the unchanged ones
+        db.memoryPressure = true;
+        Table c = db.getTables().get(0);
+        assert(c.getRows().count() == 1);
+        assert(c.isLoaded() && !t.isLoaded() && !db.memoryPressure);
+
+        // A table that a stream still reads stays loaded
+        Iterator<Map.Entry<String, Record>> rows = c.getRows().iterator();
+        db.memoryPressure = true;
+        assert(t.getRows().count() == 3001);
+        assert(c.isLoaded() && t.isLoaded() && !db.memoryPressure);
+        assert(rows.next().getKey().equals("Bristol") && !rows.hasNext());
+
+        // The memory thresholds are restored once no database loads lazily
+        db.close();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            assert(!pool.isCollectionUsageThresholdSupported() || pool.getCollectionUsageThreshold() == 0);
+        }
+    }
+
+    public static void main(String[] args) {
+        test_load();
+        test_lazy_load();
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary for low cardinality columns.
+ * Assigns each distinct value an int code, in the order the values are first seen.
+ * Codes are never reused, so a code stays valid for the lifetime of the dictionary.
+ * Dictionaries are shared by the tables of a column, so they are thread safe. Lookups
+ * and decoding never lock, so that parallel scans of an encoded column don't contend.
+ */
+public class Dictionary {
+    // Value -> code. Read without locking; values are added under the dictionary's lock
+    private final Map<String, Integer> codes;
+    // The code of null, which the map cannot hold. -1 if null is not in the dictionary
+    private volatile int nullCode;
+    // Code -> value. An added value is written before the array and the size are
+    // published, so decode() reads the values without locking
+    private volatile String[] values;
+    private volatile int size;
+
+    Dictionary() {
+        codes = new ConcurrentHashMap<>();
+        nullCode = -1;
+        values = new String[16];
+    }
+
+    /**
+     * @return The code of the value. Adds the value to the dictionary if it's new.
+     */
+    public int encode(String value) {
+        int code = codeOf(value);
+        if (code != -1) {
+            return code;
+        }
+
+        synchronized (this) {
+            code = codeOf(value);
+            if (code == -1) {
+                code = size;
+                String[] values = this.values;
+                if (code == values.length) {
+                    values = Arrays.copyOf(values, code * 2);
+                }
+                values[code] = value;
+                this.values = values;
+                size = code + 1;
+                if (value == null) {
+                    nullCode = code;
+                } else {
+                    codes.put(value, code);
+                }
+            }
+        }
+
+        return code;
+    }
+
+    /**
+     * @return The code of the value, or -1 if it's not in the dictionary.
+     */
+    public int codeOf(String value) {
+        if (value == null) {
+            return nullCode;
+        }
+
+        Integer code = codes.get(value);
+        return code == null ? -1 : code;
+    }
+
+    public String decode(int code) {
+        if (code < 0 || code >= size) {
+            throw new IndexOutOfBoundsException("Code: " + code);
+        }
+
+        return values[code];
+    }
+
+    /**
+     * @return The dictionary's own instance of the value, so that equal values
+     * share a single String. Adds the value to the dictionary if it's new.
+     */
+    public String intern(String value) {
+        return decode(encode(value));
+    }
+
+    /**
+     * @return The number of distinct values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A copy of the values, in code order.
+     */
+    public String[] getValues() {
+        int size = this.size;
+        return Arrays.copyOf(values, size);
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        Dictionary dictionary = new Dictionary();
+        assert(dictionary.encode("Bristol") == 0);
+        assert(dictionary.encode("London") == 1);
+        assert(dictionary.encode("Bristol") == 0);
+        assert(dictionary.size() == 2);
+        assert(dictionary.codeOf("London") == 1 && dictionary.codeOf("Essex") == -1);
+        assert(dictionary.decode(1).equals("London"));
+
+        // Equal values share the dictionary's instance
+        String london = new String("London");
+        assert(dictionary.intern(london) == dictionary.decode(1));
+        assert(Arrays.equals(dictionary.getValues(), new String[] {"Bristol", "London"}));
+
+        // Values added while other threads decode are seen whole
+        Dictionary shared = new Dictionary();
+        Table.runConcurrently(4, thread -> {
+            for (int i = 0; i < 5000; i++) {
+                String value = Integer.toString(i);
+                int code = shared.encode(value);
+                assert(shared.decode(code).equals(value) && shared.codeOf(value) == code);
+            }
+        });
+        assert(shared.size() == 5000 && shared.encode(null) == 5000 && shared.decode(5000) == null);
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A hash table of groups and the state of their aggregates, for Table.aggregate().
+ * The groups are found by open addressing, and the states are held in arrays of longs,
+ * a row of slots per group, so adding a record allocates nothing unless it starts a
+ * new group. A parallel aggregation gives each thread a partial aggregation of its own,
+ * and merges the partials when they are done.
+ * When a partial holds more groups than its budget, its groups are spilled to a
+ * temporary file, split into partitions by hash, and the table starts over empty. At
+ * the end, the spilled states of each partition are merged a partition at a time, so
+ * only a partition's groups are held in memory at once.
+ */
+class HashAggregation {
+    // The default budget of groups of a partial aggregation
+    static final int MAX_GROUPS = 1 << 20;
+    private static final int INITIAL_GROUPS = 16;
+    private static final int PARTITIONS = 16;
+
+    private final int[] groupBy;
+    private final Aggregate[] aggregates;
+    private final int maxGroups;
+
+    // Group + 1 per slot, 0 if the slot is empty
+    private int[] slots;
+    private int mask;
+    // The group by values and the hash of each group
+    private String[][] keys;
+    private int[] hashes;
+    // The state of each aggregate of each group, at group * aggregates.length + aggregate
+    private long[] counts;
+    private long[] values;
+    private int groups;
+
+    private final List<Spill> spills;
+
+    /**
+     * @param groupBy The indexes of the columns to group by.
+     * @param aggregates The aggregates, bound to the table.
+     * @param maxGroups The most groups held in memory before they are spilled.
+     */
+    HashAggregation(int[] groupBy, Aggregate[] aggregates, int maxGroups) {
+        this.groupBy = groupBy;
+        this.aggregates = aggregates;
+        this.maxGroups = maxGroups;
+        spills = new ArrayList<>();
+        allocate(INITIAL_GROUPS);
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        keys = new String[capacity][];
+        hashes = new int[capacity];
+        counts = new long[capacity * aggregates.length];
+        values = new long[capacity * aggregates.length];
+        groups = 0;
+    }
+
+    /**
+     * Adds a record to its group.
+     */
+    void add(Record r) {
+        String[] record = r.rawValues();
+        int hash = hash(record);
+        int group = find(record, hash);
+        if (group == -1) {
+            String[] key = new String[groupBy.length];
+            for (int i = 0; i < groupBy.length; i++) {
+                key[i] = record[groupBy[i]];
+            }
+            group = insert(key, hash);
+        }
+
+        int slot = group * aggregates.length;
+        for (int i = 0; i < aggregates.length; i++) {
+            aggregates[i].add(counts, values, slot + i, record);
+        }
+
+        if (groups > maxGroups) {
+            spill();
+        }
+    }
+
+    /**
+     * Merges another partial aggregation into this one.
+     */
+    void merge(HashAggregation other) {
+        spills.addAll(other.spills);
+        for (int group = 0; group < other.groups; group++) {
+            combine(other.keys[group], other.hashes[group], other.counts, other.values, group * aggregates.length);
+        }
+        if (groups > maxGroups) {
+            spill();
+        }
+    }
+
+    /**
+     * Adds the states of a group's aggregates to those of the group in this table.
+     */
+    private void combine(String[] key, int hash, long[] counts, long[] values, int from) {
+        int group = findKey(key, hash);
+        if (group == -1) {
+            group = insert(key, hash);
+        }
+
+        int slot = group * aggregates.length;
+        for (int i = 0; i < aggregates.length; i++) {
+            aggregates[i].combine(this.counts, this.values, slot + i, counts[from + i], values[from + i]);
+        }
+    }
+
+    /**
+     * @return A row per group: the group by values followed by the aggregates.
+     * With no group by columns, there is a single row even if there were no records.
+     */
+    List<String[]> finish() {
+        if (spills.isEmpty()) {
+            if (groups == 0 && groupBy.length == 0) {
+                insert(new String[0], hash(new String[0]));
+            }
+            return results();
+        }
+
+        // Every group is in the spill files from here on
+        spill();
+        List<String[]> results = new ArrayList<>();
+        try {
+            for (int partition = 0; partition < PARTITIONS; partition++) {
+                HashAggregation merged = new HashAggregation(groupBy, aggregates, Integer.MAX_VALUE);
+                for (Spill spill : spills) {
+                    spill.read(partition, merged);
+                }
+                results.addAll(merged.results());
+            }
+        } finally {
+            for (Spill spill : spills) {
+                spill.file.delete();
+            }
+            spills.clear();
+        }
+
+        return results;
+    }
+
+    private List<String[]> results() {
+        List<String[]> results = new ArrayList<>(groups);
+        for (int group = 0; group < groups; group++) {
+            String[] row = Arrays.copyOf(keys[group], groupBy.length + aggregates.length);
+            int slot = group * aggregates.length;
+            for (int i = 0; i < aggregates.length; i++) {
+                row[groupBy.length + i] = aggregates[i].result(counts[slot + i], values[slot + i]);
+            }
+            results.add(row);
+        }
+
+        return results;
+    }
+
+    // Hash Table
+
+    /**
+     * @return The hash of a record's group by values.
+     */
+    private int hash(String[] record) {
+        int h = 1;
+        for (int colIndex : groupBy) {
+            h = 31 * h + Objects.hashCode(record[colIndex]);
+        }
+
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The group of a record, or -1 if it has none yet.
+     */
+    private int find(String[] record, int hash) {
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int group = slots[slot] - 1;
+            if (hashes[group] == hash && matches(keys[group], record)) {
+                return group;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean matches(String[] key, String[] record) {
+        for (int i = 0; i < groupBy.length; i++) {
+            if (!Objects.equals(key[i], record[groupBy[i]])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The group with the given group by values, or -1 if there is none.
+     */
+    private int findKey(String[] key, int hash) {
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int group = slots[slot] - 1;
+            if (hashes[group] == hash && Arrays.equals(keys[group], key)) {
+                return group;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Adds a new group, with empty states.
+     */
+    private int insert(String[] key, int hash) {
+        if (groups == keys.length) {
+            grow();
+        }
+
+        int group = groups++;
+        keys[group] = key;
+        hashes[group] = hash;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = group + 1;
+
+        return group;
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        counts = Arrays.copyOf(counts, capacity * aggregates.length);
+        values = Arrays.copyOf(values, capacity * aggregates.length);
+
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        for (int group = 0; group < groups; group++) {
+            int slot = hashes[group] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = group + 1;
+        }
+    }
+
+    // Spilling
+
+    /**
+     * @return The partition of a group. It uses the high bits of the hash, and the
+     * hash table the low bits.
+     */
+    private static int partition(int hash) {
+        return hash >>> 28 & (PARTITIONS - 1);
+    }
+
+    /**
+     * Writes the groups to a temporary file, a partition after the other, and empties the table.
+     */
+    private void spill() {
+        if (groups == 0) {
+            return;
+        }
+
+        // Sort the groups by partition
+        int[] partitionGroups = new int[PARTITIONS];
+        for (int group = 0; group < groups; group++) {
+            partitionGroups[partition(hashes[group])]++;
+        }
+        int[] starts = new int[PARTITIONS];
+        for (int p = 1; p < PARTITIONS; p++) {
+            starts[p] = starts[p - 1] + partitionGroups[p - 1];
+        }
+        int[] order = new int[groups];
+        int[] next = starts.clone();
+        for (int group = 0; group < groups; group++) {
+            order[next[partition(hashes[group])]++] = group;
+        }
+
+        Spill spill;
+        try {
+            spill = new Spill(File.createTempFile("aggregate", ".spill"), partitionGroups);
+        } catch (IOException e) {
+            throw new Error("Unable to create spill file.");
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill.file)))) {
+            for (int p = 0; p < PARTITIONS; p++) {
+                spill.offsets[p] = out.size();
+                for (int i = starts[p]; i < starts[p] + partitionGroups[p]; i++) {
+                    int group = order[i];
+                    for (String value : keys[group]) {
+                        writeString(out, value);
+                    }
+                    out.writeInt(hashes[group]);
+                    int slot = group * aggregates.length;
+                    for (int a = 0; a < aggregates.length; a++) {
+                        out.writeLong(counts[slot + a]);
+                        out.writeLong(values[slot + a]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            spill.file.delete();
+            throw new Error("Unable to write spill file.");
+        }
+
+        spills.add(spill);
+        allocate(INITIAL_GROUPS);
+    }
+
+    /**
+     * The groups spilled to a file, and where each partition starts.
+     */
+    private static class Spill {
+        final File file;
+        final int[] partitionGroups;
+        // DataOutputStream.size() is an int, so a spill file stays under 2GB
+        final int[] offsets;
+
+        Spill(File file, int[] partitionGroups) {
+            this.file = file;
+            this.partitionGroups = partitionGroups;
+            offsets = new int[PARTITIONS];
+        }
+
+        /**
+         * Merges the groups of a partition into a table.
+         */
+        void read(int partition, HashAggregation into) {
+            int width = into.aggregates.length;
+            long[] counts = new long[width];
+            long[] values = new long[width];
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.position(offsets[partition]);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                for (int i = 0; i < partitionGroups[partition]; i++) {
+                    String[] key = new String[into.groupBy.length];
+                    for (int k = 0; k < key.length; k++) {
+                        key[k] = readString(in);
+                    }
+                    int hash = in.readInt();
+                    for (int a = 0; a < width; a++) {
+                        counts[a] = in.readLong();
+                        values[a] = in.readLong();
+                    }
+                    into.combine(key, hash, counts, values, 0);
+                }
+            } catch (IOException e) {
+                throw new Error("Unable to read spill file.");
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Unit Testing
+
+    private static Map<String, List<String>> byGroup(List<String[]> rows) {
+        return rows.stream().collect(Collectors.toMap(row -> row[0], row -> Arrays.asList(row).subList(1, row.length)));
+    }
+
+    private static void test() {
+        Column[] columns = {
+                new Column("Id", DataType.INT, Constraint.PRIMARY_KEY),
+                new Column("City"),
+                new Column("Price", DataType.DOUBLE),
+                new Column("Stock", DataType.INT),
+        };
+        Aggregate[] aggregates = {
+                Aggregate.count().bind(columns), Aggregate.count(3).bind(columns), Aggregate.sum(3).bind(columns),
+                Aggregate.min(2).bind(columns), Aggregate.max(3).bind(columns), Aggregate.avg(2).bind(columns),
+        };
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            records.add(new Record(Integer.toString(i), "City " + i % 1000, Double.toString(i / 2.0),
+                    i % 10 == 0 ? "" : Integer.toString(i % 7)));
+        }
+
+        HashAggregation inMemory = new HashAggregation(new int[] {1}, aggregates, MAX_GROUPS);
+        records.forEach(inMemory::add);
+        Map<String, List<String>> expected = byGroup(inMemory.finish());
+        assert(expected.size() == 1000);
+        // City 3: ids 3, 1003, ..., 9003
+        assert(expected.get("City 3").equals(Arrays.asList("10", "10",
+                Integer.toString(IntStream.range(0, 10).map(i -> (3 + 1000 * i) % 7).sum()), "1.5", "6", "2251.5")));
+        // City 0: every stock is blank
+        assert(expected.get("City 0").get(1).equals("0") && expected.get("City 0").get(2) == null);
+
+        // Partials that spill, merged, give the same groups
+        HashAggregation first = new HashAggregation(new int[] {1}, aggregates, 100);
+        HashAggregation second = new HashAggregation(new int[] {1}, aggregates, 100);
+        records.subList(0, 5000).forEach(first::add);
+        records.subList(5000, 10000).forEach(second::add);
+        assert(!first.spills.isEmpty() && first.groups <= 100);
+        first.merge(second);
+        List<Spill> spills = new ArrayList<>(first.spills);
+        assert(byGroup(first.finish()).equals(expected));
+        assert(spills.stream().noneMatch(spill -> spill.file.exists()));
+
+        // Null group values, and no group by columns
+        HashAggregation nulls = new HashAggregation(new int[] {1}, aggregates, 1);
+        nulls.add(new Record("1", null, "1.0", "1"));
+        nulls.add(new Record("2", null, "2.0", "1"));
+        nulls.add(new Record("3", "x", "2.0", "1"));
+        Map<String, List<String>> nullGroups = byGroup(nulls.finish());
+        assert(nullGroups.get(null).get(0).equals("2") && nullGroups.get("x").get(0).equals("1"));
+        List<String[]> total = new HashAggregation(new int[0], aggregates, MAX_GROUPS).finish();
+        assert(total.size() == 1 && total.get(0)[0].equals("0") && total.get(0)[3] == null);
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The default record store. Holds the records in a Linked HashMap,
+ * so records are returned in insertion order.
+ */
+public class HashRecordStore implements RecordStore {
+    private Map<String, Record> records;
+    // Number of records the map was last sized for
+    private int capacity;
+
+    HashRecordStore() {
+        records = new LinkedHashMap<>();
+    }
+
+    @Override
+    public Record get(String key) {
+        return records.get(key);
+    }
+
+    @Override
+    public void put(String key, Record r) {
+        records.put(key, r);
+    }
+
+    @Override
+    public Record remove(String key) {
+        return records.remove(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return records.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return records.size();
+    }
+
+    @Override
+    public void clear() {
+        records.clear();
+    }
+
+    @Override
+    public void ensureCapacity(int size) {
+        if (size <= Math.max(capacity, records.size())) {
+            return;
+        }
+
+        // Rehash once into a map with the final capacity. At least double it,
+        // so that a series of small batches does not rehash every time.
+        capacity = Math.max(size, 2 * Math.max(capacity, records.size()));
+        Map<String, Record> resized = new LinkedHashMap<>(Index.capacityFor(capacity));
+        resized.putAll(records);
+        records = resized;
+    }
+
+    @Override
+    public Stream<Map.Entry<String, Record>> entries() {
+        return records.entrySet().stream();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A hash index on a single column.
+ * Maps each column value to the keys of the records that hold it, so that
+ * lookups and uniqueness checks run in constant time instead of scanning the table.
+ * A value held by a single record maps directly to its key. A Set of keys is only
+ * allocated when a value is shared, which keeps unique indexes compact.
+ * A concurrent index can be read and changed by several threads at once, and
+ * each add or remove of a key is atomic.
+ */
+public class Index {
+    // Value -> key (String) or keys (Set<String>)
+    private Map<String, Object> entries;
+    private final boolean concurrent;
+    // Number of values the map was last sized for
+    private int capacity;
+
+    Index() {
+        this(false);
+    }
+
+    Index(boolean concurrent) {
+        this.concurrent = concurrent;
+        entries = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+    }
+
+    /**
+     * @return True if at least one record holds the value.
+     */
+    public boolean contains(String value) {
+        return entries.containsKey(value);
+    }
+
+    /**
+     * @return The keys of the records holding the value. Empty if there are none.
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> get(String value) {
+        Object keys = entries.get(value);
+        if (keys == null) {
+            return Collections.emptySet();
+        }
+        if (keys instanceof String) {
+            return Collections.singleton((String) keys);
+        }
+
+        return Collections.unmodifiableSet((Set<String>) keys);
+    }
+
+    /**
+     * @return The number of distinct values in the index.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    void add(String value, String key) {
+        entries.compute(value, (v, keys) -> {
+            if (keys == null) {
+                return key;
+            } else if (keys instanceof String) {
+                if (keys.equals(key)) {
+                    return keys;
+                }
+
+                Set<String> keySet = concurrent ? ConcurrentHashMap.newKeySet() : new LinkedHashSet<>();
+                keySet.add((String) keys);
+                keySet.add(key);
+                return keySet;
+            }
+
+            ((Set<String>) keys).add(key);
+            return keys;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    void remove(String value, String key) {
+        entries.computeIfPresent(value, (v, keys) -> {
+            if (keys instanceof String) {
+                return keys.equals(key) ? null : keys;
+            }
+
+            Set<String> keySet = (Set<String>) keys;
+            keySet.remove(key);
+            // Fall back to a single key once the value is no longer shared
+            return keySet.size() == 1 ? keySet.iterator().next() : keySet;
+        });
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Grows the index ahead of a bulk insert, so that it can hold the given number
+     * of values without resizing.
+     */
+    void ensureCapacity(int size) {
+        // A concurrent map grows without blocking its readers
+        if (concurrent || size <= Math.max(capacity, entries.size())) {
+            return;
+        }
+
+        capacity = Math.max(size, 2 * Math.max(capacity, entries.size()));
+        Map<String, Object> resized = new HashMap<>(capacityFor(capacity));
+        resized.putAll(entries);
+        entries = resized;
+    }
+
+    /**
+     * @return The initial capacity of a hash map that holds the given number of entries.
+     */
+    static int capacityFor(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        Index index = new Index();
+        index.add("Bristol", "0");
+        index.add("London", "1");
+        assert(index.contains("Bristol"));
+        assert(index.get("London").equals(Collections.singleton("1")));
+        assert(!index.contains("Essex"));
+        assert(index.get("Essex").isEmpty());
+
+        // Shared values
+        index.add("Bristol", "2");
+        assert(index.get("Bristol").size() == 2);
+        assert(index.size() == 2);
+
+        index.remove("Bristol", "0");
+        assert(index.get("Bristol").equals(Collections.singleton("2")));
+        index.remove("Bristol", "2");
+        assert(!index.contains("Bristol"));
+
+        // Removing a key that does not hold the value is a no-op
+        index.remove("London", "5");
+        assert(index.contains("London"));
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
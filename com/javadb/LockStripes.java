@@ -0,0 +1,79 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The locks of a concurrent table.
+ * A write locks the stripes of the column values it checks and changes, e.g. the
+ * record's key and its unique values, so writes to different records run in parallel
+ * while two writes of the same unique value are serialized. Stripes are always locked
+ * in ascending order, so two writes that need overlapping stripes cannot deadlock.
+ * Writes also hold the table lock shared. Operations that change the schema or the
+ * indexes hold it exclusively, so they never run alongside a write.
+ */
+class LockStripes {
+    private final ReentrantReadWriteLock tableLock;
+    private final ReentrantLock[] stripes;
+
+    /**
+     * @param count The number of stripes. Rounded up to a power of two.
+     */
+    LockStripes(int count) {
+        tableLock = new ReentrantReadWriteLock();
+        stripes = new ReentrantLock[Integer.highestOneBit(Math.max(count - 1, 1)) * 2];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    void lockShared() {
+        tableLock.readLock().lock();
+    }
+
+    void unlockShared() {
+        tableLock.readLock().unlock();
+    }
+
+    void lockExclusive() {
+        tableLock.writeLock().lock();
+    }
+
+    void unlockExclusive() {
+        tableLock.writeLock().unlock();
+    }
+
+    /**
+     * @return The stripe that guards a value of a column.
+     */
+    int stripeOf(Column c, String value) {
+        int h = 31 * c.hashCode() + (value == null ? 0 : value.hashCode());
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    /**
+     * Locks a set of stripes, in ascending order.
+     * @return The locked stripes, to pass to unlock().
+     */
+    int[] lock(int... stripeIndexes) {
+        int[] sorted = Arrays.stream(stripeIndexes).sorted().distinct().toArray();
+        for (int stripe : sorted) {
+            stripes[stripe].lock();
+        }
+
+        return sorted;
+    }
+
+    void unlock(int[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            stripes[locked[i]].unlock();
+        }
+    }
+}
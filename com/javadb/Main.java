@@ -17,8 +17,25 @@ public class Main {
         String[] testArgs = {};
         if (ea) {System.out.println("Running tests...");}
         Table.main(testArgs);
+        Index.main(testArgs);
+        HashAggregation.main(testArgs);
+        BTreeRecordStore.main(testArgs);
+        BulkInsert.main(testArgs);
+        ChunkedRecordStore.main(testArgs);
+        ColumnarRecordStore.main(testArgs);
+        Dictionary.main(testArgs);
+        DataType.main(testArgs);
+        OffHeapRecordStore.main(testArgs);
+        BufferPool.main(testArgs);
+        PagedRecordStore.main(testArgs);
+        Transaction.main(testArgs);
+        WriteAheadLog.main(testArgs);
         StorageEngine.main(testArgs);
+        Database.main(testArgs);
         CSVutils.main(testArgs);
+        CSVReader.main(testArgs);
+        CSVWriter.main(testArgs);
+        ParallelCSVReader.main(testArgs);
         if (ea) {System.out.println("All tests passed.\n");}
         System.out.println("Table printing:\n");
         ConsoleController.main(testArgs);
@@ -0,0 +1,809 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A record store that keeps its records outside the Java heap, so that large tables
+ * do not add to garbage collection pauses.
+ * Records are encoded as bytes and appended to direct buffers of 1MB ("slabs").
+ * The key -> row index is an open addressing hash table, also held in a direct buffer.
+ * A record is only decoded into a Record object when it's read, and the Record is a
+ * copy: changing it does not change the store. Use Table.update() to change a record.
+ * Replacing a record with a larger one moves it to the end of the slabs, and leaves
+ * the old row behind as garbage. The slabs are compacted when the garbage outgrows
+ * the records, after a remove, or after a move unless a stream of the rows is running.
+ * The memory is freed by clear() and close(), instead of waiting for the garbage
+ * collector. Streams are fail-fast like those of the chunked store, and a stream
+ * must not run on one thread while another thread modifies the store.
+ */
+public class OffHeapRecordStore implements RecordStore {
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int INITIAL_SLOTS = 16;
+
+    // Row layout: int body capacity, byte state, then the body:
+    // varint key length, key bytes, varint schema version, varint field count,
+    // and a varint length and bytes per field
+    private static final int HEADER = 5;
+    // A moved row holds the address of its new row, so a body has room for at least a long
+    private static final int MIN_BODY = 8;
+    private static final byte LIVE = 1;
+    private static final byte MOVED = 2;
+    private static final byte REMOVED = 3;
+
+    // Frees direct buffers on demand. Null if the JVM doesn't allow it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Direct buffers are freed by the garbage collector instead
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final List<ByteBuffer> slabs;
+    // The end of the rows in each full slab, and in the last slab
+    private final List<Integer> slabEnds;
+    private int top;
+
+    // Pairs of longs: row address + 1, and key hash. An address of 0 marks an empty slot
+    private ByteBuffer indexBuffer;
+    private LongBuffer index;
+    private int mask;
+
+    private int size;
+    private long liveBytes;
+    private long deadBytes;
+    // Counts structural modifications. Volatile, so a scan on another thread sees them.
+    private volatile int modCount;
+    // The walks of the rows started, and not finished, since the structural modification
+    // walkModCount counts. A walk that a structural modification ends is not counted
+    private int openWalks;
+    private int walkModCount;
+    private boolean closed;
+
+    OffHeapRecordStore() {
+        slabs = new ArrayList<>();
+        slabEnds = new ArrayList<>();
+        allocateIndex(INITIAL_SLOTS);
+    }
+
+    @Override
+    public Record get(String key) {
+        checkOpen();
+        int slot = find(bytes(key), hash(key));
+        return slot < 0 ? null : decode(addressAt(slot));
+    }
+
+    @Override
+    public void put(String key, Record r) {
+        checkOpen();
+        byte[] keyBytes = bytes(key);
+        int hash = hash(key);
+        byte[] body = encode(keyBytes, r);
+
+        int slot = find(keyBytes, hash);
+        if (slot >= 0) {
+            // Overwrite the row if the new record fits, otherwise move it
+            long old = addressAt(slot);
+            if (body.length <= capacityOf(old)) {
+                write(old, body);
+                return;
+            }
+
+            long address = allocate(body.length);
+            write(address, body);
+            setState(old, MOVED);
+            slab(old).putLong(offset(old) + HEADER, address);
+            liveBytes -= HEADER + capacityOf(old);
+            deadBytes += HEADER + capacityOf(old);
+            index.put(2 * slot, address + 1);
+
+            // Replacing a record does not end a walk, so the rows are not moved under one
+            if (deadBytes > SLAB_SIZE && deadBytes > liveBytes && !isWalking()) {
+                compact();
+            }
+            return;
+        }
+
+        if ((size + 1) * 2 > index.capacity() / 2) {
+            allocateIndex(index.capacity());
+            slot = find(keyBytes, hash);
+        }
+
+        long address = allocate(body.length);
+        write(address, body);
+        index.put(2 * (-1 - slot), address + 1);
+        index.put(2 * (-1 - slot) + 1, hash);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Record remove(String key) {
+        checkOpen();
+        int slot = find(bytes(key), hash(key));
+        if (slot < 0) {
+            return null;
+        }
+
+        long address = addressAt(slot);
+        Record r = decode(address);
+        setState(address, REMOVED);
+        liveBytes -= HEADER + capacityOf(address);
+        deadBytes += HEADER + capacityOf(address);
+        deleteSlot(slot);
+        size--;
+        modCount++;
+
+        if (deadBytes > SLAB_SIZE && deadBytes > liveBytes) {
+            compact();
+        }
+
+        return r;
+    }
+
+    @Override
+    public void setValue(String key, int colIndex, String value) {
+        Record r = get(key);
+        r.setValue(colIndex, value);
+        put(key, r);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        checkOpen();
+        return find(bytes(key), hash(key)) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes every record and frees the slabs.
+     */
+    @Override
+    public void clear() {
+        checkOpen();
+        freeSlabs();
+        free(indexBuffer);
+        indexBuffer = null;
+        index = null;
+        allocateIndex(INITIAL_SLOTS);
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Frees all of the store's memory. The store cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        freeSlabs();
+        free(indexBuffer);
+        indexBuffer = null;
+        index = null;
+        size = 0;
+        closed = true;
+        modCount++;
+    }
+
+    @Override
+    public void ensureCapacity(int size) {
+        checkOpen();
+        if (size * 2 > index.capacity() / 2) {
+            allocateIndex(Integer.highestOneBit(size * 2 - 1) * 2);
+        }
+    }
+
+    /**
+     * Values are held as bytes, so there are no String instances to share.
+     */
+    @Override
+    public void encodeField(int colIndex, Dictionary dictionary) {
+    }
+
+    @Override
+    public Stream<Map.Entry<String, Record>> entries() {
+        return rows().mapToObj(address -> new AbstractMap.SimpleEntry<>(readKey(address), decode(address)));
+    }
+
+    @Override
+    public Stream<Record> values() {
+        return rows().mapToObj(this::decode);
+    }
+
+    /**
+     * Decodes only the column's field of each record.
+     */
+    @Override
+    public Stream<String> column(int colIndex) {
+        return rows().mapToObj(address -> readField(address, colIndex));
+    }
+
+    /**
+     * @return A stream of the addresses of the live rows.
+     */
+    private LongStream rows() {
+        checkOpen();
+        return StreamSupport.longStream(Spliterators.spliterator(new RowIterator(), size,
+                Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    // Rows
+
+    /**
+     * @return True if a walk of the rows runs, which a compaction would break.
+     */
+    private boolean isWalking() {
+        return walkModCount == modCount && openWalks > 0;
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32));
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private int capacityOf(long address) {
+        return slab(address).getInt(offset(address));
+    }
+
+    private byte stateOf(long address) {
+        return slab(address).get(offset(address) + 4);
+    }
+
+    private void setState(long address, byte state) {
+        slab(address).put(offset(address) + 4, state);
+    }
+
+    /**
+     * @return The address of a new live row, with room for a body of the given length.
+     */
+    private long allocate(int length) {
+        int capacity = Math.max(length, MIN_BODY);
+        int rowSize = HEADER + capacity;
+        if (slabs.isEmpty() || top + rowSize > slabs.get(slabs.size() - 1).capacity()) {
+            if (!slabs.isEmpty()) {
+                slabEnds.set(slabs.size() - 1, top);
+            }
+            slabs.add(ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, rowSize)));
+            slabEnds.add(0);
+            top = 0;
+        }
+
+        long address = address(slabs.size() - 1, top);
+        ByteBuffer slab = slabs.get(slabs.size() - 1);
+        slab.putInt(top, capacity);
+        slab.put(top + 4, LIVE);
+        top += rowSize;
+        slabEnds.set(slabs.size() - 1, top);
+        liveBytes += rowSize;
+
+        return address;
+    }
+
+    private void write(long address, byte[] body) {
+        ByteBuffer b = slab(address).duplicate();
+        b.position(offset(address) + HEADER);
+        b.put(body);
+    }
+
+    /**
+     * @return A buffer positioned at the body of a row.
+     */
+    private ByteBuffer body(long address) {
+        ByteBuffer b = slab(address).duplicate();
+        b.position(offset(address) + HEADER);
+        return b;
+    }
+
+    static byte[] encode(byte[] key, Record r) {
+        String[] values = r.rawValues();
+        byte[][] fields = new byte[values.length][];
+        int length = varIntSize(key.length) + key.length + varIntSize(r.getVersion()) + varIntSize(values.length);
+        for (int i = 0; i < values.length; i++) {
+            fields[i] = bytes(values[i]);
+            length += varIntSize(fields[i].length) + fields[i].length;
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(length);
+        putVarInt(b, key.length);
+        b.put(key);
+        putVarInt(b, r.getVersion());
+        putVarInt(b, values.length);
+        for (byte[] field : fields) {
+            putVarInt(b, field.length);
+            b.put(field);
+        }
+
+        return b.array();
+    }
+
+    private Record decode(long address) {
+        return decode(body(address));
+    }
+
+    /**
+     * Decodes the body of a row, from the buffer's position.
+     */
+    static Record decode(ByteBuffer b) {
+        skipString(b);
+        int version = getVarInt(b);
+        String[] values = new String[getVarInt(b)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getString(b);
+        }
+
+        Record r = new Record(values);
+        r.setVersion(version);
+        return r;
+    }
+
+    private String readKey(long address) {
+        return getString(body(address));
+    }
+
+    private String readField(long address, int colIndex) {
+        ByteBuffer b = body(address);
+        skipString(b);
+        getVarInt(b);
+        if (colIndex >= getVarInt(b)) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int i = 0; i < colIndex; i++) {
+            skipString(b);
+        }
+
+        return getString(b);
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        ByteBuffer b = body(address);
+        if (getVarInt(b) != key.length) {
+            return false;
+        }
+
+        int position = b.position();
+        for (int i = 0; i < key.length; i++) {
+            if (b.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies the live rows into new slabs, in storage order, and frees the old slabs.
+     * Each old row is overwritten with the address of its copy, to update the index.
+     */
+    private void compact() {
+        List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+        List<Integer> oldEnds = new ArrayList<>(slabEnds);
+        slabs.clear();
+        slabEnds.clear();
+        top = 0;
+        liveBytes = 0;
+        deadBytes = 0;
+
+        for (int s = 0; s < oldSlabs.size(); s++) {
+            ByteBuffer slab = oldSlabs.get(s);
+            int offset = 0;
+            while (offset < oldEnds.get(s)) {
+                int capacity = slab.getInt(offset);
+                if (slab.get(offset + 4) == LIVE) {
+                    ByteBuffer b = slab.duplicate();
+                    b.position(offset + HEADER);
+                    b.limit(offset + HEADER + capacity);
+                    byte[] body = new byte[capacity];
+                    b.get(body);
+
+                    long address = allocate(capacity);
+                    write(address, body);
+                    slab.putLong(offset + HEADER, address);
+                }
+                offset += HEADER + capacity;
+            }
+        }
+
+        for (int slot = 0; slot <= mask; slot++) {
+            long entry = index.get(2 * slot);
+            if (entry != 0) {
+                long old = entry - 1;
+                long address = oldSlabs.get((int) (old >>> 32)).getLong(offset(old) + HEADER);
+                index.put(2 * slot, address + 1);
+            }
+        }
+
+        for (ByteBuffer slab : oldSlabs) {
+            free(slab);
+        }
+
+        modCount++;
+    }
+
+    private void freeSlabs() {
+        for (ByteBuffer slab : slabs) {
+            free(slab);
+        }
+        slabs.clear();
+        slabEnds.clear();
+        top = 0;
+        liveBytes = 0;
+        deadBytes = 0;
+    }
+
+    private static void free(ByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null) {
+            return;
+        }
+
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Left to the garbage collector
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Record store is closed.");
+        }
+    }
+
+    // Key Index
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private long addressAt(int slot) {
+        return index.get(2 * slot) - 1;
+    }
+
+    /**
+     * @return The slot of the key, or -(slot + 1) for the empty slot where it belongs.
+     */
+    private int find(byte[] key, int hash) {
+        int slot = hash & mask;
+        while (true) {
+            long entry = index.get(2 * slot);
+            if (entry == 0) {
+                return -1 - slot;
+            }
+            if ((int) index.get(2 * slot + 1) == hash && keyEquals(entry - 1, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Empties a slot, and shifts back the entries that probed past it,
+     * so that lookups don't need tombstones.
+     */
+    private void deleteSlot(int slot) {
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            long entry = index.get(2 * next);
+            if (entry == 0) {
+                break;
+            }
+
+            int home = (int) index.get(2 * next + 1) & mask;
+            boolean between = slot <= next ? (home > slot && home <= next) : (home > slot || home <= next);
+            if (!between) {
+                index.put(2 * slot, entry);
+                index.put(2 * slot + 1, index.get(2 * next + 1));
+                slot = next;
+            }
+        }
+
+        index.put(2 * slot, 0);
+        index.put(2 * slot + 1, 0);
+    }
+
+    /**
+     * Replaces the index with one of the given number of slots, holding the same entries.
+     */
+    private void allocateIndex(int slots) {
+        ByteBuffer oldBuffer = indexBuffer;
+        LongBuffer old = index;
+
+        indexBuffer = ByteBuffer.allocateDirect(slots * 2 * Long.BYTES);
+        index = indexBuffer.asLongBuffer();
+        mask = slots - 1;
+
+        if (old != null) {
+            for (int i = 0; i < old.capacity(); i += 2) {
+                long entry = old.get(i);
+                if (entry != 0) {
+                    int hash = (int) old.get(i + 1);
+                    int slot = hash & mask;
+                    while (index.get(2 * slot) != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    index.put(2 * slot, entry);
+                    index.put(2 * slot + 1, hash);
+                }
+            }
+            free(oldBuffer);
+        }
+    }
+
+    // Encoding
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String getString(ByteBuffer b) {
+        byte[] bytes = new byte[getVarInt(b)];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void skipString(ByteBuffer b) {
+        int length = getVarInt(b);
+        b.position(b.position() + length);
+    }
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+    static void putVarInt(ByteBuffer b, int value) {
+        while ((value & ~0x7F) != 0) {
+            b.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        b.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer b) {
+        int value = 0;
+        int shift = 0;
+        byte next;
+        do {
+            next = b.get();
+            value |= (next & 0x7F) << shift;
+            shift += 7;
+        } while (next < 0);
+
+        return value;
+    }
+
+    /**
+     * Walks the rows that were in the slabs when it was created, returning the address
+     * of each live record. A record moved to the end of the slabs after the walk started
+     * is returned from its old row, so that it's neither missed nor returned twice.
+     */
+    private class RowIterator implements PrimitiveIterator.OfLong {
+        private final int endSlab;
+        private final int endOffset;
+        private int slab;
+        private int offset;
+        private long next = -1;
+        private int expectedModCount = modCount;
+        private boolean finished;
+
+        RowIterator() {
+            endSlab = slabs.size() - 1;
+            endOffset = top;
+            if (walkModCount != modCount) {
+                walkModCount = modCount;
+                openWalks = 0;
+            }
+            openWalks++;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != -1) {
+                return true;
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            while (slab < endSlab || (slab == endSlab && offset < endOffset)) {
+                if (offset >= slabEnds.get(slab)) {
+                    slab++;
+                    offset = 0;
+                    continue;
+                }
+
+                long address = address(slab, offset);
+                offset += HEADER + capacityOf(address);
+
+                byte state = stateOf(address);
+                if (state == MOVED) {
+                    long moved = slab(address).getLong(offset(address) + HEADER);
+                    if (isBeforeEnd(moved)) {
+                        // The record is returned when the walk reaches its new row
+                        continue;
+                    }
+                    while (stateOf(moved) == MOVED) {
+                        moved = slab(moved).getLong(offset(moved) + HEADER);
+                    }
+                    address = moved;
+                    state = stateOf(address);
+                }
+
+                if (state == LIVE) {
+                    next = address;
+                    return true;
+                }
+            }
+
+            if (!finished) {
+                finished = true;
+                if (walkModCount == expectedModCount) {
+                    openWalks--;
+                }
+            }
+            return false;
+        }
+
+        private boolean isBeforeEnd(long address) {
+            int s = (int) (address >>> 32);
+            return s < endSlab || (s == endSlab && offset(address) < endOffset);
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            long address = next;
+            next = -1;
+            return address;
+        }
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        OffHeapRecordStore store = new OffHeapRecordStore();
+        for (int i = 0; i < 1000; i++) {
+            store.put(Integer.toString(i), new Record(Integer.toString(i), "Name " + i, "Bristol"));
+        }
+        assert(store.size() == 1000);
+        assert(store.get("500").getValue(1).equals("Name 500"));
+        assert(store.get("1000") == null && !store.containsKey("1000"));
+
+        // Records are copies
+        store.get("1").setValue(2, "London");
+        assert(store.get("1").getValue(2).equals("Bristol"));
+
+        // Replacing in place, and with a larger record
+        store.setValue("1", 2, "York");
+        assert(store.get("1").getValue(2).equals("York"));
+        store.put("2", new Record("2", "Name 2", "East Riding of Yorkshire, \u00dcn\u00efc\u00f6d\u00e9"));
+        assert(store.get("2").getValue(2).equals("East Riding of Yorkshire, \u00dcn\u00efc\u00f6d\u00e9"));
+        assert(store.entries().count() == 1000);
+
+        // Rewriting every record while streaming returns each record once
+        store.addField(3, new Column("Country"), "United Kingdom");
+        assert(store.get("999").size() == 4 && store.get("2").getValue(3).equals("United Kingdom"));
+        assert(store.column(1).distinct().count() == 1000);
+        store.dropField(3);
+        assert(store.get("999").size() == 3);
+
+        // Removing
+        assert(store.remove("500").getValue(1).equals("Name 500"));
+        assert(store.remove("500") == null);
+        assert(store.size() == 999 && store.entries().count() == 999);
+        for (int i = 0; i < 1000; i += 2) {
+            store.remove(Integer.toString(i));
+        }
+        assert(store.size() == 500 && store.get("999").getValue(1).equals("Name 999"));
+
+        // Streams are fail-fast
+        boolean failed = false;
+        try {
+            store.entries().forEach(pair -> store.remove(pair.getKey()));
+        } catch (ConcurrentModificationException e) {
+            failed = true;
+        }
+        assert(failed);
+
+        // Garbage is compacted
+        OffHeapRecordStore large = new OffHeapRecordStore();
+        char[] padding = new char[100];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < 20000; i++) {
+            large.put(Integer.toString(i), new Record(Integer.toString(i), new String(padding)));
+        }
+        for (int i = 0; i < 20000; i++) {
+            if (i % 4 != 0) {
+                large.remove(Integer.toString(i));
+            }
+        }
+        // The 20000 rows took 3 slabs
+        assert(large.slabs.size() < 3);
+        assert(large.size() == 5000 && large.get("4000").getValue(1).length() == 100);
+
+        // Garbage left by records that grow is compacted too, but not under a stream
+        OffHeapRecordStore growing = new OffHeapRecordStore();
+        for (int i = 0; i < 5000; i++) {
+            growing.put(Integer.toString(i), new Record(Integer.toString(i), ""));
+        }
+        StringBuilder value = new StringBuilder();
+        for (int round = 0; round < 20; round++) {
+            value.append("0123456789");
+            for (int i = 0; i < 5000; i++) {
+                growing.setValue(Integer.toString(i), 1, value.toString());
+            }
+        }
+        // The live rows take 1 slab, and the moves left 5 slabs of garbage
+        assert(growing.slabs.size() <= 2 && growing.get("4999").getValue(1).equals(value.toString()));
+        value.append("0123456789");
+        growing.entries().forEach(pair -> growing.setValue(pair.getKey(), 1, value.toString()));
+        assert(growing.values().allMatch(r -> r.getValue(1).equals(value.toString())));
+        assert(growing.values().count() == 5000);
+        growing.close();
+
+        // Clear and close free the memory
+        large.clear();
+        assert(large.size() == 0 && large.slabs.isEmpty() && large.get("4") == null);
+        large.put("4", new Record("4", "Four"));
+        large.close();
+        failed = false;
+        try {
+            large.get("4");
+        } catch (IllegalStateException e) {
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
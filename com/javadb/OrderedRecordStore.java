@@ -0,0 +1,36 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A record store that keeps its records sorted by key.
+ * The entries stream returns the records in key order.
+ */
+public interface OrderedRecordStore extends RecordStore {
+    /**
+     * @param from The lowest key, inclusive. Null for no lower bound.
+     * @param to The highest key, inclusive. Null for no upper bound.
+     * @return A stream of the key/record pairs in the range, in key order.
+     */
+    Stream<Map.Entry<String, Record>> range(String from, String to);
+
+    /**
+     * @param from The key to start from, inclusive. Null to start from the first key.
+     * @return An iterator over the key/record pairs in key order.
+     */
+    Iterator<Map.Entry<String, Record>> cursor(String from);
+
+    /**
+     * @return The order of the keys.
+     */
+    Comparator<String> comparator();
+}
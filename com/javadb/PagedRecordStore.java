@@ -0,0 +1,581 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A record store that keeps its records in the pages of a file, so that a table can be
+ * far larger than memory. Only a fixed number of pages are held in memory, in a buffer
+ * pool; the others are read from the file when they are needed, and changed pages are
+ * written back when they are evicted. Create one with StorageEngine.createPagedStore().
+ * The records are kept in a linear hash table: each bucket is a chain of pages, and
+ * when the records outgrow the buckets, the next bucket in turn is split in two. So
+ * the table grows one bucket at a time, and a lookup reads one bucket.
+ * Records are encoded like those of the off-heap store, and a record must fit in a page.
+ * A record is only decoded into a Record object when it's read, and the Record is a
+ * copy: changing it does not change the store. Use Table.update() to change a record.
+ * The table's indexes are still held in memory.
+ * Streams read a bucket at a time, and are fail-fast.
+ */
+public class PagedRecordStore implements RecordStore {
+    private static final int INITIAL_BUCKETS = 4;
+    private static final int PAGE_SIZE = BufferPool.PAGE_SIZE;
+    private static final int NO_PAGE = -1;
+
+    // Page layout: int next page of the bucket, int end of the records, then the records.
+    // A record is a varint length and the body of an off-heap store row
+    private static final int NEXT = 0;
+    private static final int END = 4;
+    private static final int HEADER = 8;
+    // A bucket is split when the records would fill this share of a page per bucket
+    private static final double MAX_LOAD = 0.75;
+
+    private final BufferPool pool;
+    private final File file;
+    // The first page of each bucket
+    private int[] buckets;
+    private int bucketCount;
+    // Buckets below the split pointer have been split in this round. A round doubles the
+    // buckets, from INITIAL_BUCKETS << level
+    private int level;
+    private int splitPointer;
+    private int pageCount;
+    private final Deque<Integer> freePages;
+
+    private int size;
+    private long bytes;
+    private int modCount;
+    private boolean closed;
+
+    PagedRecordStore(BufferPool pool, File file) {
+        this.pool = pool;
+        this.file = file;
+        freePages = new ArrayDeque<>();
+        createBuckets();
+    }
+
+    /**
+     * @return The buffer pool, with the hit, miss and eviction counts.
+     */
+    BufferPool getBufferPool() {
+        return pool;
+    }
+
+    @Override
+    public Record get(String key) {
+        checkOpen();
+        long location = find(bucketOf(key), OffHeapRecordStore.bytes(key));
+        if (location == -1) {
+            return null;
+        }
+
+        int page = page(location);
+        ByteBuffer b = at(pool.pin(page), offset(location));
+        OffHeapRecordStore.getVarInt(b);
+        Record r = OffHeapRecordStore.decode(b);
+        pool.unpin(page, false);
+        return r;
+    }
+
+    @Override
+    public void put(String key, Record r) {
+        checkOpen();
+        byte[] keyBytes = OffHeapRecordStore.bytes(key);
+        byte[] body = OffHeapRecordStore.encode(keyBytes, r);
+        int length = OffHeapRecordStore.varIntSize(body.length) + body.length;
+        if (length > PAGE_SIZE - HEADER) {
+            throw new IllegalArgumentException("Record is too large for a page.");
+        }
+
+        int bucket = bucketOf(key);
+        long location = find(bucket, keyBytes);
+        if (location != -1) {
+            // Overwrite the record if the new one has the same length, otherwise move it
+            int page = page(location);
+            ByteBuffer frame = pool.pin(page);
+            int oldLength = lengthAt(frame, offset(location));
+            if (oldLength == length) {
+                write(frame, offset(location), body);
+                pool.unpin(page, true);
+                return;
+            }
+
+            delete(frame, offset(location), oldLength);
+            pool.unpin(page, true);
+            bytes -= oldLength;
+            insert(bucket, body);
+            bytes += length;
+            return;
+        }
+
+        insert(bucket, body);
+        bytes += length;
+        size++;
+        modCount++;
+
+        if (bytes > MAX_LOAD * (PAGE_SIZE - HEADER) * bucketCount) {
+            split();
+        }
+    }
+
+    @Override
+    public Record remove(String key) {
+        checkOpen();
+        long location = find(bucketOf(key), OffHeapRecordStore.bytes(key));
+        if (location == -1) {
+            return null;
+        }
+
+        int page = page(location);
+        ByteBuffer frame = pool.pin(page);
+        ByteBuffer b = at(frame, offset(location));
+        OffHeapRecordStore.getVarInt(b);
+        Record r = OffHeapRecordStore.decode(b);
+        int length = lengthAt(frame, offset(location));
+        delete(frame, offset(location), length);
+        pool.unpin(page, true);
+
+        bytes -= length;
+        size--;
+        modCount++;
+        return r;
+    }
+
+    @Override
+    public void setValue(String key, int colIndex, String value) {
+        Record r = get(key);
+        r.setValue(colIndex, value);
+        put(key, r);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        checkOpen();
+        return find(bucketOf(key), OffHeapRecordStore.bytes(key)) != -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes every record, and empties the file.
+     */
+    @Override
+    public void clear() {
+        checkOpen();
+        pool.clear();
+        pageCount = 0;
+        freePages.clear();
+        createBuckets();
+        size = 0;
+        bytes = 0;
+        modCount++;
+    }
+
+    /**
+     * Closes and deletes the file. The store cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        pool.close();
+        file.delete();
+        size = 0;
+        closed = true;
+        modCount++;
+    }
+
+    /**
+     * Writes the changed pages back to the file.
+     */
+    public void flush() {
+        checkOpen();
+        pool.flush();
+    }
+
+    /**
+     * Values are held as bytes, so there are no String instances to share.
+     */
+    @Override
+    public void encodeField(int colIndex, Dictionary dictionary) {
+    }
+
+    @Override
+    public Stream<Map.Entry<String, Record>> entries() {
+        checkOpen();
+        return StreamSupport.stream(Spliterators.spliterator(new BucketIterator(), size,
+                Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    // Buckets
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int bucketOf(String key) {
+        int h = hash(key);
+        int base = INITIAL_BUCKETS << level;
+        int bucket = h & (base - 1);
+        if (bucket < splitPointer) {
+            bucket = h & (2 * base - 1);
+        }
+
+        return bucket;
+    }
+
+    private void createBuckets() {
+        buckets = new int[INITIAL_BUCKETS];
+        for (int i = 0; i < INITIAL_BUCKETS; i++) {
+            buckets[i] = newPage();
+        }
+        bucketCount = INITIAL_BUCKETS;
+        level = 0;
+        splitPointer = 0;
+    }
+
+    /**
+     * Splits the bucket at the split pointer: its records are shared between it and a
+     * new bucket at the end, by one more bit of their hash.
+     */
+    private void split() {
+        List<byte[]> bodies = new ArrayList<>();
+        int page = buckets[splitPointer];
+        boolean first = true;
+        while (page != NO_PAGE) {
+            ByteBuffer frame = pool.pin(page);
+            int end = frame.getInt(END);
+            ByteBuffer b = at(frame, HEADER);
+            while (b.position() < end) {
+                byte[] body = new byte[OffHeapRecordStore.getVarInt(b)];
+                b.get(body);
+                bodies.add(body);
+            }
+
+            int next = frame.getInt(NEXT);
+            if (first) {
+                frame.putInt(NEXT, NO_PAGE);
+                frame.putInt(END, HEADER);
+                pool.unpin(page, true);
+            } else {
+                pool.unpin(page, false);
+                freePages.push(page);
+            }
+            page = next;
+            first = false;
+        }
+
+        int base = INITIAL_BUCKETS << level;
+        if (bucketCount == buckets.length) {
+            buckets = Arrays.copyOf(buckets, bucketCount * 2);
+        }
+        buckets[bucketCount++] = newPage();
+        splitPointer++;
+        if (splitPointer == base) {
+            level++;
+            splitPointer = 0;
+        }
+
+        for (byte[] body : bodies) {
+            insert(bucketOf(OffHeapRecordStore.getString(ByteBuffer.wrap(body))), body);
+        }
+    }
+
+    /**
+     * @return The page and offset of a key's record, or -1 if it's not in the bucket.
+     */
+    private long find(int bucket, byte[] key) {
+        int page = buckets[bucket];
+        while (page != NO_PAGE) {
+            ByteBuffer frame = pool.pin(page);
+            int end = frame.getInt(END);
+            int offset = HEADER;
+            while (offset < end) {
+                ByteBuffer b = at(frame, offset);
+                int length = OffHeapRecordStore.getVarInt(b);
+                int bodyStart = b.position();
+                if (keyEquals(b, key)) {
+                    pool.unpin(page, false);
+                    return location(page, offset);
+                }
+                offset = bodyStart + length;
+            }
+
+            int next = frame.getInt(NEXT);
+            pool.unpin(page, false);
+            page = next;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Adds a record to the first page of the bucket with room for it, or to a new page
+     * at the end of the bucket.
+     */
+    private void insert(int bucket, byte[] body) {
+        int length = OffHeapRecordStore.varIntSize(body.length) + body.length;
+        int page = buckets[bucket];
+        while (true) {
+            ByteBuffer frame = pool.pin(page);
+            int end = frame.getInt(END);
+            if (PAGE_SIZE - end >= length) {
+                write(frame, end, body);
+                frame.putInt(END, end + length);
+                pool.unpin(page, true);
+                return;
+            }
+
+            int next = frame.getInt(NEXT);
+            if (next == NO_PAGE) {
+                next = newPage();
+                frame.putInt(NEXT, next);
+                pool.unpin(page, true);
+            } else {
+                pool.unpin(page, false);
+            }
+            page = next;
+        }
+    }
+
+    /**
+     * @return An empty page, from the pages freed by splits or from the end of the file.
+     */
+    private int newPage() {
+        int page = freePages.isEmpty() ? pageCount++ : freePages.pop();
+        ByteBuffer frame = pool.pinNew(page);
+        frame.putInt(NEXT, NO_PAGE);
+        frame.putInt(END, HEADER);
+        pool.unpin(page, true);
+        return page;
+    }
+
+    // Pages
+
+    private static long location(int page, int offset) {
+        return ((long) page << 32) | offset;
+    }
+
+    private static int page(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    /**
+     * @return A buffer over a frame, positioned at an offset.
+     */
+    private static ByteBuffer at(ByteBuffer frame, int offset) {
+        ByteBuffer b = frame.duplicate();
+        b.position(offset);
+        return b;
+    }
+
+    /**
+     * @return The length of the record at an offset, with its length prefix.
+     */
+    private static int lengthAt(ByteBuffer frame, int offset) {
+        ByteBuffer b = at(frame, offset);
+        int length = OffHeapRecordStore.getVarInt(b);
+        return b.position() - offset + length;
+    }
+
+    private static void write(ByteBuffer frame, int offset, byte[] body) {
+        ByteBuffer b = at(frame, offset);
+        OffHeapRecordStore.putVarInt(b, body.length);
+        b.put(body);
+    }
+
+    /**
+     * Removes a record from a page, and moves back the records after it.
+     */
+    private static void delete(ByteBuffer frame, int offset, int length) {
+        int end = frame.getInt(END);
+        byte[] rest = new byte[end - offset - length];
+        at(frame, offset + length).get(rest);
+        at(frame, offset).put(rest);
+        frame.putInt(END, end - length);
+    }
+
+    private static boolean keyEquals(ByteBuffer body, byte[] key) {
+        if (OffHeapRecordStore.getVarInt(body) != key.length) {
+            return false;
+        }
+
+        int position = body.position();
+        for (int i = 0; i < key.length; i++) {
+            if (body.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Record store is closed.");
+        }
+    }
+
+    /**
+     * Walks the buckets, decoding the records of a bucket at a time. A record replaced
+     * while the walk is on its bucket has already been read, so it's not returned twice.
+     */
+    private class BucketIterator implements Iterator<Map.Entry<String, Record>> {
+        private final int expectedModCount = modCount;
+        private int bucket;
+        private Iterator<Map.Entry<String, Record>> records = Collections.emptyIterator();
+
+        @Override
+        public boolean hasNext() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            while (!records.hasNext()) {
+                if (bucket == bucketCount) {
+                    return false;
+                }
+                records = readBucket(bucket++).iterator();
+            }
+
+            return true;
+        }
+
+        @Override
+        public Map.Entry<String, Record> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return records.next();
+        }
+
+        private List<Map.Entry<String, Record>> readBucket(int bucket) {
+            List<Map.Entry<String, Record>> entries = new ArrayList<>();
+            int page = buckets[bucket];
+            while (page != NO_PAGE) {
+                ByteBuffer frame = pool.pin(page);
+                int end = frame.getInt(END);
+                ByteBuffer b = at(frame, HEADER);
+                while (b.position() < end) {
+                    int length = OffHeapRecordStore.getVarInt(b);
+                    int next = b.position() + length;
+                    String key = OffHeapRecordStore.getString(at(b, b.position()));
+                    entries.add(new AbstractMap.SimpleEntry<>(key, OffHeapRecordStore.decode(b)));
+                    b.position(next);
+                }
+
+                int next = frame.getInt(NEXT);
+                pool.unpin(page, false);
+                page = next;
+            }
+
+            return entries;
+        }
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        File file = new File("Databases", "PagedStoreTest.pages");
+        PagedRecordStore store = new StorageEngine().createPagedStore(file, 8);
+        for (int i = 0; i < 20000; i++) {
+            store.put(Integer.toString(i), new Record(Integer.toString(i), "Name " + i, "Bristol"));
+        }
+        assert(store.size() == 20000);
+        assert(store.get("500").getValue(1).equals("Name 500"));
+        assert(store.get("20000") == null && !store.containsKey("20000"));
+
+        // The records take many more pages than the pool holds
+        BufferPool pool = store.getBufferPool();
+        assert(store.pageCount > 10 * pool.frames() && pool.evictions() > 0 && pool.writeBacks() > 0);
+        long hits = pool.hits();
+        store.get("42");
+        store.get("42");
+        assert(pool.hits() > hits);
+
+        // Records are copies
+        store.get("1").setValue(2, "London");
+        assert(store.get("1").getValue(2).equals("Bristol"));
+
+        // Replacing in place, and with a larger record
+        store.setValue("1", 2, "Leeds");
+        assert(store.get("1").getValue(2).equals("Leeds"));
+        store.put("2", new Record("2", "Name 2", "East Riding of Yorkshire, \u00dcn\u00efc\u00f6d\u00e9"));
+        assert(store.get("2").getValue(2).equals("East Riding of Yorkshire, \u00dcn\u00efc\u00f6d\u00e9"));
+        assert(store.entries().count() == 20000);
+        assert(store.values().filter(r -> r.getValue(2).equals("Leeds")).count() == 1);
+
+        // Rewriting every record while streaming returns each record once
+        store.addField(3, new Column("Country"), "United Kingdom");
+        assert(store.get("19999").size() == 4 && store.get("2").getValue(3).equals("United Kingdom"));
+        assert(store.column(1).distinct().count() == 20000);
+        store.dropField(3);
+        assert(store.get("19999").size() == 3);
+
+        // Removing
+        assert(store.remove("500").getValue(1).equals("Name 500"));
+        assert(store.remove("500") == null);
+        assert(store.size() == 19999 && store.entries().count() == 19999);
+        for (int i = 0; i < 20000; i += 2) {
+            store.remove(Integer.toString(i));
+        }
+        assert(store.size() == 10000 && store.get("19999").getValue(1).equals("Name 19999"));
+
+        // A record must fit in a page
+        boolean failed = false;
+        try {
+            store.put("big", new Record("big", new String(new char[PAGE_SIZE])));
+        } catch (IllegalArgumentException e) {
+            failed = true;
+        }
+        assert(failed && !store.containsKey("big"));
+
+        // Streams are fail-fast
+        failed = false;
+        try {
+            store.entries().forEach(pair -> store.remove(pair.getKey()));
+        } catch (ConcurrentModificationException e) {
+            failed = true;
+        }
+        assert(failed);
+
+        // Clear empties the file, and close deletes it
+        store.clear();
+        assert(store.size() == 0 && store.get("19999") == null && store.entries().count() == 0);
+        store.put("4", new Record("4", "Four"));
+        assert(store.get("4").getValue(1).equals("Four"));
+        store.close();
+        assert(!file.exists());
+        failed = false;
+        try {
+            store.get("4");
+        } catch (IllegalStateException e) {
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
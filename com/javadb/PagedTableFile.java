@@ -0,0 +1,695 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A binary table file, made of fixed size pages.
+ * The first pages hold the header: the table's full schema, i.e. the name, type and
+ * constraints of every column, and the dictionaries of encoded columns. The data pages
+ * that follow hold whole rows, one field after the other, in key order. A row too large
+ * for a page gets a run of pages of its own. The page directory at the end of the file
+ * lists the runs of pages, with their row counts and first keys, so that a single key
+ * is found by reading one run. The last bytes of the file point to the directory.
+ * Text fields are prefixed with their length, fields of primitive types are stored in
+ * their primitive form, and fields of encoded columns as their dictionary code, so
+ * nothing is escaped or parsed when the file is read.
+ * A table with a compression level is written in blocks of rows of up to 64 KB
+ * instead, each compressed on its own with a Deflater, and the directory holds the
+ * position and length of each block. So the blocks are decompressed in parallel when
+ * the table is loaded, and a single key is found by decompressing one block.
+ * The runs of pages, or blocks, are independent, and are decoded in parallel.
+ */
+class PagedTableFile {
+    static final String EXTENSION = ".tbl";
+    static final int PAGE_SIZE = 8192;
+    private static final int MAGIC = 0x4A444254;
+    private static final int VERSION = 1;
+    // The directory position, the checksum and the magic number
+    private static final int TRAILER = 20;
+    // The row count at the start of each run of pages
+    private static final int PAGE_HEADER = 4;
+    // The magic number, version, page size and compression level at the start of the file
+    private static final int FILE_HEADER = 16;
+    // The most bytes of runs mapped as one buffer, which a buffer's int positions can reach
+    static final long SEGMENT_SIZE = Integer.MAX_VALUE;
+    // The most bytes of rows in a compressed block, unless a single row is larger
+    static final int BLOCK_SIZE = 1 << 16;
+
+    // Tags of primitive fields
+    private static final byte NULL = 0;
+    private static final byte BLANK = 1;
+    private static final byte VALUE = 2;
+    private static final byte TEXT = 3;
+    // Codes of dictionary encoded fields. Larger ones are dictionary codes plus CODE
+    private static final int CODE_NULL = 0;
+    private static final int CODE_TEXT = 1;
+    private static final int CODE = 2;
+
+    /**
+     * Writes the rows of a snapshot of a table, in key order.
+     * @return The checksum of the file's contents, which is stored in the file.
+     */
+    static long write(Table t, Table.Snapshot snapshot, OutputStream out) throws IOException {
+        Column[] columns = t.getColumns();
+        CRC32 checksum = new CRC32();
+        Writer writer = new Writer(columns, t.getCompressionLevel(), new CheckedOutputStream(out, checksum));
+        try {
+            writer.writeHeader();
+            List<Map.Entry<String, Record>> rows = snapshot.getRows()
+                    .sorted(Map.Entry.comparingByKey())
+                    .collect(Collectors.toList());
+            for (Map.Entry<String, Record> pair : rows) {
+                writer.writeRow(pair.getKey(), pair.getValue().rawValues());
+            }
+            writer.writeDirectory();
+        } finally {
+            writer.end();
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+        trailer.putLong(writer.directoryPosition()).putLong(checksum.getValue()).putInt(MAGIC);
+        out.write(trailer.array());
+        out.flush();
+        return checksum.getValue();
+    }
+
+    /**
+     * @return The table file mapped into memory.
+     */
+    static Contents open(File file) throws IOException {
+        return open(file, SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize The most bytes of runs mapped as one buffer. A buffer is indexed
+     * by int, so a file larger than that is mapped as several, each holding whole runs.
+     */
+    static Contents open(File file, long segmentSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new Contents(channel, segmentSize);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        if (position < 0 || length < 0 || position + length > channel.size()) {
+            throw new IOException("Not a table file.");
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Unsupported table file.");
+        }
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /**
+     * The schema and directory of a table file, read from its header and directory
+     * pages, and the rows, read on demand.
+     */
+    static class Contents {
+        // The runs, mapped in segments, and the segment and position of each run within it
+        private final ByteBuffer[] segments;
+        private final int[] segmentOf;
+        private final int[] offsets;
+        private final Column[] columns;
+        private final int pkColIndex;
+        private final DataType[] types;
+        // The values of the dictionaries of encoded columns, in code order
+        private final String[][] dictionaries;
+        private final int compressionLevel;
+        // The position of each run of pages or block, its length in the file and its
+        // length once decompressed
+        private final long[] positions;
+        private final int[] storedLengths;
+        private final int[] lengths;
+        // The row count and first key of each run
+        private final int[] runRows;
+        private final String[] firstKeys;
+        private final long checksum;
+
+        private Contents(FileChannel channel, long segmentSize) throws IOException {
+            long size = channel.size();
+            if (size < FILE_HEADER + TRAILER) {
+                throw new IOException("Not a table file.");
+            }
+            ByteBuffer end = map(channel, size - TRAILER, TRAILER);
+            ByteBuffer in = map(channel, 0, FILE_HEADER);
+            if (end.getInt(TRAILER - 4) != MAGIC || in.getInt() != MAGIC) {
+                throw new IOException("Not a table file.");
+            }
+            if (in.getInt() != VERSION || in.getInt() != PAGE_SIZE) {
+                throw new IOException("Unsupported table file.");
+            }
+            compressionLevel = in.getInt();
+
+            // Directory
+            long directoryPosition = end.getLong(0);
+            in = map(channel, directoryPosition, size - TRAILER - directoryPosition);
+            int runs = in.getInt();
+            positions = new long[runs];
+            storedLengths = new int[runs];
+            lengths = new int[runs];
+            runRows = new int[runs];
+            firstKeys = new String[runs];
+            for (int i = 0; i < runs; i++) {
+                positions[i] = in.getLong();
+                storedLengths[i] = in.getInt();
+                lengths[i] = in.getInt();
+                runRows[i] = in.getInt();
+                firstKeys[i] = getString(in);
+            }
+
+            // Header, in the pages before the first run
+            in = map(channel, 0, runs == 0 ? directoryPosition : positions[0]);
+            in.position(FILE_HEADER);
+            columns = new Column[in.getInt()];
+            int pk = 0;
+            for (int i = 0; i < columns.length; i++) {
+                String columnName = getString(in);
+                DataType type = DataType.valueOf(getString(in));
+                Constraint[] constraints = new Constraint[(int) getVarint(in)];
+                for (int j = 0; j < constraints.length; j++) {
+                    constraints[j] = Constraint.valueOf(getString(in));
+                    if (constraints[j] == Constraint.PRIMARY_KEY) {
+                        pk = i;
+                    }
+                }
+                columns[i] = new Column(columnName, type, constraints);
+
+                int dictionarySize = (int) getVarint(in) - 1;
+                if (dictionarySize >= 0) {
+                    Dictionary dictionary = new Dictionary();
+                    for (int j = 0; j < dictionarySize; j++) {
+                        dictionary.encode(getString(in));
+                    }
+                    columns[i].setDictionary(dictionary);
+                }
+            }
+            pkColIndex = pk;
+
+            types = new DataType[columns.length];
+            dictionaries = new String[columns.length][];
+            for (int i = 0; i < columns.length; i++) {
+                types[i] = columns[i].getType();
+                if (columns[i].isDictionaryEncoded()) {
+                    dictionaries[i] = columns[i].getDictionary().getValues();
+                }
+            }
+
+            // Runs, as few segments as hold them. The runs are in file order
+            List<ByteBuffer> mapped = new ArrayList<>();
+            segmentOf = new int[runs];
+            offsets = new int[runs];
+            int first = 0;
+            while (first < runs) {
+                long start = positions[first];
+                int last = first;
+                while (last + 1 < runs && positions[last + 1] + storedLengths[last + 1] - start <= segmentSize) {
+                    last++;
+                }
+                for (int i = first; i <= last; i++) {
+                    segmentOf[i] = mapped.size();
+                    offsets[i] = (int) (positions[i] - start);
+                }
+                mapped.add(map(channel, start, positions[last] + storedLengths[last] - start));
+                first = last + 1;
+            }
+            segments = mapped.toArray(new ByteBuffer[0]);
+
+            checksum = end.getLong(8);
+        }
+
+        /**
+         * @return A new, empty table with the file's schema, with the columns in file order.
+         */
+        Table newTable(String name) {
+            // The constructor puts the PK column first, so the others are added around it
+            Table t = new Table(name, columns[pkColIndex]);
+            for (int i = 0; i < columns.length; i++) {
+                if (i != pkColIndex) {
+                    t.addColumn(i, columns[i]);
+                }
+            }
+            t.setCompressionLevel(compressionLevel);
+            return t;
+        }
+
+        /**
+         * @return The checksum of the file's contents, as returned by write().
+         */
+        long checksum() {
+            return checksum;
+        }
+
+        long rows() {
+            long rows = 0;
+            for (int count : runRows) {
+                rows += count;
+            }
+
+            return rows;
+        }
+
+        /**
+         * @return Every row, decoded in parallel, in file order.
+         */
+        List<Record> readAll() {
+            return IntStream.range(0, positions.length).parallel()
+                    .mapToObj(this::readRun)
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * @return The row with a key, read from the one run of pages that may hold it.
+         * Null if there is none.
+         */
+        Record find(String key) {
+            // The last run whose first key is not after the key
+            int low = 0;
+            int high = firstKeys.length - 1;
+            int run = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (firstKeys[mid].compareTo(key) <= 0) {
+                    run = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (run == -1) {
+                return null;
+            }
+
+            for (Record r : readRun(run)) {
+                if (key.equals(r.getValue(pkColIndex))) {
+                    return r;
+                }
+            }
+
+            return null;
+        }
+
+        private List<Record> readRun(int run) {
+            ByteBuffer in = segments[segmentOf[run]].duplicate();
+            in.position(offsets[run]);
+            if (compressionLevel != Deflater.NO_COMPRESSION) {
+                in = inflate(in, run);
+            }
+            int count = in.getInt();
+            List<Record> rows = new ArrayList<>(count);
+            for (int row = 0; row < count; row++) {
+                String[] values = new String[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    if (dictionaries[i] != null) {
+                        values[i] = getCode(in, dictionaries[i]);
+                    } else {
+                        values[i] = types[i].isPrimitive() ? getPrimitive(in, types[i]) : getString(in);
+                    }
+                }
+                rows.add(new Record(values));
+            }
+
+            return rows;
+        }
+
+        /**
+         * @return The decompressed block, from the file positioned at its start.
+         */
+        private ByteBuffer inflate(ByteBuffer in, int run) {
+            byte[] stored = new byte[storedLengths[run]];
+            in.get(stored);
+            byte[] block = new byte[lengths[run]];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored);
+                int length = 0;
+                while (length < block.length && !inflater.finished()) {
+                    int n = inflater.inflate(block, length, block.length - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length != block.length) {
+                    throw new Error("Unable to decompress block " + run + ".");
+                }
+            } catch (DataFormatException e) {
+                throw new Error("Unable to decompress block " + run + ".");
+            } finally {
+                inflater.end();
+            }
+
+            return ByteBuffer.wrap(block);
+        }
+    }
+
+    /**
+     * Writes a table file page by page, or block by block if it is compressed.
+     */
+    private static class Writer {
+        private final Column[] columns;
+        private final int compressionLevel;
+        private final OutputStream out;
+        // Null if the file is not compressed
+        private final Deflater deflater;
+        private final byte[] compressed;
+        // The dictionaries of encoded columns, as they were when the header was written
+        private final Dictionary[] dictionaries;
+        private final int[] dictionarySizes;
+        // The rows of the current page or block, after its row count
+        private final ByteBuffer page;
+        // The encoded row, until it is placed on a page
+        private ByteBuffer row;
+        private long position;
+        private int pageRows;
+        private String pageFirstKey;
+        // The position, stored length, length and row count of each run of pages or block,
+        // and their first keys
+        private final List<long[]> directory;
+        private final List<String> firstKeys;
+
+        Writer(Column[] columns, int compressionLevel, OutputStream out) {
+            this.columns = columns;
+            this.compressionLevel = compressionLevel;
+            this.out = out;
+            if (compressionLevel == Deflater.NO_COMPRESSION) {
+                deflater = null;
+                compressed = null;
+                page = ByteBuffer.allocate(PAGE_SIZE);
+            } else {
+                deflater = new Deflater(compressionLevel);
+                compressed = new byte[PAGE_SIZE];
+                page = ByteBuffer.allocate(BLOCK_SIZE);
+            }
+            dictionaries = new Dictionary[columns.length];
+            dictionarySizes = new int[columns.length];
+            row = ByteBuffer.allocate(PAGE_SIZE);
+            directory = new ArrayList<>();
+            firstKeys = new ArrayList<>();
+        }
+
+        void writeHeader() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(PAGE_SIZE).putInt(compressionLevel).putInt(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                Column c = columns[i];
+                header = putString(header, c.getName());
+                header = putString(header, c.getType().name());
+                header = putVarint(header, c.getConstraints().size());
+                for (Constraint constraint : c.getConstraints()) {
+                    header = putString(header, constraint.name());
+                }
+
+                if (c.isDictionaryEncoded()) {
+                    String[] values = c.getDictionary().getValues();
+                    dictionaries[i] = c.getDictionary();
+                    dictionarySizes[i] = values.length;
+                    header = putVarint(header, values.length + 1);
+                    for (String value : values) {
+                        header = putString(header, value);
+                    }
+                } else {
+                    header = putVarint(header, 0);
+                }
+            }
+
+            header.flip();
+            int headerPages = (header.remaining() + PAGE_SIZE - 1) / PAGE_SIZE;
+            out.write(header.array(), 0, header.remaining());
+            pad(headerPages * PAGE_SIZE - header.remaining());
+            position = (long) headerPages * PAGE_SIZE;
+            page.position(PAGE_HEADER);
+        }
+
+        void writeRow(String key, String[] values) throws IOException {
+            row.clear();
+            for (int i = 0; i < columns.length; i++) {
+                DataType type = columns[i].getType();
+                if (dictionaries[i] != null) {
+                    row = putCode(row, dictionaries[i], dictionarySizes[i], values[i]);
+                } else {
+                    row = type.isPrimitive() ? putPrimitive(row, type, values[i]) : putString(row, values[i]);
+                }
+            }
+            row.flip();
+
+            if (row.remaining() > page.remaining()) {
+                flushPage();
+            }
+            if (row.remaining() > page.remaining()) {
+                writeLargeRow(key);
+                return;
+            }
+
+            if (pageRows == 0) {
+                pageFirstKey = key;
+            }
+            page.put(row);
+            pageRows++;
+        }
+
+        /**
+         * Writes a row too large for a page to a run of pages, or a block, of its own.
+         */
+        private void writeLargeRow(String key) throws IOException {
+            ByteBuffer run = ByteBuffer.allocate(PAGE_HEADER + row.remaining());
+            run.putInt(1).put(row);
+            writeRun(run.array(), run.position(), 1, key);
+        }
+
+        private void flushPage() throws IOException {
+            if (pageRows == 0) {
+                return;
+            }
+
+            page.putInt(0, pageRows);
+            writeRun(page.array(), page.position(), pageRows, pageFirstKey);
+            page.clear();
+            page.position(PAGE_HEADER);
+            pageRows = 0;
+        }
+
+        /**
+         * Writes a run of pages, padded to whole pages, or compresses it into a block.
+         */
+        private void writeRun(byte[] bytes, int length, int rows, String firstKey) throws IOException {
+            int stored;
+            if (deflater == null) {
+                out.write(bytes, 0, length);
+                stored = (length + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+                pad(stored - length);
+            } else {
+                deflater.reset();
+                deflater.setInput(bytes, 0, length);
+                deflater.finish();
+                stored = 0;
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(compressed);
+                    out.write(compressed, 0, n);
+                    stored += n;
+                }
+            }
+
+            directory.add(new long[] {position, stored, length, rows});
+            firstKeys.add(firstKey);
+            position += stored;
+        }
+
+        /**
+         * Writes the last page and the directory.
+         */
+        void writeDirectory() throws IOException {
+            flushPage();
+            ByteBuffer tail = ByteBuffer.allocate(PAGE_SIZE);
+            tail.putInt(directory.size());
+            for (int i = 0; i < directory.size(); i++) {
+                long[] run = directory.get(i);
+                tail = ensure(tail, 20);
+                tail.putLong(run[0]).putInt((int) run[1]).putInt((int) run[2]).putInt((int) run[3]);
+                tail = putString(tail, firstKeys.get(i));
+            }
+            out.write(tail.array(), 0, tail.position());
+        }
+
+        long directoryPosition() {
+            return position;
+        }
+
+        /**
+         * Frees the compressor.
+         */
+        void end() {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        private void pad(int bytes) throws IOException {
+            out.write(new byte[bytes]);
+        }
+    }
+
+    // Fields
+
+    /**
+     * @return The buffer with the value added, grown if it was full.
+     */
+    private static ByteBuffer putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            return putVarint(buffer, 0);
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer = putVarint(buffer, bytes.length + 1);
+        buffer = ensure(buffer, bytes.length);
+        return buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = (int) getVarint(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+
+        if (!buffer.hasArray()) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Stores a value of a primitive type in its primitive form, if it is in canonical form.
+     */
+    private static ByteBuffer putPrimitive(ByteBuffer buffer, DataType type, String value) {
+        buffer = ensure(buffer, 10);
+        if (value == null) {
+            return buffer.put(NULL);
+        }
+        if (value.isEmpty()) {
+            return buffer.put(BLANK);
+        }
+
+        long bits;
+        try {
+            bits = type.encode(value);
+        } catch (IllegalArgumentException e) {
+            return putString(buffer.put(TEXT), value);
+        }
+
+        buffer.put(VALUE);
+        if (type == DataType.DOUBLE) {
+            return buffer.putLong(bits);
+        }
+
+        // Zigzag, so that small negative numbers stay short
+        return putVarint(buffer, (bits << 1) ^ (bits >> 63));
+    }
+
+    private static String getPrimitive(ByteBuffer buffer, DataType type) {
+        switch (buffer.get()) {
+            case NULL:
+                return null;
+            case BLANK:
+                return "";
+            case TEXT:
+                return getString(buffer);
+            default:
+                if (type == DataType.DOUBLE) {
+                    return type.decode(buffer.getLong());
+                }
+                long zigzag = getVarint(buffer);
+                return type.decode((zigzag >>> 1) ^ -(zigzag & 1));
+        }
+    }
+
+    /**
+     * Stores a field of an encoded column as its code, if the value was in the dictionary
+     * when the header was written.
+     */
+    private static ByteBuffer putCode(ByteBuffer buffer, Dictionary dictionary, int size, String value) {
+        if (value == null) {
+            return putVarint(buffer, CODE_NULL);
+        }
+
+        int code = dictionary.codeOf(value);
+        if (code == -1 || code >= size) {
+            return putString(putVarint(buffer, CODE_TEXT), value);
+        }
+
+        return putVarint(buffer, code + CODE);
+    }
+
+    private static String getCode(ByteBuffer buffer, String[] dictionary) {
+        int code = (int) getVarint(buffer);
+        switch (code) {
+            case CODE_NULL:
+                return null;
+            case CODE_TEXT:
+                return getString(buffer);
+            default:
+                return dictionary[code - CODE];
+        }
+    }
+
+    private static ByteBuffer putVarint(ByteBuffer buffer, long value) {
+        buffer = ensure(buffer, 10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        return buffer.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * @return The buffer, or a larger copy of it if it has less room than needed.
+     */
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        return grown.put(buffer);
+    }
+}
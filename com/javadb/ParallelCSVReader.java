@@ -0,0 +1,339 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a whole CSV file on all cores.
+ * The file is memory mapped in chunks, and the chunks are parsed in parallel on the
+ * common fork-join pool. A chunk has to start at the start of a record, but a newline
+ * inside a quoted value does not end a record, and whether a byte is quoted depends on
+ * the bytes before it. So the file is read twice: the first pass runs through each
+ * chunk from every state a chunk may start in, at the start of a field, inside an
+ * unquoted field or inside quotes, and finds the chunk's first newline and end state
+ * for each. The end states of the earlier chunks tell which newline is the record
+ * boundary. The second pass parses the records between the boundaries.
+ * Values are parsed like CSVReader does, following RFC 4180, from UTF-8 bytes: only a
+ * quote at the start of a field starts a quoted value, and a quote inside an unquoted
+ * field is a plain character. Records may end with "\n" or "\r\n".
+ */
+class ParallelCSVReader {
+    private static final byte DELIMITER = ',';
+    private static final byte QUOTES = '"';
+    private static final byte NEWLINE = '\n';
+    private static final byte RETURN = '\r';
+    // The states of the first pass. A closing quote leaves a value as if a field started,
+    // since a quote right after it is an escaped quote, and anything else is plain
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    static final int CHUNK_SIZE = 1 << 24;
+
+    private final FileChannel channel;
+    private final int chunkSize;
+
+    ParallelCSVReader(FileChannel channel) {
+        this(channel, CHUNK_SIZE);
+    }
+
+    ParallelCSVReader(FileChannel channel, int chunkSize) {
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads the records of the file, in file order.
+     * @return The records, the first of which is the header. Empty if the file is empty.
+     */
+    List<String[]> read() throws IOException {
+        return read(null);
+    }
+
+    /**
+     * Reads the records of the file, and computes the checksum of the whole file alongside.
+     * @param checksum Updated with the file's bytes. Ignored if null.
+     */
+    List<String[]> read(CRC32 checksum) throws IOException {
+        return read(checksum, Function.identity());
+    }
+
+    /**
+     * Reads the records of the file, turning each one into an object as soon as it's
+     * parsed, so that the values are not held twice.
+     * @param row Makes the object of a record's values. Called in parallel.
+     */
+    <T> List<T> read(CRC32 checksum, Function<String[], T> row) throws IOException {
+        try {
+            return readChunks(checksum, row);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private <T> List<T> readChunks(CRC32 checksum, Function<String[], T> row) throws IOException {
+        long size = channel.size();
+        int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+
+        // The checksum can't be computed in parallel, so it runs next to the parsing
+        CompletableFuture<Void> checksummed = checksum == null ? CompletableFuture.completedFuture(null) :
+                CompletableFuture.runAsync(() -> {
+                    for (int i = 0; i < chunks; i++) {
+                        checksum.update(map((long) i * chunkSize, Math.min(size, (long) (i + 1) * chunkSize)));
+                    }
+                });
+
+        // First pass: find the record boundaries
+        Scan[] scans = IntStream.range(0, chunks).parallel()
+                .mapToObj(i -> scan((long) i * chunkSize, Math.min(size, (long) (i + 1) * chunkSize)))
+                .toArray(Scan[]::new);
+        TreeSet<Long> boundaries = new TreeSet<>();
+        boundaries.add(0L);
+        boundaries.add(size);
+        int state = FIELD_START;
+        for (Scan scan : scans) {
+            long newline = scan.firstNewline[state];
+            if (newline != -1) {
+                boundaries.add(newline + 1);
+            }
+            state = scan.endState[state];
+        }
+
+        // Second pass: parse the records between them
+        Long[] starts = boundaries.toArray(new Long[0]);
+        List<T> records = IntStream.range(0, starts.length - 1).parallel()
+                .mapToObj(i -> parse(starts[i], starts[i + 1], row))
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+
+        checksummed.join();
+        return records;
+    }
+
+    /**
+     * The first newlines and end states of a chunk, by the state it starts in.
+     */
+    private static class Scan {
+        // The first newline outside quotes
+        final long[] firstNewline = {-1, -1, -1};
+        final int[] endState = {FIELD_START, UNQUOTED, QUOTED};
+    }
+
+    private Scan scan(long start, long end) {
+        ByteBuffer chunk = map(start, end);
+        Scan scan = new Scan();
+        int[] states = scan.endState;
+        int limit = chunk.limit();
+        for (int i = 0; i < limit; i++) {
+            byte b = chunk.get(i);
+            for (int s = 0; s < states.length; s++) {
+                if (b == NEWLINE && states[s] != QUOTED && scan.firstNewline[s] == -1) {
+                    scan.firstNewline[s] = start + i;
+                }
+                states[s] = next(states[s], b);
+            }
+        }
+
+        return scan;
+    }
+
+    /**
+     * @return The state of the first pass after a byte.
+     */
+    private static int next(int state, byte b) {
+        if (state == QUOTED) {
+            return b == QUOTES ? FIELD_START : QUOTED;
+        }
+        if (b == DELIMITER || b == NEWLINE) {
+            return FIELD_START;
+        }
+
+        return b == QUOTES && state == FIELD_START ? QUOTED : UNQUOTED;
+    }
+
+    /**
+     * Parses the records between two record boundaries.
+     * Empty lines hold no record.
+     */
+    private <T> List<T> parse(long start, long end, Function<String[], T> row) {
+        ByteBuffer in = map(start, end);
+        List<T> records = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        byte[] value = new byte[64];
+        int length = 0;
+        boolean inQuotes = false;
+        // Whether the current field started with a quote, which makes it a quoted field
+        boolean fieldStart = true;
+        boolean empty = true;
+
+        int limit = in.limit();
+        for (int i = 0; i < limit; i++) {
+            byte b = in.get(i);
+            if (!inQuotes) {
+                if (b == DELIMITER) {
+                    values.add(new String(value, 0, length, StandardCharsets.UTF_8));
+                    length = 0;
+                    fieldStart = true;
+                } else if (b == QUOTES && fieldStart) {
+                    inQuotes = true;
+                    fieldStart = false;
+                } else if (b == RETURN && i + 1 < limit && in.get(i + 1) == NEWLINE) {
+                    // The newline ends the record
+                    continue;
+                } else if (b == NEWLINE) {
+                    if (!empty) {
+                        values.add(new String(value, 0, length, StandardCharsets.UTF_8));
+                        records.add(row.apply(values.toArray(new String[values.size()])));
+                        values.clear();
+                        length = 0;
+                    }
+                    empty = true;
+                    fieldStart = true;
+                    continue;
+                } else {
+                    if (length == value.length) {
+                        value = Arrays.copyOf(value, length * 2);
+                    }
+                    value[length++] = b;
+                    fieldStart = false;
+                }
+            } else {
+                if (b == QUOTES && i + 1 < limit && in.get(i + 1) == QUOTES) {
+                    // An escaped quote, eg. "val""ue"
+                    i++;
+                } else if (b == QUOTES) {
+                    inQuotes = false;
+                    empty = false;
+                    continue;
+                }
+                if (length == value.length) {
+                    value = Arrays.copyOf(value, length * 2);
+                }
+                value[length++] = b;
+            }
+            empty = false;
+        }
+        // The last record of the file may have no newline
+        if (!empty) {
+            values.add(new String(value, 0, length, StandardCharsets.UTF_8));
+            records.add(row.apply(values.toArray(new String[values.size()])));
+        }
+
+        return records;
+    }
+
+    private ByteBuffer map(long start, long end) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Unit Testing
+
+    private static void test() {
+        String[][] rows = {
+                {"Id", "Note", "City"},
+                {"1", "Not much to say\n I love cats!", "Bristol"},
+                {"2", "He said \"Hi\", twice", ""},
+                {"3", "\"\n\"", "Z\u00fcrich"},
+                {"4", "plain", "a,b\n\nc"},
+                {"5", "5\" disk", "\"quoted\""},
+        };
+        StringBuilder csv = new StringBuilder();
+        for (String[] row : rows) {
+            csv.append(CSVutils.generateCSVRecord(row));
+        }
+        // Quotes inside unquoted fields, an empty line, and a last record without a newline
+        csv.append("6,5\" disk,a\"b\"\n\n7,last,end");
+
+        File file = new File("Databases", "SaveLoadTest/parallel.csv");
+        try {
+            byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+            Files.write(file.toPath(), bytes);
+            CRC32 expected = new CRC32();
+            expected.update(bytes);
+
+            // Chunks of every size, so that chunks start both inside and outside quotes
+            for (int chunkSize = 1; chunkSize <= bytes.length + 1; chunkSize++) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    CRC32 checksum = new CRC32();
+                    List<String[]> records = new ParallelCSVReader(channel, chunkSize).read(checksum);
+                    assert(records.size() == rows.length + 2);
+                    for (int i = 0; i < rows.length; i++) {
+                        assert(Arrays.equals(records.get(i), rows[i]));
+                    }
+                    assert(Arrays.equals(records.get(rows.length), new String[] {"6", "5\" disk", "a\"b\""}));
+                    assert(Arrays.equals(records.get(rows.length + 1), new String[] {"7", "last", "end"}));
+                    assert(checksum.getValue() == expected.getValue());
+                }
+            }
+
+            // Records parse like CSVReader
+            String line = "abc,\"\"\"Hi\"\"\",\"\",x\"y\"z,\"a\"b,5\" disk\n";
+            Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    CSVReader reader = new CSVReader(new StringReader(line))) {
+                CSVReader.Row row = new CSVReader.Row();
+                assert(reader.next(row));
+                assert(Arrays.equals(new ParallelCSVReader(channel).read().get(0), row.getValues()));
+                assert(row.getValue(3).equals("x\"y\"z") && row.getValue(5).equals("5\" disk"));
+            }
+
+            // Records ending with "\r\n". A quoted "\r\n" is kept in the value
+            String crlf = "Id,Note\r\n1,\"two\r\nlines\"\r\n\r\n2,x\r\n";
+            Files.write(file.toPath(), crlf.getBytes(StandardCharsets.UTF_8));
+            for (int chunkSize = 1; chunkSize <= crlf.length() + 1; chunkSize++) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    List<Record> records = new ParallelCSVReader(channel, chunkSize).read(null, Record::new);
+                    assert(records.size() == 3);
+                    assert(Arrays.equals(records.get(0).getValues(), new String[] {"Id", "Note"}));
+                    assert(Arrays.equals(records.get(1).getValues(), new String[] {"1", "two\r\nlines"}));
+                    assert(Arrays.equals(records.get(2).getValues(), new String[] {"2", "x"}));
+                }
+            }
+
+            // An empty file
+            Files.write(file.toPath(), new byte[0]);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                assert(new ParallelCSVReader(channel).read().isEmpty());
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * A structured condition on the columns of a record, for WHERE clauses.
+ * Predicates are built with the static factory methods and passed to Table.scan().
+ * Unlike a lambda, the table can inspect a predicate and answer it from an index
+ * or from a key range, instead of testing every record.
+ */
+public abstract class Predicate {
+
+    /**
+     * Column equals value.
+     */
+    public static Predicate eq(int colIndex, String value) {
+        return new In(colIndex, Collections.singleton(value));
+    }
+
+    /**
+     * Column is one of the values.
+     */
+    public static Predicate in(int colIndex, String... values) {
+        return new In(colIndex, new HashSet<>(Arrays.asList(values)));
+    }
+
+    /**
+     * Column is between two values, inclusive, in the order of the column's data type.
+     * @param from The lowest value. Null for no lower bound.
+     * @param to The highest value. Null for no upper bound.
+     */
+    public static Predicate range(int colIndex, String from, String to) {
+        return new Range(colIndex, from, to, DataType.STRING);
+    }
+
+    /**
+     * Column is empty or blank. Columns added with alter table are filled with a blank value.
+     */
+    public static Predicate isEmpty(int colIndex) {
+        return new IsEmpty(colIndex);
+    }
+
+    public static Predicate and(Predicate... predicates) {
+        return new And(predicates);
+    }
+
+    public static Predicate or(Predicate... predicates) {
+        return new Or(predicates);
+    }
+
+    /**
+     * Evaluates the predicate on the values of a record.
+     */
+    abstract boolean test(String[] values);
+
+    /**
+     * @return The predicate as a test on the slots of a column oriented store.
+     */
+    abstract IntPredicate compile(ColumnarRecordStore store);
+
+    /**
+     * Binds the predicate to the columns of a table. Values are converted to the
+     * canonical form of the column types, and ranges use the order of the types.
+     * Throws an IndexOutOfBoundsException if the predicate refers to a column
+     * outside the table.
+     * @return The predicate to evaluate on the table.
+     */
+    abstract Predicate bind(Column[] columns);
+
+    /**
+     * @return The keys of the records that may satisfy the predicate according to
+     * the table's indexes, or null if the indexes cannot narrow the search.
+     */
+    Set<String> indexLookup(Table t) {
+        return null;
+    }
+
+    /**
+     * @return The range of keys that may satisfy the predicate as {from, to},
+     * or null if the predicate does not restrict the PK column.
+     */
+    String[] keyRange(int pkColIndex) {
+        return null;
+    }
+
+    // Predicates
+
+    private static abstract class ColumnPredicate extends Predicate {
+        final int colIndex;
+
+        ColumnPredicate(int colIndex) {
+            this.colIndex = colIndex;
+        }
+
+        /**
+         * Evaluates the predicate on the column's value.
+         */
+        abstract boolean accepts(String value);
+
+        @Override
+        boolean test(String[] values) {
+            return accepts(values[colIndex]);
+        }
+
+        @Override
+        IntPredicate compile(ColumnarRecordStore store) {
+            return store.match(colIndex, this::accepts);
+        }
+
+        @Override
+        Predicate bind(Column[] columns) {
+            if (colIndex < 0 || colIndex >= columns.length) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            return this;
+        }
+    }
+
+    private static class In extends ColumnPredicate {
+        private final Set<String> values;
+
+        In(int colIndex, Set<String> values) {
+            super(colIndex);
+            this.values = values;
+        }
+
+        @Override
+        boolean accepts(String value) {
+            return values.contains(value);
+        }
+
+        @Override
+        IntPredicate compile(ColumnarRecordStore store) {
+            return store.matchAny(colIndex, values);
+        }
+
+        /**
+         * Values that are not valid for the column's type cannot match.
+         */
+        @Override
+        Predicate bind(Column[] columns) {
+            super.bind(columns);
+            DataType type = columns[colIndex].getType();
+            if (!type.isPrimitive()) {
+                return this;
+            }
+
+            Set<String> normalized = new HashSet<>();
+            for (String value : values) {
+                String v = type.normalize(value);
+                if (v != null) {
+                    normalized.add(v);
+                }
+            }
+
+            return new In(colIndex, normalized);
+        }
+
+        @Override
+        Set<String> indexLookup(Table t) {
+            Index index = t.getIndex(colIndex);
+            if (index == null) {
+                return null;
+            }
+
+            if (values.size() == 1) {
+                return index.get(values.iterator().next());
+            }
+
+            Set<String> keys = new LinkedHashSet<>();
+            for (String value : values) {
+                keys.addAll(index.get(value));
+            }
+
+            return keys;
+        }
+    }
+
+    private static class Range extends ColumnPredicate {
+        private final String from;
+        private final String to;
+        private final DataType type;
+
+        Range(int colIndex, String from, String to, DataType type) {
+            super(colIndex);
+            this.from = from;
+            this.to = to;
+            this.type = type;
+        }
+
+        @Override
+        boolean accepts(String value) {
+            if (value == null || (type.isPrimitive() && DataType.isBlank(value))) {
+                return false;
+            }
+
+            return (from == null || type.compare(value, from) >= 0) &&
+                    (to == null || type.compare(value, to) <= 0);
+        }
+
+        @Override
+        IntPredicate compile(ColumnarRecordStore store) {
+            return store.matchRange(colIndex, type, from, to, this::accepts);
+        }
+
+        @Override
+        Predicate bind(Column[] columns) {
+            super.bind(columns);
+            DataType columnType = columns[colIndex].getType();
+            if (columnType.isPrimitive() &&
+                    ((from != null && columnType.normalize(from) == null) ||
+                    (to != null && columnType.normalize(to) == null))) {
+                throw new IllegalArgumentException("Range bound is not a valid " + columnType + ".");
+            }
+
+            return new Range(colIndex, from, to, columnType);
+        }
+
+        @Override
+        String[] keyRange(int pkColIndex) {
+            return colIndex == pkColIndex ? new String[] {from, to} : null;
+        }
+    }
+
+    private static class IsEmpty extends ColumnPredicate {
+        IsEmpty(int colIndex) {
+            super(colIndex);
+        }
+
+        @Override
+        boolean accepts(String value) {
+            return value == null || value.trim().isEmpty();
+        }
+    }
+
+    private static class And extends Predicate {
+        private final Predicate[] predicates;
+
+        And(Predicate[] predicates) {
+            this.predicates = predicates;
+        }
+
+        @Override
+        boolean test(String[] values) {
+            for (Predicate p : predicates) {
+                if (!p.test(values)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        IntPredicate compile(ColumnarRecordStore store) {
+            IntPredicate match = slot -> true;
+            for (Predicate p : predicates) {
+                match = match.and(p.compile(store));
+            }
+
+            return match;
+        }
+
+        @Override
+        Predicate bind(Column[] columns) {
+            Predicate[] bound = new Predicate[predicates.length];
+            for (int i = 0; i < predicates.length; i++) {
+                bound[i] = predicates[i].bind(columns);
+            }
+
+            return new And(bound);
+        }
+
+        /**
+         * Any indexed term narrows the search. Uses the one with the fewest keys.
+         */
+        @Override
+        Set<String> indexLookup(Table t) {
+            Set<String> smallest = null;
+            for (Predicate p : predicates) {
+                Set<String> keys = p.indexLookup(t);
+                if (keys != null && (smallest == null || keys.size() < smallest.size())) {
+                    smallest = keys;
+                }
+            }
+
+            return smallest;
+        }
+
+        @Override
+        String[] keyRange(int pkColIndex) {
+            for (Predicate p : predicates) {
+                String[] range = p.keyRange(pkColIndex);
+                if (range != null) {
+                    return range;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static class Or extends Predicate {
+        private final Predicate[] predicates;
+
+        Or(Predicate[] predicates) {
+            this.predicates = predicates;
+        }
+
+        @Override
+        boolean test(String[] values) {
+            for (Predicate p : predicates) {
+                if (p.test(values)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        IntPredicate compile(ColumnarRecordStore store) {
+            IntPredicate match = slot -> false;
+            for (Predicate p : predicates) {
+                match = match.or(p.compile(store));
+            }
+
+            return match;
+        }
+
+        @Override
+        Predicate bind(Column[] columns) {
+            Predicate[] bound = new Predicate[predicates.length];
+            for (int i = 0; i < predicates.length; i++) {
+                bound[i] = predicates[i].bind(columns);
+            }
+
+            return new Or(bound);
+        }
+
+        /**
+         * Every term has to be indexed, otherwise the whole table is scanned.
+         */
+        @Override
+        Set<String> indexLookup(Table t) {
+            Set<String> keys = new LinkedHashSet<>();
+            for (Predicate p : predicates) {
+                Set<String> termKeys = p.indexLookup(t);
+                if (termKeys == null) {
+                    return null;
+                }
+                keys.addAll(termKeys);
+            }
+
+            return keys;
+        }
+    }
+}
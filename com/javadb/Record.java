@@ -6,16 +6,20 @@
 
 package com.javadb;
 
+import java.time.Instant;
 import java.util.Arrays;
 
 /**
  * A record in the database.
  * The values of a record are stored in a simple array.
- * The number of fields in a Record is defined at construction time, and cannot be changed.
- * Make a copy of the Record, when new fields are required.
+ * The number of fields in a Record is defined at construction time. Only its table
+ * changes it, when the record was written under an older version of the table's schema.
  */
 public class Record {
     private String[] values;
+    // The version of the table schema the values were written under.
+    // Volatile, so that a reader that sees an upgraded version also sees the upgraded values
+    private volatile int version;
 
     Record(String... values) {
         this.values = values;
@@ -31,6 +35,38 @@ public class Record {
         return valuesCopy;
     }
 
+    /**
+     * @return The record's values array itself, for read only access inside the package.
+     */
+    String[] rawValues() {
+        return values;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return A copy of the record, written under the same schema version.
+     */
+    Record copy() {
+        Record r = new Record(getValues());
+        r.version = version;
+        return r;
+    }
+
+    /**
+     * Replaces the values with their form under a newer schema version.
+     */
+    void upgrade(String[] values, int version) {
+        this.values = values;
+        this.version = version;
+    }
+
     public String getValue(int n) {
         if (n < 0 || n >= values.length) {
             throw new ArrayIndexOutOfBoundsException();
@@ -39,6 +75,29 @@ public class Record {
         return values[n];
     }
 
+    // Typed accessors. Fields of typed columns are stored in canonical form.
+    // Blank fields throw a NumberFormatException or DateTimeParseException.
+
+    public int getInt(int n) {
+        return Integer.parseInt(getValue(n));
+    }
+
+    public long getLong(int n) {
+        return Long.parseLong(getValue(n));
+    }
+
+    public double getDouble(int n) {
+        return Double.parseDouble(getValue(n));
+    }
+
+    public boolean getBoolean(int n) {
+        return Boolean.parseBoolean(getValue(n));
+    }
+
+    public Instant getTimestamp(int n) {
+        return Instant.parse(getValue(n));
+    }
+
     public void setValue(int n, String s) {
         if (n < 0 || n >= values.length) {
             throw new ArrayIndexOutOfBoundsException();
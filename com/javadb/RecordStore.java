@@ -0,0 +1,149 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.DoubleStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * An interface for the data structure that holds a table's records by key.
+ * Putting a record under a key that already exists replaces the record, and does not
+ * invalidate an ongoing stream of the entries.
+ */
+public interface RecordStore {
+    Record get(String key);
+
+    void put(String key, Record r);
+
+    /**
+     * Writes a single field of a stored record.
+     */
+    default void setValue(String key, int colIndex, String value) {
+        get(key).setValue(colIndex, value);
+    }
+
+    Record remove(String key);
+
+    boolean containsKey(String key);
+
+    int size();
+
+    void clear();
+
+    /**
+     * Releases the memory held by the store. The store cannot be used afterwards.
+     */
+    default void close() {
+        clear();
+    }
+
+    /**
+     * Grows the store ahead of a bulk insert, so that it can hold the given number
+     * of records without resizing.
+     */
+    default void ensureCapacity(int size) {
+    }
+
+    /**
+     * @return True if several threads can use the store at once.
+     * Tables backed by a thread safe store run in concurrent mode.
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * @return True if addField and dropField take the same time whatever the number of
+     * records, as in a column oriented store. Tables with other stores do not call them,
+     * and instead upgrade records written under an older schema as they are accessed.
+     */
+    default boolean altersInPlace() {
+        return false;
+    }
+
+    /**
+     * Adds a field for a new column to every record, holding the given value.
+     * Each record is replaced by a new record with one more field.
+     */
+    default void addField(int colIndex, Column c, String value) {
+        entries().forEach(pair -> {
+            List<String> newVals = new ArrayList<>(Arrays.asList(pair.getValue().getValues()));
+            newVals.add(colIndex, value);
+
+            // Create a new record and replace the old one
+            put(pair.getKey(), new Record(newVals.toArray(new String[newVals.size()])));
+        });
+    }
+
+    /**
+     * Removes a field from every record.
+     * Each record is replaced by a new record with one less field.
+     */
+    default void dropField(int colIndex) {
+        entries().forEach(pair -> {
+            List<String> newVals = new ArrayList<>(Arrays.asList(pair.getValue().getValues()));
+            newVals.remove(colIndex);
+
+            // Create a new record and replace the old one
+            put(pair.getKey(), new Record(newVals.toArray(new String[newVals.size()])));
+        });
+    }
+
+    /**
+     * Stores a column with a dictionary. Record stores without an encoded form
+     * replace the column's values with the dictionary's instances, so that records
+     * holding equal values share a single String.
+     */
+    default void encodeField(int colIndex, Dictionary dictionary) {
+        values().forEach(r -> r.setValue(colIndex, dictionary.intern(r.getValue(colIndex))));
+    }
+
+    /**
+     * @return A stream of key/record pairs.
+     */
+    Stream<Map.Entry<String, Record>> entries();
+
+    /**
+     * @return A stream of the records, without their keys.
+     */
+    default Stream<Record> values() {
+        return entries().map(Map.Entry::getValue);
+    }
+
+    /**
+     * @return A stream of the records that satisfy the predicate.
+     */
+    default Stream<Record> select(Predicate where) {
+        return values().filter(r -> where.test(r.rawValues()));
+    }
+
+    /**
+     * @return A stream of the values of a single column.
+     */
+    default Stream<String> column(int colIndex) {
+        return values().map(r -> r.getValue(colIndex));
+    }
+
+    /**
+     * @return A stream of the primitive values of a column, skipping blank fields.
+     */
+    default LongStream longs(int colIndex, DataType type) {
+        return column(colIndex).filter(v -> !DataType.isBlank(v)).mapToLong(type::encode);
+    }
+
+    /**
+     * @return A stream of the values of a numeric column as doubles, skipping blank fields.
+     */
+    default DoubleStream doubles(int colIndex, DataType type) {
+        return longs(colIndex, type).mapToDouble(type::toDouble);
+    }
+}
@@ -7,37 +7,62 @@
 package com.javadb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * Responsible for storing and loading tables from disk.
+ * Files are written to a temporary file first, which then replaces the old file
+ * atomically, so a crash leaves either the old file or the new one.
+ * A table can also be saved as a delta file, holding only the rows written since
+ * the table was last saved in full.
+ * Writes made between saves can be kept in a write-ahead log, and replayed after a crash.
  */
 public class StorageEngine {
+    private WriteAheadLog log;
 
     /**
-     * Loads a table from a CSV file.
+     * Loads a table from a CSV file, or from a paged table file if its name ends in ".tbl".
      * @param file Table file to be loaded
      * @return A Table object
      */
     public Table loadTableFile(File file) {
+        if (isPaged(file)) {
+            return loadPagedTable(file);
+        }
+
         Table t = null;
+        CRC32 checksum = new CRC32();
 
-        try(BufferedReader br = new BufferedReader(new FileReader(file))) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The file is parsed in parallel, and its records are inserted as a batch
+            List<Record> records = new ParallelCSVReader(channel).read(checksum, Record::new);
             // Handle first line as header, containing column name
-            String line = br.readLine();
-            String[] header;
-            if (line != null) {
-                header = CSVutils.parseCSVline(line);
+            if (!records.isEmpty()) {
+                String[] header = records.get(0).rawValues();
+                Map<String, Dictionary> dictionaries = loadDictionaries(dictionaryFile(file));
 
                 Column[] columns = new Column[header.length];
                 for (int i = 0; i < header.length; i++) {
+                    String name = columnName(header[i]);
+                    DataType type = columnType(header[i]);
                     // Use first column as PK
                     if (i == 0) {
-                        columns[i] = new Column(header[i], Constraint.PRIMARY_KEY);
+                        columns[i] = new Column(name, type, Constraint.PRIMARY_KEY);
                     } else {
-                        columns[i] = new Column(header[i]);
+                        columns[i] = new Column(name, type);
                     }
+                    columns[i].setDictionary(dictionaries.get(name));
                 }
 
                 // Create a new table
@@ -47,48 +72,483 @@ public class StorageEngine {
                 t = new Table(tableName, columns[0], columns);
 
                 // Rest lines will be handled as table records
-                String values[];
-                while ((line = br.readLine()) != null) {
-                    values = CSVutils.parseCSVline(line);
-                    Record r = new Record(values);
-                    t.insert(r);
-                }
+                new BulkInsert(t).run(records.subList(1, records.size()));
+                t.markSaved(t.changes(), checksum.getValue());
             }
-        } catch (FileNotFoundException e) {
+        } catch (FileNotFoundException | NoSuchFileException e) {
             throw new Error("Table file not found.");
         } catch (IOException e) {
             throw new Error("Unable to load talbe.");
         }
 
+        if (t != null && loadDelta(t, deltaFile(file), checksum.getValue())) {
+            // The rows of the delta are not tracked, so the next save is a full one
+            t.markSaved(t.changes());
+        }
+
         return t;
     }
 
     /**
-     * Saves a table to disk in CSV format.
+     * Saves a table to disk in CSV format, or as a paged table file if the file name ends
+     * in ".tbl", replacing the file and its delta file.
+     * The rows are read from a snapshot, so writes made while the table is saved are
+     * either all in the file or all left out.
      * @param t Table to be saved as CSV file.
      */
     public void saveTable(Table t, File file) {
-        try(BufferedWriter bw = new BufferedWriter(new FileWriter(file,true))) {
-            // Write columns
-            Column[] columns = t.getColumns();
-            String[] columnNames = new String[t.columns()];
-            for(int i = 0; i< t.columns(); i++) {
-                columnNames[i] = columns[i].getName();
+        long changes = t.changes();
+        CRC32 checksum = new CRC32();
+        // A paged table file stores the checksum of its contents
+        long[] pagedChecksum = new long[1];
+        try(Table.Snapshot snapshot = t.snapshot()) {
+            if (isPaged(file)) {
+                writeAtomically(file, out -> pagedChecksum[0] = PagedTableFile.write(t, snapshot,
+                        new BufferedOutputStream(out)));
+            } else {
+                writeAtomically(file, out -> saveRows(t, snapshot, new CSVWriter(out.getChannel(), checksum)));
             }
-            bw.write(CSVutils.generateCSVRecord(columnNames));
+        }
 
-            // Write table records
-            t.getRows().forEach(entry -> {
-                Record r = entry.getValue();
+        // A paged table file holds the dictionaries in its header
+        if (!isPaged(file)) {
+            saveDictionaries(t, dictionaryFile(file));
+        }
+        deltaFile(file).delete();
+        if (isPaged(file)) {
+            if (t.isLazy()) {
                 try {
-                    bw.write(CSVutils.generateCSVRecord(r.getValues()));
-                } catch (Exception e) {
-                    throw new Error("Unable to create table file.");
+                    t.setRowFile(PagedTableFile.open(file));
+                } catch (IOException e) {
+                    throw new Error("Unable to open table file.");
+                }
+            }
+            t.markSaved(changes, pagedChecksum[0]);
+        } else {
+            t.markSaved(changes, checksum.getValue());
+        }
+    }
+
+    private void saveRows(Table t, Table.Snapshot snapshot, CSVWriter writer) throws IOException {
+        // Write columns
+        Column[] columns = t.getColumns();
+        String[] columnNames = new String[t.columns()];
+        for(int i = 0; i< t.columns(); i++) {
+            columnNames[i] = columnHeader(columns[i]);
+        }
+        writer.writeRecord(columnNames);
+
+        // Write table records, straight from their values
+        Iterator<Map.Entry<String, Record>> rows = snapshot.getRows().iterator();
+        while (rows.hasNext()) {
+            writer.writeRecord(rows.next().getValue().rawValues());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Saves the table if it changed since it was last saved.
+     * Saves only the rows written since the last full save to the delta file, if the
+     * table tracks its changed keys and they are few. Otherwise saves it in full.
+     * @return True if the table was saved.
+     */
+    public boolean saveChanges(Table t, File file) {
+        if (!t.isDirty()) {
+            return false;
+        }
+
+        Set<String> keys = t.changedKeys();
+        if (keys == null || keys.size() > t.rows() / DELTA_RATIO) {
+            saveTable(t, file);
+        } else {
+            saveDelta(t, keys, file);
+        }
+
+        return true;
+    }
+
+    // Paged Table Files
+
+    private boolean isPaged(File file) {
+        return file.getName().endsWith(PagedTableFile.EXTENSION);
+    }
+
+    /**
+     * Loads a table from a paged table file, and applies its delta file.
+     * The file is mapped into memory, and its pages are decoded in parallel.
+     */
+    private Table loadPagedTable(File file) {
+        PagedTableFile.Contents contents = openPagedTable(file);
+        Table t = contents.newTable(siblingFile(file, "").getName());
+        new BulkInsert(t).run(contents.readAll());
+        t.markSaved(t.changes(), contents.checksum());
+
+        if (loadDelta(t, deltaFile(file), contents.checksum())) {
+            t.markSaved(t.changes());
+        }
+
+        return t;
+    }
+
+    /**
+     * Opens a table without loading its rows, if it is saved in a paged table file.
+     * The rows are loaded on first access, and can be dropped from memory again with
+     * Table.unload() while the table is unchanged since it was last saved in full.
+     * Tables in CSV files, or with a delta file, are loaded in full.
+     */
+    public Table openTableFile(File file) {
+        if (!isPaged(file) || deltaFile(file).exists()) {
+            return loadTableFile(file);
+        }
+
+        PagedTableFile.Contents contents = openPagedTable(file);
+        Table t = contents.newTable(siblingFile(file, "").getName());
+        t.loadLazily(contents);
+        t.markSaved(t.changes(), contents.checksum());
+        return t;
+    }
+
+    private PagedTableFile.Contents openPagedTable(File file) {
+        try {
+            return PagedTableFile.open(file);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            throw new Error("Table file not found.");
+        } catch (IOException e) {
+            throw new Error("Unable to load table.");
+        }
+    }
+
+    // Delta Files
+
+    // A delta file is written only while it holds less than 1 / DELTA_RATIO of the rows
+    private static final int DELTA_RATIO = 4;
+    private static final String UPSERT = "U";
+    private static final String DELETE = "D";
+
+    /**
+     * @return The file that holds the rows written since a table file was saved.
+     */
+    private File deltaFile(File tableFile) {
+        return siblingFile(tableFile, ".delta");
+    }
+
+    /**
+     * Saves the rows written since the table was last saved in full, replacing the delta file.
+     * The first line holds the checksum of the full save the delta applies to, and the second
+     * the column header. Each row is either "U" followed by the values of a written record,
+     * or "D" followed by the key of a deleted one.
+     * @param file The table file the delta applies to.
+     */
+    private void saveDelta(Table t, Set<String> keys, File file) {
+        long changes = t.changes();
+        long base = t.savedChecksum();
+        try(Table.Snapshot snapshot = t.snapshot()) {
+            writeAtomically(deltaFile(file), out -> {
+                CSVWriter writer = new CSVWriter(out.getChannel());
+                writer.writeRecord(new String[] {"delta", Long.toString(base)});
+                Column[] columns = t.getColumns();
+                String[] columnNames = new String[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    columnNames[i] = columnHeader(columns[i]);
+                }
+                writer.writeRecord(columnNames);
+
+                for (String key : keys) {
+                    Record r = snapshot.select_record(key);
+                    if (r == null) {
+                        writer.writeRecord(new String[] {DELETE, key});
+                    } else {
+                        writer.writeField(UPSERT);
+                        for (String value : r.rawValues()) {
+                            writer.writeField(value);
+                        }
+                        writer.endRecord();
+                    }
+                }
+                writer.flush();
+            });
+        }
+
+        // A paged table file holds the dictionaries in its header, and the delta holds values
+        if (!isPaged(file)) {
+            saveDictionaries(t, dictionaryFile(file));
+        }
+        t.markSaved(changes);
+    }
+
+    /**
+     * Applies a delta file to a table loaded from the full save it was written against.
+     * A delta file left from an older full save is ignored.
+     * @return True if the delta was applied.
+     */
+    private boolean loadDelta(Table t, File file, long checksum) {
+        if (!file.exists()) {
+            return false;
+        }
+
+        // Values may hold line breaks, so the file is read by record rather than by line
+        try(CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            CSVReader.Row record = new CSVReader.Row();
+            if (!reader.next(record) || record.size() != 2 ||
+                    !record.getValue(1).equals(Long.toString(checksum)) || !reader.next(record)) {
+                return false;
+            }
+
+            while (reader.next(record)) {
+                String[] row = record.getValues();
+                t.delete(row[0].equals(UPSERT) ? row[1 + t.getPKColIndex()] : row[1]);
+                if (row[0].equals(UPSERT)) {
+                    t.insert(new Record(Arrays.copyOfRange(row, 1, row.length)));
+                }
+            }
+        } catch (IOException e) {
+            throw new Error("Unable to load delta file.");
+        }
+
+        return true;
+    }
+
+    // Files
+
+    private interface FileContent {
+        void write(FileOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a file through a temporary file, which replaces it once it is complete and
+     * on disk. The rename is atomic, so a crash leaves either the old file or the new one.
+     */
+    private void writeAtomically(File file, FileContent content) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                content.write(out);
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tmp.delete();
+            throw new Error("Unable to write " + file.getName() + ".");
+        }
+    }
+
+    private File siblingFile(File tableFile, String extension) {
+        String name = tableFile.getName();
+        int dot = name.lastIndexOf(".");
+        if (dot != -1) {
+            name = name.substring(0, dot);
+        }
+
+        return new File(tableFile.getParentFile(), name + extension);
+    }
+
+    // Page Files
+
+    /**
+     * Creates a record store that keeps its records in the pages of a file, for tables
+     * larger than memory. Only the given number of pages are held in memory, in a buffer
+     * pool, and changed pages are written back to the file when they are evicted.
+     * The file holds the store's working pages rather than a saved table: it's emptied
+     * when the store is created, and deleted when the store is closed.
+     * @param frames The number of pages held in memory, of BufferPool.PAGE_SIZE bytes each.
+     */
+    public PagedRecordStore createPagedStore(File file, int frames) {
+        return new PagedRecordStore(new BufferPool(this, openPages(file), frames), file);
+    }
+
+    FileChannel openPages(File file) {
+        try {
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new Error("Unable to create " + file.getName() + ".");
+        }
+    }
+
+    /**
+     * Reads a page into a frame. The part of the page past the end of the file reads as zeros.
+     */
+    void readPage(FileChannel channel, int page, ByteBuffer frame) {
+        ByteBuffer b = frame.duplicate();
+        b.clear();
+        long position = (long) page * BufferPool.PAGE_SIZE;
+        try {
+            while (b.hasRemaining()) {
+                int n = channel.read(b, position + b.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new Error("Unable to read page " + page + ".");
+        }
+        while (b.hasRemaining()) {
+            b.put((byte) 0);
+        }
+    }
+
+    void writePage(FileChannel channel, int page, ByteBuffer frame) {
+        ByteBuffer b = frame.duplicate();
+        b.clear();
+        long position = (long) page * BufferPool.PAGE_SIZE;
+        try {
+            while (b.hasRemaining()) {
+                channel.write(b, position + b.position());
+            }
+        } catch (IOException e) {
+            throw new Error("Unable to write page " + page + ".");
+        }
+    }
+
+    void truncatePages(FileChannel channel) {
+        try {
+            channel.truncate(0);
+        } catch (IOException e) {
+            throw new Error("Unable to empty page file.");
+        }
+    }
+
+    void closePages(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new Error("Unable to close page file.");
+        }
+    }
+
+    // Write-Ahead Log
+
+    /**
+     * Opens the log that the writes of the database's tables are appended to.
+     */
+    public void openLog(File file, WriteAheadLog.SyncPolicy policy) {
+        if (log != null) {
+            throw new IllegalStateException("Log is already open.");
+        }
+
+        log = new WriteAheadLog(file, policy);
+    }
+
+    /**
+     * @return The open log. Null if there is none.
+     */
+    WriteAheadLog getLog() {
+        return log;
+    }
+
+    public void closeLog() {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Replays the writes in a log over the tables loaded from the last checkpoint.
+     * @return The number of log frames replayed.
+     */
+    public int replayLog(File file, List<Table> tables) {
+        Map<String, Table> byName = new HashMap<>();
+        for (Table t : tables) {
+            byName.put(t.getName(), t);
+        }
+
+        return WriteAheadLog.replay(file, byName);
+    }
+
+    // Column Types
+
+    /**
+     * @return The header cell of a column. The type of a non STRING column follows
+     * its name, e.g. "Age:INT".
+     */
+    private String columnHeader(Column c) {
+        return c.getType() == DataType.STRING ? c.getName() : c.getName() + ":" + c.getType();
+    }
+
+    private String columnName(String header) {
+        return columnType(header) == DataType.STRING ? header : header.substring(0, header.lastIndexOf(':'));
+    }
+
+    /**
+     * @return The type in a header cell. Cells without a valid type suffix are STRING columns,
+     * so files written before columns had types load as before.
+     */
+    private DataType columnType(String header) {
+        int separator = header.lastIndexOf(':');
+        if (separator != -1) {
+            for (DataType type : DataType.values()) {
+                if (type != DataType.STRING && type.name().equals(header.substring(separator + 1))) {
+                    return type;
+                }
+            }
+        }
+
+        return DataType.STRING;
+    }
+
+    // Dictionaries
+
+    /**
+     * @return The file that holds the dictionaries of a table file's encoded columns.
+     */
+    private File dictionaryFile(File tableFile) {
+        return siblingFile(tableFile, ".dict");
+    }
+
+    /**
+     * Saves the dictionaries of a table's encoded columns in CSV format.
+     * Each line holds a column name followed by the dictionary values in code order,
+     * so that the codes stay the same when the table is loaded.
+     */
+    private void saveDictionaries(Table t, File file) {
+        boolean encoded = false;
+        for (Column c : t.getColumns()) {
+            encoded |= c.isDictionaryEncoded();
+        }
+        if (!encoded) {
+            file.delete();
+            return;
+        }
+
+        writeAtomically(file, out -> {
+            CSVWriter writer = new CSVWriter(out.getChannel());
+            for (Column c : t.getColumns()) {
+                if (c.isDictionaryEncoded()) {
+                    writer.writeField(c.getName());
+                    for (String value : c.getDictionary().getValues()) {
+                        writer.writeField(value);
+                    }
+                    writer.endRecord();
                 }
-            } );
+            }
+            writer.flush();
+        });
+    }
+
+    /**
+     * @return The dictionaries saved for each encoded column, by column name.
+     */
+    private Map<String, Dictionary> loadDictionaries(File file) {
+        Map<String, Dictionary> dictionaries = new HashMap<>();
+        if (!file.exists()) {
+            return dictionaries;
+        }
+
+        try(CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            CSVReader.Row values = new CSVReader.Row();
+            while (reader.next(values)) {
+                Dictionary dictionary = new Dictionary();
+                for (int i = 1; i < values.size(); i++) {
+                    dictionary.encode(values.getValue(i));
+                }
+                dictionaries.put(values.getValue(0), dictionary);
+            }
         } catch (IOException e) {
-            throw new Error("Unable to create table file.");
+            throw new Error("Unable to load dictionary file.");
         }
+
+        return dictionaries;
     }
 
     // Unit testing
@@ -119,7 +579,317 @@ public class StorageEngine {
         Table t1_loaded = storageEngine.loadTableFile(path.toFile());
     }
 
+    private static void test_dictionaries() {
+        StorageEngine storageEngine = new StorageEngine();
+
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("County");
+        c1.setDictionaryEncoded(true);
+
+        Table t2 = new Table("t2", c0, c1);
+        t2.insert(new Record("0", "London"), new Record("1", "Bristol"), new Record("2", "London"));
+
+        Path path = FileSystems.getDefault().getPath("Databases","SaveLoadTest", t2.getName() + ".csv");
+        path.toFile().delete();
+        storageEngine.saveTable(t2, path.toFile());
+
+        // The dictionary is loaded with the same codes
+        Table t2_loaded = storageEngine.loadTableFile(path.toFile());
+        Column county = t2_loaded.getColumns()[1];
+        assert(county.isDictionaryEncoded());
+        assert(county.getDictionary().codeOf("London") == 0 && county.getDictionary().codeOf("Bristol") == 1);
+        assert(t2_loaded.rows() == 3);
+        assert(!t2_loaded.getColumns()[0].isDictionaryEncoded());
+    }
+
+    private static void test_column_types() {
+        StorageEngine storageEngine = new StorageEngine();
+
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Price", DataType.DOUBLE);
+        Column c2 = new Column("Note:Text");
+
+        Table t3 = new Table("t3", c0, c1, c2);
+        t3.insert(new Record("1", "2.50", "a"), new Record("2", "", "b"));
+
+        Path path = FileSystems.getDefault().getPath("Databases","SaveLoadTest", t3.getName() + ".csv");
+        path.toFile().delete();
+        storageEngine.saveTable(t3, path.toFile());
+
+        Table t3_loaded = storageEngine.loadTableFile(path.toFile());
+        Column[] columns = t3_loaded.getColumns();
+        assert(columns[0].getName().equals("Id") && columns[0].getType() == DataType.INT);
+        assert(columns[1].getType() == DataType.DOUBLE);
+        assert(columns[2].getName().equals("Note:Text") && columns[2].getType() == DataType.STRING);
+        assert(t3_loaded.select_record("1").getDouble(1) == 2.5);
+    }
+
+    private static List<String> rowsOf(Table t) {
+        List<String> rows = new ArrayList<>();
+        t.getRows().forEach(pair -> rows.add(Arrays.toString(pair.getValue().getValues())));
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static void test_saves() {
+        File dir = new File("Databases", "DeltaTest");
+        dir.mkdirs();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        File tableFile = new File(dir, "t4.csv");
+        File deltaFile = new File(dir, "t4.delta");
+
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Name");
+        Table t4 = new Table("t4", c0, c1);
+        for (int i = 0; i < 100; i++) {
+            t4.insert(new Record(Integer.toString(i), "name" + i));
+        }
+
+        // Saving replaces the file
+        StorageEngine storageEngine = new StorageEngine();
+        storageEngine.saveTable(t4, tableFile);
+        long length = tableFile.length();
+        storageEngine.saveTable(t4, tableFile);
+        assert(tableFile.length() == length && !new File(dir, "t4.csv.tmp").exists());
+
+        // Only the tables that changed are saved
+        Database db = new Database("DeltaTest");
+        db.addTable(t4);
+        db.enableDeltaSaves();
+        assert(!t4.isDirty());
+        t4.update("0", 1, "changed");
+        assert(t4.isDirty());
+        // The keys written before delta saves were enabled are not known, so this save is a full one
+        db.saveDB();
+        assert(!t4.isDirty() && !deltaFile.exists());
+        length = tableFile.length();
+        long modified = tableFile.lastModified();
+        tableFile.setLastModified(modified - 10000);
+        db.saveDB();
+        assert(tableFile.lastModified() == modified - 10000);
+
+        // A few changed rows go to the delta file
+        t4.update("1", 1, "changed");
+        t4.delete("2");
+        t4.insert(new Record("100", "name100"));
+        db.saveDB();
+        assert(deltaFile.exists() && tableFile.length() == length && !t4.isDirty());
+        t4.update("3", 1, "changed,\n again");
+        db.saveDB();
+
+        Database loaded = new Database("DeltaTest");
+        loaded.loadDb();
+        assert(rowsOf(loaded.getTables().get(0)).equals(rowsOf(t4)));
+
+        // Many changed rows are saved in full, which replaces the delta file
+        byte[] oldDelta;
+        try {
+            oldDelta = Files.readAllBytes(deltaFile.toPath());
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        for (int i = 10; i < 60; i++) {
+            t4.update(Integer.toString(i), 1, "changed");
+        }
+        db.saveDB();
+        assert(!deltaFile.exists() && tableFile.length() != length);
+
+        // A delta file left from an older full save is ignored
+        try {
+            Files.write(deltaFile.toPath(), oldDelta);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        Database loaded2 = new Database("DeltaTest");
+        loaded2.loadDb();
+        assert(rowsOf(loaded2.getTables().get(0)).equals(rowsOf(t4)));
+
+        // Schema changes are saved in full
+        t4.appendColumns(new Column("Age", DataType.INT));
+        t4.update("5", 2, "30");
+        db.saveDB();
+        assert(!deltaFile.exists());
+        Database loaded3 = new Database("DeltaTest");
+        loaded3.loadDb();
+        assert(rowsOf(loaded3.getTables().get(0)).equals(rowsOf(t4)));
+    }
+
+    private static void test_paged_files() {
+        File dir = new File("Databases", "PagedTest");
+        dir.mkdirs();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        File csvFile = new File(dir, "t5.csv");
+        File pagedFile = new File(dir, "t5.tbl");
+
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Email", Constraint.UNIQUE, Constraint.NOT_NULL);
+        Column c2 = new Column("Price", DataType.DOUBLE);
+        Column c3 = new Column("Active", DataType.BOOLEAN);
+        Column c4 = new Column("City");
+        Table t5 = new Table("t5", c0, c1, c2, c3, c4);
+        t5.encodeColumn(4);
+        for (int i = 0; i < 5000; i++) {
+            t5.insert(new Record(Integer.toString(i - 100), "user" + i + "@mail.com",
+                    i % 7 == 0 ? "" : Double.toString(i / 4.0), Boolean.toString(i % 2 == 0),
+                    i % 3 == 0 ? "London" : "Bristol, UK"));
+        }
+        // A row larger than a page
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 3 * PagedTableFile.PAGE_SIZE; i++) {
+            large.append((char) ('a' + i % 26));
+        }
+        t5.insert(new Record("99999", large.toString(), "1.0", "true", "\"quoted\", \u00e9"));
+
+        StorageEngine storageEngine = new StorageEngine();
+        storageEngine.saveTable(t5, csvFile);
+        storageEngine.saveTable(t5, pagedFile);
+        assert(pagedFile.length() % PagedTableFile.PAGE_SIZE != 0 && pagedFile.length() < csvFile.length());
+
+        // The full schema is kept
+        Table loaded = storageEngine.loadTableFile(pagedFile);
+        assert(loaded.getName().equals("t5") && rowsOf(loaded).equals(rowsOf(t5)));
+        Column[] columns = loaded.getColumns();
+        assert(columns[0].getConstraints().contains(Constraint.PRIMARY_KEY) && columns[0].getType() == DataType.INT);
+        assert(columns[1].getConstraints().equals(c1.getConstraints()));
+        assert(columns[2].getType() == DataType.DOUBLE && columns[3].getType() == DataType.BOOLEAN);
+        assert(columns[4].isDictionaryEncoded());
+        assert(Arrays.equals(columns[4].getDictionary().getValues(), c4.getDictionary().getValues()));
+        assert(!loaded.insert(new Record("-200", "user0@mail.com", "", "", "")));
+        assert(loaded.select_record("99999").getValue(1).length() == 3 * PagedTableFile.PAGE_SIZE);
+
+        // A database saves in paged files once they are enabled, and loads them first
+        Database db = new Database("PagedTest");
+        db.loadDb();
+        db.enableDeltaSaves();
+        db.enablePagedFiles();
+        db.saveDB();
+        long length = pagedFile.length();
+        Table t5_db = db.getTables().get(0);
+        t5_db.update("1", 2, "3.75");
+        t5_db.delete("2");
+        db.saveDB();
+        assert(new File(dir, "t5.delta").exists() && pagedFile.length() == length);
+
+        Database db2 = new Database("PagedTest");
+        db2.loadDb();
+        assert(db2.getTables().size() == 1 && rowsOf(db2.getTables().get(0)).equals(rowsOf(t5_db)));
+
+        // A PK column that is not the first column
+        Table tagged = new Table("tagged", new Column("Id", DataType.INT, Constraint.PRIMARY_KEY), new Column("Name"));
+        for (int i = 0; i < 100; i++) {
+            tagged.insert(new Record(Integer.toString(i), "Name " + i));
+        }
+        Column tag = new Column("Tag");
+        tag.setDictionaryEncoded(true);
+        tagged.addColumn(0, tag);
+        tagged.update("7", 0, "seven");
+        File taggedFile = new File(dir, "tagged.tbl");
+        tagged.trackChangedKeys();
+        storageEngine.saveTable(tagged, taggedFile);
+        Table taggedLoaded = storageEngine.loadTableFile(taggedFile);
+        assert(taggedLoaded.getColumns()[0].getName().equals("Tag") && taggedLoaded.getPKColIndex() == 1);
+        assert(taggedLoaded.rows() == 100 && rowsOf(taggedLoaded).equals(rowsOf(tagged)));
+        Table taggedLazy = storageEngine.openTableFile(taggedFile);
+        assert(taggedLazy.select_record("7").getValue(0).equals("seven") && !taggedLazy.isLoaded());
+        assert(taggedLazy.select_record("8").getValue(2).equals("Name 8"));
+
+        // A delta file finds the rows it updates by their PK column, and keeps non-ASCII values
+        tagged.update("8", 0, "\u00e9t\u00e9");
+        tagged.delete("9");
+        assert(storageEngine.saveChanges(tagged, taggedFile) && new File(dir, "tagged.delta").exists());
+        assert(!new File(dir, "tagged.dict").exists());
+        Table taggedDelta = storageEngine.loadTableFile(taggedFile);
+        assert(taggedDelta.rows() == 99 && rowsOf(taggedDelta).equals(rowsOf(tagged)));
+        assert(taggedDelta.getColumns()[0].getDictionary().codeOf("\u00e9t\u00e9") != -1);
+        taggedFile.delete();
+        new File(dir, "tagged.delta").delete();
+
+        // An empty table
+        Table empty = new Table("empty", new Column("Id", Constraint.PRIMARY_KEY));
+        File emptyFile = new File(dir, "empty.tbl");
+        storageEngine.saveTable(empty, emptyFile);
+        assert(storageEngine.loadTableFile(emptyFile).rows() == 0);
+    }
+
+    private static void test_compression() {
+        File dir = new File("Databases", "CompressionTest");
+        dir.mkdirs();
+        File plainFile = new File(dir, "plain.tbl");
+        File compressedFile = new File(dir, "compressed.tbl");
+
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Email", Constraint.UNIQUE);
+        Column c2 = new Column("Address");
+        Table t1 = new Table("t1", c0, c1, c2);
+        for (int i = 0; i < 20000; i++) {
+            t1.insert(new Record(Integer.toString(i), "user" + i + "@mail.com",
+                    (i % 50) + " Park Street, Bristol, United Kingdom"));
+        }
+        // A row larger than a block
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 2 * PagedTableFile.BLOCK_SIZE; i++) {
+            large.append((char) ('a' + i % 26));
+        }
+        t1.insert(new Record("99999", large.toString(), "\u00e9"));
+
+        StorageEngine storageEngine = new StorageEngine();
+        t1.trackChangedKeys();
+        storageEngine.saveTable(t1, plainFile);
+        assert(t1.changedKeys() != null);
+
+        // Setting a level makes the next save a full one
+        t1.setCompressionLevel(Deflater.BEST_SPEED);
+        assert(t1.changedKeys() == null);
+        storageEngine.saveTable(t1, compressedFile);
+        assert(compressedFile.length() * 3 < plainFile.length());
+
+        // The blocks are decompressed in parallel, and the level is kept
+        Table loaded = storageEngine.loadTableFile(compressedFile);
+        assert(rowsOf(loaded).equals(rowsOf(t1)) && loaded.getCompressionLevel() == Deflater.BEST_SPEED);
+        assert(loaded.select_record("99999").getValue(1).length() == 2 * PagedTableFile.BLOCK_SIZE);
+
+        // A single key is found by decompressing one block
+        Table lazy = storageEngine.openTableFile(compressedFile);
+        assert(!lazy.isLoaded() && lazy.rows() == 20001);
+        assert(lazy.select_record("12345").getValue(1).equals("user12345@mail.com"));
+        assert(lazy.select_record("20000") == null && !lazy.isLoaded());
+
+        // A file larger than a mapped segment is mapped as several, each holding whole runs
+        try {
+            for (File file : new File[] {plainFile, compressedFile}) {
+                PagedTableFile.Contents segmented = PagedTableFile.open(file, 4 * PagedTableFile.PAGE_SIZE);
+                assert(segmented.readAll().size() == 20001);
+                assert(segmented.find("12345").getValue(1).equals("user12345@mail.com"));
+                assert(segmented.find("99999").getValue(1).length() == 2 * PagedTableFile.BLOCK_SIZE);
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+
+        // An uncompressed save
+        loaded.setCompressionLevel(Deflater.NO_COMPRESSION);
+        storageEngine.saveTable(loaded, compressedFile);
+        assert(compressedFile.length() == plainFile.length());
+
+        boolean failed = false;
+        try {
+            t1.setCompressionLevel(10);
+        } catch (IllegalArgumentException e) {
+            failed = true;
+        }
+        assert(failed);
+    }
+
     public static void main(String[] args) {
         test();
+        test_dictionaries();
+        test_column_types();
+        test_saves();
+        test_paged_files();
+        test_compression();
     }
 }
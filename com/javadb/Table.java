@@ -6,24 +6,102 @@
 
 package com.javadb;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.BaseStream;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 /**
  * A table class that holds columns and records.
  * Includes single and bulk table operations by key.
+ * A table backed by a thread safe record store, such as ConcurrentRecordStore, runs in
+ * concurrent mode: writes lock the stripes of the key and unique values they touch, so a
+ * constraint check and the write that relies on it are atomic, and reads do not lock.
+ * Alter table and index operations wait for the running writes. Records read from a
+ * concurrent table must not be changed directly; use update() instead.
  */
 public class Table {
     private String name;
     // List of unique columns
     private List<Column> columns;
-    private Map<String, Record> records;
+    private RecordStore records;
+    // Value -> key indexes. Unique columns are always indexed, for constraint checks
+    private Map<Column, Index> indexes;
     private final Column pkCol;
+    // Alter table operations that some records are not yet upgraded to.
+    // A record written under schema version v needs the changes from v - baseVersion on
+    private final List<SchemaChange> schemaChanges;
+    private volatile int baseVersion;
+    // The locks of a table in concurrent mode. Null in single threaded tables
+    private final LockStripes locks;
+    // Numbers the writes that replace a version some snapshot may read
+    private final AtomicLong clock;
+    // Read timestamp -> number of open snapshots that read at it
+    private final TreeMap<Long, Integer> snapshots;
+    // True while any snapshot is open. Writes only keep old versions while it is set
+    private volatile boolean versioning;
+    // Key -> the versions replaced while snapshots were open, newest first
+    private final Map<String, Version> oldVersions;
+    // The log of the table's writes. Null if the writes are not logged
+    private volatile WriteAheadLog log;
+    // Counts the writes, so that saves can skip the tables that did not change
+    private final AtomicLong changes;
+    private volatile long savedChanges;
+    // Key -> the last write to it since the table was last saved in full. Null unless tracked
+    private volatile Map<String, Long> changedKeys;
+    // The last write that changed the table as a whole, e.g. its schema, and the last full save
+    private volatile long changedAllAt;
+    private volatile long fullySavedAt;
+    // The checksum of the table's last full save. Null if the next save has to be a full one
+    private volatile Long savedChecksum;
+    // The paged table file a lazily loaded table reads its rows from. Null unless the table is lazy
+    private volatile PagedTableFile.Contents rowFile;
+    // True while the rows of a lazy table are not in memory
+    private volatile boolean unloaded;
+    // Runs before the rows of a lazy table are loaded, given the table. Null if nothing has to
+    private volatile Consumer<Table> beforeLoad;
+    // A token per stream or cursor over the rows that may still be read. Weak, so that
+    // one dropped before it is finished stops counting once it is garbage collected
+    private final Set<Object> openScans;
+    // The Deflater level of the table's paged table file. Deflater.NO_COMPRESSION if it's not compressed
+    private volatile int compressionLevel;
 
     Table(String name, Column pkCol, Column... columns) {
+        this(name, new HashRecordStore(), pkCol, columns);
+    }
+
+    /**
+     * @param records An empty record store that will hold the table's records.
+     */
+    Table(String name, RecordStore records, Column pkCol, Column... columns) {
         this.name = name;
-        this.columns = new ArrayList<>();
-        records = new LinkedHashMap<>();
+        this.records = records;
+        if (records.isThreadSafe()) {
+            // The schema is changed rarely, and read by every operation
+            this.columns = new CopyOnWriteArrayList<>();
+            indexes = new ConcurrentHashMap<>();
+            schemaChanges = new CopyOnWriteArrayList<>();
+            locks = new LockStripes(64);
+            oldVersions = new ConcurrentHashMap<>();
+        } else {
+            this.columns = new ArrayList<>();
+            indexes = new HashMap<>();
+            schemaChanges = new ArrayList<>();
+            locks = null;
+            oldVersions = new HashMap<>();
+        }
+        clock = new AtomicLong();
+        snapshots = new TreeMap<>();
+        changes = new AtomicLong();
+        savedChanges = -1;
+        openScans = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
 
         // Set table primary key
         if (!pkCol.isPK()) {
@@ -54,7 +132,7 @@ public class Table {
      * @return A stream of map entries.
      */
     public Stream<Map.Entry<String, Record>> getRows() {
-        return records.entrySet().stream();
+        return scanning(records().entries().map(this::currentEntry));
     }
 
     /**
@@ -68,216 +146,1444 @@ public class Table {
      * @return The number of rows.
      */
     public int rows() {
-        return records.size();
+        PagedTableFile.Contents file = rowFile;
+        if (unloaded && file != null) {
+            return (int) file.rows();
+        }
+
+        return records().size();
     }
 
     /**
      * @return The index of the column that serves as PK
      */
-    private int getPKColIndex() {
+    int getPKColIndex() {
         return columns.indexOf(pkCol);
     }
 
-    // Alter Table Operations
+    // Alter Table Operations
+
+    /**
+     * Adds a column at certain index, in constant time.
+     * The records are not rewritten: a record written before the column was added
+     * is upgraded the next time it's accessed, and reads the column as blank.
+     */
+    public boolean addColumn(int colIndex, Column c) {
+        beginAlter();
+        try {
+            /* Check if the column to add is marked as Primary Key
+             * Rejects any other columns that are marked as primary key, other than this
+             * set in the table constructor.
+             */
+
+            // Allow only unique columns to be added
+            for (Column column : columns) {
+                if (c.equals(column)) {
+                    return false;
+                }
+            }
+
+
+            if (c.getConstraints().contains(Constraint.PRIMARY_KEY) && c != pkCol) {
+                return false;
+            }
+
+            // Add column to table
+            columns.add(colIndex, c);
+
+            // Typed columns are filled with the empty value, since a blank is not a valid number
+            String fill = c.getType().isPrimitive() ? "" : " ";
+            if (records().altersInPlace()) {
+                records().addField(colIndex, c, fill);
+            } else if (rows() > 0) {
+                if (c.isDictionaryEncoded()) {
+                    fill = c.getDictionary().intern(fill);
+                }
+                schemaChanges.add(new SchemaChange(colIndex, fill));
+            }
+
+            if (c.isUnique()) {
+                indexes.put(c, buildIndex(colIndex));
+            }
+            changedAll();
+            if (log != null) {
+                log.logAddColumn(this, colIndex, c);
+            }
+
+            return true;
+        } finally {
+            endAlter();
+        }
+    }
+
+    /**
+     * Add new columns after the last column
+     */
+    public void appendColumns(Column... columns) {
+        for(Column c:columns) {
+            addColumn(this.columns.size(), c);
+        }
+    }
+
+    /**
+     * Drops a column from the table, in constant time.
+     * The records are not rewritten: a record written before the column was dropped
+     * still holds its value until it's upgraded, but the value is never returned.
+     */
+    public boolean dropColumn(int colIndex) {
+        beginAlter();
+        try {
+            // Stops dropping a column that serves as PK
+            if (columns.get(colIndex) == pkCol) {
+                return false;
+            }
+
+            // Remove column and its index
+            Column c = columns.remove(colIndex);
+            indexes.remove(c);
+
+            if (records().altersInPlace()) {
+                records().dropField(colIndex);
+            } else if (rows() > 0) {
+                schemaChanges.add(new SchemaChange(colIndex, null));
+            }
+            changedAll();
+            if (log != null) {
+                log.logDropColumn(this, c.getName());
+            }
+
+            return true;
+        } finally {
+            endAlter();
+        }
+    }
+
+    /**
+     * Stores a column of the table with dictionary encoding.
+     */
+    public void encodeColumn(int colIndex) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        beginAlter();
+        try {
+            Column c = columns.get(colIndex);
+            c.setDictionaryEncoded(true);
+            compact();
+            records().encodeField(colIndex, c.getDictionary());
+            changedAll();
+        } finally {
+            endAlter();
+        }
+    }
+
+    /**
+     * Upgrades every record written under an older schema, so that later reads
+     * don't have to. Can be run when the table is idle.
+     */
+    public void compact() {
+        beginAlter();
+        try {
+            if (schemaChanges.isEmpty()) {
+                return;
+            }
+
+            int version = schemaVersion();
+            records().entries().forEach(pair -> {
+                Record r = pair.getValue();
+                if (r.getVersion() != version) {
+                    records().put(pair.getKey(), current(r));
+                }
+            });
+            upgradeOldVersions();
+
+            baseVersion = version;
+            schemaChanges.clear();
+        } finally {
+            endAlter();
+        }
+    }
+
+    /**
+     * Removes every record. Off-heap record stores free their memory.
+     */
+    public void truncate() {
+        beginAlter();
+        try {
+            if (versioning) {
+                records().entries().forEach(pair -> preserve(pair.getKey(), pair.getValue()));
+            }
+            upgradeOldVersions();
+            baseVersion = schemaVersion();
+            schemaChanges.clear();
+            records().clear();
+            for (Index index : indexes().values()) {
+                index.clear();
+            }
+            changedAll();
+            if (log != null) {
+                log.logTruncate(this);
+            }
+        } finally {
+            endAlter();
+        }
+    }
+
+    /**
+     * Releases the table's records and indexes, when the table is dropped.
+     * Off-heap record stores free their memory. The table cannot be used afterwards.
+     */
+    void close() {
+        beginAlter();
+        try {
+            records.close();
+            indexes.clear();
+        } finally {
+            endAlter();
+        }
+    }
+
+    // Record Operations
+
+    public boolean insert(Record r) {
+        beginWrite();
+        try {
+            //check if record is compatible
+            if (r.size() != columns.size() || normalizeValues(r) != -1) {
+                return false;
+            }
+
+            int[] held = lockRecord(r);
+            try {
+                if (isViolation(r)) {
+                    return false;
+                }
+
+                encodeValues(r);
+                String key = r.getValue(getPKColIndex());
+                putRecord(key, r);
+                addToIndexes(key, r);
+                return true;
+            } finally {
+                unlock(held);
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+    public void insert(Record... records) {
+        new BulkInsert(this).run(Arrays.asList(records));
+    }
+
+    public Record select_record(String key) {
+        // A table whose rows are not loaded reads the one page that may hold the key
+        PagedTableFile.Contents file = rowFile;
+        if (unloaded && file != null) {
+            Record r = file.find(key);
+            if (r != null) {
+                r.setVersion(schemaVersion());
+            }
+            return r;
+        }
+
+        return current(records().get(key));
+    }
+
+    public Set<Record> select_record(Set<String> keys) {
+
+        Set<Record> results = new LinkedHashSet<>();
+
+        for(String key : keys) {
+            Record r = select_record(key);
+            if (r != null) {
+                results.add(r);
+            }
+        }
+
+        return results;
+    }
+
+    public boolean update(String key, int colIndex, String newValue) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        beginWrite();
+        try {
+            Column column = columns.get(colIndex);
+            String value = column.getType().normalize(newValue);
+            if (value == null) {
+                return false;
+            }
+
+            // Lock the record, and the new value if it has to be unique
+            int[] held = column.isUnique() ?
+                    lock(stripe(pkCol, key), stripe(column, value)) : lock(stripe(pkCol, key));
+            try {
+                return update(key, colIndex, column, value);
+            } finally {
+                unlock(held);
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+    private boolean update(String key, int colIndex, Column column, String newValue) {
+        Record r = records().get(key);
+        if (r == null) {
+            return false;
+        }
+        if (r.getVersion() != schemaVersion()) {
+            // Upgrade on write. Stores that hold copies of their records need it written back
+            records().put(key, current(r));
+        }
+
+        // Check for constraint violations
+        Index index = indexes().get(column);
+
+        for(Constraint constraint : column.getConstraints()) {
+            if (constraint.isViolated(index, newValue)) {
+                return false;
+            }
+        }
+
+        // If everything is ok modify record
+        if (column.isDictionaryEncoded()) {
+            newValue = column.getDictionary().intern(newValue);
+        }
+        if (column == pkCol) {
+            // The record is stored under its PK, so it has to be re-keyed.
+            // Readers may hold the record, so a changed copy takes its place
+            preserve(key, r);
+            preserve(newValue, null);
+            removeFromIndexes(key, r);
+            records().remove(key);
+            r = r.copy();
+            r.setValue(colIndex, newValue);
+            records().put(newValue, r);
+            addToIndexes(newValue, r);
+            changed(key);
+            changed(newValue);
+            if (log != null) {
+                log.logUpdate(this, key, column, newValue);
+            }
+        } else {
+            String oldValue = r.getValue(colIndex);
+            if (versioning) {
+                // A snapshot may read the old version, so a changed copy takes its place
+                preserve(key, r);
+                r = r.copy();
+                r.setValue(colIndex, newValue);
+                records().put(key, r);
+            } else {
+                records().setValue(key, colIndex, newValue);
+            }
+            if (index != null) {
+                index.remove(oldValue, key);
+                index.add(newValue, key);
+            }
+            changed(key);
+            if (log != null) {
+                log.logUpdate(this, key, column, newValue);
+            }
+        }
+        return true;
+    }
+
+    public void update(Set<String> keys, int colIndex, String newValue) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        for(String key : keys) {
+            update(key, colIndex, newValue);
+        }
+    }
+
+    public Record delete(String key) {
+        beginWrite();
+        int[] held = lock(stripe(pkCol, key));
+        try {
+            Record r = current(records().get(key));
+            if (r != null) {
+                preserve(key, r);
+                records().remove(key);
+                removeFromIndexes(key, r);
+                changed(key);
+                if (log != null) {
+                    log.logDelete(this, key);
+                }
+            }
+
+            return r;
+        } finally {
+            unlock(held);
+            endWrite();
+        }
+    }
+
+    public Set<Record> delete(Set<String> keys) {
+        Set<Record> results = new LinkedHashSet<>();
+
+        for(String key : keys) {
+            Record r = delete(key);
+            if (r != null) {
+                results.add(r);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Selects the records that hold a value in a column.
+     * Uses the column's index if there is one, otherwise scans the table.
+     * @return A set of rows. Empty if no record holds the value.
+     */
+    public Set<Record> selectWhere(int colIndex, String value) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        Index index = indexes().get(columns.get(colIndex));
+        if (index != null) {
+            return select_record(index.get(value));
+        }
+
+        return scanning(records().values())
+                .map(this::current)
+                .filter(r -> Objects.equals(r.getValue(colIndex), value))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Selects the records with keys in a range, in the order of the PK column's type.
+     * Tables backed by a record store ordered by the same type walk only the range.
+     * Other tables have to filter and sort all of their records.
+     * @param from The lowest key, inclusive. Null for no lower bound.
+     * @param to The highest key, inclusive. Null for no upper bound.
+     * @return A stream of map entries.
+     */
+    public Stream<Map.Entry<String, Record>> selectRange(String from, String to) {
+        if (isKeyOrdered()) {
+            return scanning(((OrderedRecordStore) records()).range(from, to).map(this::currentEntry));
+        }
+
+        DataType type = pkCol.getType();
+        return getRows()
+                .filter(pair -> (from == null || type.compare(pair.getKey(), from) >= 0) &&
+                        (to == null || type.compare(pair.getKey(), to) <= 0))
+                .sorted(Map.Entry.comparingByKey(type));
+    }
+
+    /**
+     * Ordered iteration by key, for example to read a table in pages.
+     * @param from The key to start from, inclusive. Null to start from the first key.
+     * @return An iterator over the map entries in key order.
+     */
+    public Iterator<Map.Entry<String, Record>> cursor(String from) {
+        if (isKeyOrdered()) {
+            Iterator<Map.Entry<String, Record>> cursor = ((OrderedRecordStore) records()).cursor(from);
+            return new Iterator<Map.Entry<String, Record>>() {
+                // Keeps the table loaded for as long as the cursor is in use
+                private final Object scan = openScan();
+
+                @Override
+                public boolean hasNext() {
+                    return cursor.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, Record> next() {
+                    return currentEntry(cursor.next());
+                }
+            };
+        }
+
+        return selectRange(from, null).iterator();
+    }
+
+    /**
+     * Scans the table for the records that satisfy a predicate.
+     * The predicate is answered from the indexes if possible, or from a key range
+     * on an ordered record store, and the remaining records are tested directly.
+     * @param where The predicate to satisfy. Null selects every record.
+     * @param projection The indexes of the columns to return. Null returns every column.
+     * @return A stream of the projected values of each matching record.
+     */
+    public Stream<String[]> scan(Predicate where, int[] projection) {
+        Predicate bound = where == null ? null : where.bind(getColumns());
+        if (projection != null) {
+            for (int colIndex : projection) {
+                if (colIndex < 0 || colIndex >= columns()) {
+                    throw new IndexOutOfBoundsException();
+                }
+            }
+        }
+
+        return scanning(select(bound)).map(r -> project(r.rawValues(), projection));
+    }
+
+    /**
+     * Scans a single column. On a column oriented table only the column's values are read.
+     * @return A stream of the column's values.
+     */
+    public Stream<String> scanColumn(int colIndex) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return scanning(column(colIndex));
+    }
+
+    /**
+     * Scans an INT, LONG, BOOLEAN or TIMESTAMP column as primitive values, skipping
+     * blank fields. Booleans are 0 or 1, and timestamps are milliseconds since the epoch.
+     * On a column oriented table the values are read without parsing.
+     */
+    public LongStream scanLongs(int colIndex) {
+        DataType type = typeOf(colIndex);
+        if (!type.isPrimitive() || type == DataType.DOUBLE) {
+            throw new IllegalArgumentException("Column is not an integral type.");
+        }
+        if (!schemaChanges.isEmpty()) {
+            return scanning(column(colIndex).filter(v -> !DataType.isBlank(v)).mapToLong(type::encode));
+        }
+
+        return scanning(records().longs(colIndex, type));
+    }
+
+    /**
+     * Scans a column of a primitive type as doubles, skipping blank fields.
+     * On a column oriented table the values are read without parsing.
+     */
+    public DoubleStream scanDoubles(int colIndex) {
+        DataType type = typeOf(colIndex);
+        if (!type.isPrimitive()) {
+            throw new IllegalArgumentException("Column is not a numeric type.");
+        }
+        if (!schemaChanges.isEmpty()) {
+            return scanning(column(colIndex).filter(v -> !DataType.isBlank(v)).mapToDouble(v -> type.toDouble(type.encode(v))));
+        }
+
+        return scanning(records().doubles(colIndex, type));
+    }
+
+    private DataType typeOf(int colIndex) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return columns.get(colIndex).getType();
+    }
+
+    /**
+     * A parallel version of scan().
+     * Scales with the number of cores on tables backed by a ChunkedRecordStore,
+     * whose records split into equal parts.
+     */
+    public Stream<String[]> parallelScan(Predicate where, int[] projection) {
+        return scan(where, projection).parallel();
+    }
+
+    /**
+     * Groups the records by the values of some columns, and computes aggregates of each
+     * group, like SELECT ... GROUP BY.
+     * @param groupBy The indexes of the columns to group by. Empty for a single group.
+     * @return A row per group: the values of the group by columns followed by the
+     * aggregates, in no particular order.
+     */
+    public Stream<String[]> aggregate(int[] groupBy, Aggregate... aggregates) {
+        return aggregate(null, groupBy, aggregates);
+    }
+
+    /**
+     * Aggregates the records that satisfy a predicate, see aggregate(int[], Aggregate...).
+     * The records are aggregated in parallel: each thread aggregates its share into a hash
+     * table of its own, and the tables are merged at the end. A table holding more than
+     * HashAggregation.MAX_GROUPS groups spills them to temporary files.
+     * @param where The predicate to satisfy. Null aggregates every record.
+     */
+    public Stream<String[]> aggregate(Predicate where, int[] groupBy, Aggregate... aggregates) {
+        return aggregate(where, groupBy, HashAggregation.MAX_GROUPS, aggregates);
+    }
+
+    /**
+     * @param maxGroups The most groups a thread holds in memory before it spills them.
+     */
+    Stream<String[]> aggregate(Predicate where, int[] groupBy, int maxGroups, Aggregate... aggregates) {
+        Column[] columns = getColumns();
+        Predicate bound = where == null ? null : where.bind(columns);
+        for (int colIndex : groupBy) {
+            if (colIndex < 0 || colIndex >= columns.length) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+        Aggregate[] boundAggregates = new Aggregate[aggregates.length];
+        for (int i = 0; i < aggregates.length; i++) {
+            boundAggregates[i] = aggregates[i].bind(columns);
+        }
+
+        HashAggregation aggregation = scanning(select(bound)).parallel().collect(
+                () -> new HashAggregation(groupBy, boundAggregates, maxGroups),
+                HashAggregation::add, HashAggregation::merge);
+        return aggregation.finish().stream();
+    }
+
+    /**
+     * @return The records that satisfy a predicate, using the narrowest access path.
+     */
+    private Stream<Record> select(Predicate where) {
+        if (where == null) {
+            return records().values().map(this::current);
+        }
+
+        Set<String> keys = where.indexLookup(this);
+        if (keys != null) {
+            return keys.stream()
+                    .map(this::select_record)
+                    .filter(r -> r != null && where.test(r.rawValues()));
+        }
+
+        String[] range = where.keyRange(getPKColIndex());
+        if (range != null && isKeyOrdered()) {
+            return ((OrderedRecordStore) records()).range(range[0], range[1])
+                    .map(pair -> current(pair.getValue()))
+                    .filter(r -> where.test(r.rawValues()));
+        }
+
+        // The store tests the records as they are stored, so they have to be up to date
+        if (!schemaChanges.isEmpty()) {
+            return records().values().map(this::current).filter(r -> where.test(r.rawValues()));
+        }
+
+        return records().select(where);
+    }
+
+    /**
+     * @return The values of a column.
+     */
+    private Stream<String> column(int colIndex) {
+        if (!schemaChanges.isEmpty()) {
+            return records().values().map(r -> current(r).getValue(colIndex));
+        }
+
+        return records().column(colIndex);
+    }
+
+    /**
+     * @return True if the record store keeps its keys in the order of the PK column's type.
+     */
+    private boolean isKeyOrdered() {
+        return records instanceof OrderedRecordStore &&
+                ((OrderedRecordStore) records).comparator() == pkCol.getType();
+    }
+
+    private static String[] project(String[] values, int[] projection) {
+        if (projection == null) {
+            return values.clone();
+        }
+
+        String[] projected = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            projected[i] = values[projection[i]];
+        }
+
+        return projected;
+    }
+
+    /**
+     * Checks if a record violates any column constraints.
+     * @param r
+     * @return True if any violations are detected.
+     */
+    private boolean isViolation(Record r) {
+        // Checks if record has the same number of fields as columns
+        if ( r.size() != columns.size()) {
+            return true;
+        }
+
+        // Loops through columns and checks if any constraints are violated
+        boolean violation = false;
+        int i =0;
+        while (i < columns.size()) {
+            Column column = columns.get(i);
+            EnumSet<Constraint> constraintSet= column.getConstraints();
+
+            for (Constraint constraint : constraintSet) {
+                violation = constraint.isViolated(indexes().get(column), r.getValue(i));
+                if (violation) {
+                    return true;
+                }
+            }
+
+            i++;
+        }
+
+        return false;
+    }
+
+    // Indexes
+
+    /**
+     * Creates a secondary index on a column.
+     * @return False if the column is already indexed.
+     */
+    public boolean createIndex(int colIndex) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        beginAlter();
+        try {
+            Column c = columns.get(colIndex);
+            if (indexes.containsKey(c)) {
+                return false;
+            }
+
+            indexes.put(c, buildIndex(colIndex));
+            return true;
+        } finally {
+            endAlter();
+        }
+    }
+
+    /**
+     * Drops the secondary index of a column.
+     * The indexes of unique columns are needed for constraint checks and cannot be dropped.
+     * @return False if the column has no index or is unique.
+     */
+    public boolean dropIndex(int colIndex) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        beginAlter();
+        try {
+            Column c = columns.get(colIndex);
+            if (c.isUnique()) {
+                return false;
+            }
+
+            return indexes.remove(c) != null;
+        } finally {
+            endAlter();
+        }
+    }
+
+    public boolean hasIndex(int colIndex) {
+        if (colIndex < 0 || colIndex >= columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return indexes.containsKey(columns.get(colIndex));
+    }
+
+    /**
+     * Builds an index on a column from the table's records.
+     */
+    private Index buildIndex(int colIndex) {
+        Index index = new Index(locks != null);
+        records().entries().forEach(pair -> index.add(current(pair.getValue()).getValue(colIndex), pair.getKey()));
+
+        return index;
+    }
+
+    /**
+     * Replaces the values of typed columns with their canonical form.
+     * @return The index of the first column holding a value that is not valid for
+     * its type, or -1 if every value is valid.
+     */
+    int normalizeValues(Record r) {
+        for (int i = 0; i < columns.size(); i++) {
+            DataType type = columns.get(i).getType();
+            if (type.isPrimitive()) {
+                String value = type.normalize(r.getValue(i));
+                if (value == null) {
+                    return i;
+                }
+                r.setValue(i, value);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Replaces the values of dictionary encoded columns with the dictionary's instances.
+     */
+    void encodeValues(Record r) {
+        for (int i = 0; i < columns.size(); i++) {
+            Dictionary dictionary = columns.get(i).getDictionary();
+            if (dictionary != null) {
+                r.setValue(i, dictionary.intern(r.getValue(i)));
+            }
+        }
+    }
+
+    /**
+     * @return The index of a column, or null if the column is not indexed.
+     */
+    Index getIndex(int colIndex) {
+        return indexes().get(columns.get(colIndex));
+    }
+
+    /**
+     * Grows the record store and the indexes ahead of a bulk insert.
+     */
+    void reserve(int additionalRows) {
+        int size = rows() + additionalRows;
+        records().ensureCapacity(size);
+        for (Index index : indexes().values()) {
+            index.ensureCapacity(size);
+        }
+    }
+
+    /**
+     * Stores a record that has already been validated, without updating the indexes.
+     */
+    void putRecord(String key, Record r) {
+        r.setVersion(schemaVersion());
+        preserve(key, null);
+        records().put(key, r);
+        changed(key);
+        if (log != null) {
+            log.logInsert(this, r);
+        }
+    }
+
+    /**
+     * Logs the table's writes from now on. Null stops logging.
+     */
+    void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    // Locks
+
+    /**
+     * Starts a write to a concurrent table. Writes run alongside each other,
+     * but not alongside alter table operations.
+     */
+    void beginWrite() {
+        if (locks != null) {
+            locks.lockShared();
+        }
+    }
+
+    void endWrite() {
+        if (locks != null) {
+            locks.unlockShared();
+        }
+    }
+
+    private void beginAlter() {
+        if (locks != null) {
+            locks.lockExclusive();
+        }
+    }
+
+    private void endAlter() {
+        if (locks != null) {
+            locks.unlockExclusive();
+        }
+    }
+
+    private int stripe(Column c, String value) {
+        return locks == null ? 0 : locks.stripeOf(c, value);
+    }
+
+    /**
+     * Locks stripes of a concurrent table, inside a write.
+     * @return The locked stripes, to pass to unlock(). Null in single threaded tables.
+     */
+    private int[] lock(int... stripes) {
+        return locks == null ? null : locks.lock(stripes);
+    }
+
+    /**
+     * Locks the stripes of a record's unique values, including its key, inside a write.
+     * @return The locked stripes, to pass to unlock(). Null in single threaded tables.
+     */
+    int[] lockRecord(Record r) {
+        return lockRecords(Collections.emptySet(), Collections.singleton(r));
+    }
+
+    /**
+     * Locks the stripes of a set of keys, and of the unique values of a set of
+     * records, at once, inside a write.
+     * @return The locked stripes, to pass to unlock(). Null in single threaded tables.
+     */
+    int[] lockRecords(Collection<String> keys, Collection<Record> records) {
+        if (locks == null) {
+            return null;
+        }
+
+        int[] stripes = new int[keys.size() + records.size() * columns.size()];
+        int count = 0;
+        for (String key : keys) {
+            stripes[count++] = locks.stripeOf(pkCol, key);
+        }
+        for (Record r : records) {
+            for (int i = 0; i < columns.size(); i++) {
+                Column c = columns.get(i);
+                if (c.isUnique()) {
+                    stripes[count++] = locks.stripeOf(c, r.getValue(i));
+                }
+            }
+        }
+
+        return locks.lock(Arrays.copyOf(stripes, count));
+    }
+
+    void unlock(int[] held) {
+        if (held != null) {
+            locks.unlock(held);
+        }
+    }
+
+    // Change Tracking
+
+    private void changed(String key) {
+        long change = changes.incrementAndGet();
+        Map<String, Long> keys = changedKeys;
+        if (keys != null) {
+            keys.put(key, change);
+        }
+    }
+
+    private void changedAll() {
+        changedAllAt = changes.incrementAndGet();
+    }
+
+    /**
+     * Marks the whole table as changed, so that the next save is a full one.
+     */
+    void forceFullSave() {
+        changedAll();
+    }
+
+    /**
+     * Compresses the table's paged table file from the next save on, which is a full one.
+     * @param level A Deflater level: from 1 (fastest) to 9 (smallest), or -1 for the default.
+     *              Deflater.NO_COMPRESSION (0) saves the table uncompressed.
+     */
+    public void setCompressionLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between -1 and 9.");
+        }
+
+        if (level != compressionLevel) {
+            compressionLevel = level;
+            changedAll();
+        }
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @return The number of writes to the table so far.
+     */
+    long changes() {
+        return changes.get();
+    }
+
+    /**
+     * @return True if the table was written since it was last saved.
+     */
+    boolean isDirty() {
+        return changes.get() != savedChanges;
+    }
+
+    /**
+     * Keeps track of the keys written since the table was last saved in full, so that
+     * only their rows need to be saved. The keys written before are not known, so the
+     * next save has to be a full one.
+     */
+    void trackChangedKeys() {
+        if (changedKeys == null) {
+            changedKeys = records.isThreadSafe() ? new ConcurrentHashMap<>() : new HashMap<>();
+            savedChecksum = null;
+        }
+    }
+
+    /**
+     * @return The keys written since the table was last saved in full, or null if they
+     * are not known and the table has to be saved in full.
+     */
+    Set<String> changedKeys() {
+        Map<String, Long> keys = changedKeys;
+        if (keys == null || savedChecksum == null || changedAllAt > fullySavedAt) {
+            return null;
+        }
+
+        return new HashSet<>(keys.keySet());
+    }
+
+    /**
+     * @return The checksum of the table's last full save. Null if there is none.
+     */
+    Long savedChecksum() {
+        return savedChecksum;
+    }
+
+    /**
+     * Marks the table as saved in full, as of a number of writes.
+     * The writes made while the table was saved stay tracked.
+     */
+    void markSaved(long changes, long checksum) {
+        Map<String, Long> keys = changedKeys;
+        if (keys != null) {
+            keys.entrySet().removeIf(pair -> pair.getValue() <= changes);
+        }
+        fullySavedAt = changes;
+        savedChecksum = checksum;
+        savedChanges = changes;
+    }
+
+    /**
+     * Marks the table as saved, as of a number of writes, without a full save.
+     */
+    void markSaved(long changes) {
+        savedChanges = changes;
+    }
+
+    // Lazy Loading
+
+    /**
+     * Makes a new, empty table lazy: its rows are loaded from a paged table file the first
+     * time they are accessed. Until then, the table reads single keys and its row count
+     * from the file.
+     */
+    void loadLazily(PagedTableFile.Contents file) {
+        rowFile = file;
+        unloaded = true;
+    }
+
+    /**
+     * Points a lazy table at the file it was just saved to in full.
+     */
+    void setRowFile(PagedTableFile.Contents file) {
+        if (rowFile != null) {
+            rowFile = file;
+        }
+    }
+
+    boolean isLazy() {
+        return rowFile != null;
+    }
+
+    boolean isLoaded() {
+        return !unloaded;
+    }
+
+    void setBeforeLoad(Consumer<Table> beforeLoad) {
+        this.beforeLoad = beforeLoad;
+    }
+
+    /**
+     * @return True if a stream or cursor over the rows may still be read. A stream stops
+     * counting when it is closed, or garbage collected.
+     */
+    boolean isScanned() {
+        return !openScans.isEmpty();
+    }
+
+    /**
+     * @return The stream, counted as open until it is closed or garbage collected.
+     */
+    private <S extends BaseStream<?, S>> S scanning(S rows) {
+        Object scan = openScan();
+        return rows.onClose(() -> openScans.remove(scan));
+    }
+
+    /**
+     * @return A new token of an open scan, which counts while it is reachable.
+     */
+    private Object openScan() {
+        Object scan = new Object();
+        openScans.add(scan);
+        return scan;
+    }
+
+    /**
+     * @return The record store, with the rows of a lazy table loaded into it.
+     */
+    private RecordStore records() {
+        if (unloaded) {
+            load();
+        }
+
+        return records;
+    }
+
+    /**
+     * @return The indexes, with the rows of a lazy table loaded into them.
+     */
+    private Map<Column, Index> indexes() {
+        if (unloaded) {
+            load();
+        }
+
+        return indexes;
+    }
+
+    private void load() {
+        Consumer<Table> hook = beforeLoad;
+        if (hook != null) {
+            hook.accept(this);
+        }
+
+        synchronized (this) {
+            if (!unloaded) {
+                return;
+            }
+
+            // The file holds the rows as of the table's last full save, in the current schema
+            int pkColIndex = getPKColIndex();
+            int version = schemaVersion();
+            for (Record r : rowFile.readAll()) {
+                r.setVersion(version);
+                encodeValues(r);
+                records.put(r.getValue(pkColIndex), r);
+            }
+            for (Map.Entry<Column, Index> pair : indexes.entrySet()) {
+                int colIndex = columns.indexOf(pair.getKey());
+                Index index = pair.getValue();
+                records.entries().forEach(entry -> index.add(entry.getValue().getValue(colIndex), entry.getKey()));
+            }
+            unloaded = false;
+        }
+    }
+
+    /**
+     * Drops the rows of a lazy table from memory, if the table is the same as the file it
+     * was last saved to in full, and no snapshot is open. They are loaded again on access.
+     * @return True if the rows were dropped.
+     */
+    boolean unload() {
+        beginAlter();
+        try {
+            synchronized (this) {
+                if (rowFile == null || unloaded || changes.get() != fullySavedAt ||
+                        versioning || !oldVersions.isEmpty()) {
+                    return false;
+                }
+
+                records.clear();
+                for (Index index : indexes.values()) {
+                    index.clear();
+                }
+                unloaded = true;
+                return true;
+            }
+        } finally {
+            endAlter();
+        }
+    }
+
+    // Snapshots
 
     /**
-     * Adds a column at certain index.
-     * Each record is replaced by a new record conforming to the new table schema.
+     * Opens a consistent read view of the table, as of now.
+     * Writes go on while the snapshot is open: each write that replaces a record keeps the
+     * old version, for as long as a snapshot may read it. Close the snapshot when done,
+     * so that the old versions can be dropped.
+     * The snapshot covers the records, not the schema: altering the table changes what
+     * an open snapshot reads.
      */
-    public boolean addColumn(int colIndex, Column c) {
-        /* Check if the column to add is marked as Primary Key
-         * Rejects any other columns that are marked as primary key, other than this
-         * set in the table constructor.
-         */
-
-        // Allow only unique columns to be added
-        for (Column column : columns) {
-            if (c.equals(column)) {
-                return false;
+    public Snapshot snapshot() {
+        // Waits for the running writes, so that every write is either before the snapshot or after it
+        beginAlter();
+        try {
+            long readTs = clock.get();
+            synchronized (snapshots) {
+                snapshots.merge(readTs, 1, Integer::sum);
+                versioning = true;
             }
-        }
 
-
-        if (c.getConstraints().contains(Constraint.PRIMARY_KEY) && c != pkCol) {
-            return false;
+            return new Snapshot(readTs);
+        } finally {
+            endAlter();
         }
+    }
 
-        // Add column to table
-        columns.add(c);
-
-        // Replace table rows to conform to the new table schema
-        for (Map.Entry<String, Record> pair : records.entrySet()) {
-            Record r = pair.getValue();
-
-            List<String> newVals = new ArrayList<>();
-            newVals.addAll(Arrays.asList(r.getValues()));
-            newVals.add(colIndex, " ");
-
-            // Create a new record and replace the old one in the table
-            Record newRecord = new Record(newVals.toArray(new String[newVals.size()]));
-            records.replace(pair.getKey(), newRecord);
+    /**
+     * Drops the old versions that no open snapshot can read.
+     * Runs when a snapshot is closed.
+     */
+    public void vacuum() {
+        // Versions replaced up to the horizon are older than every open or future snapshot
+        long horizon;
+        synchronized (snapshots) {
+            horizon = snapshots.isEmpty() ? clock.get() : snapshots.firstKey();
         }
 
-        return true;
+        oldVersions.replaceAll((key, chain) -> prune(chain, horizon));
+        oldVersions.entrySet().removeIf(pair -> pair.getValue().replacedAt <= horizon);
     }
 
     /**
-     * Add new columns after the last column
+     * Keeps the version a record had before a write, if a snapshot may read it.
+     * Called inside the write, before the record is replaced.
+     * @param r The record. Null if the write adds the key.
      */
-    public void appendColumns(Column... columns) {
-        for(Column c:columns) {
-            addColumn(this.columns.size(), c);
+    private void preserve(String key, Record r) {
+        if (!versioning) {
+            return;
         }
+
+        long replacedAt = clock.incrementAndGet();
+        oldVersions.compute(key, (k, newer) -> new Version(r, replacedAt, newer));
     }
 
     /**
-     * Drops a column from the table.
-     * Each record is replaced by a new record conforming to the new table schema.
+     * @param r The stored record, read before the versions.
+     * @return The version of a record a snapshot reads. Null if the key did not exist.
      */
-    public boolean dropColumn(int colIndex) {
-        // Stops dropping a column that serves as PK
-        if (columns.get(colIndex) == pkCol) {
-            return false;
+    private static Record visible(Record r, Version chain, long readTs) {
+        for (Version v = chain; v != null && v.replacedAt > readTs; v = v.older) {
+            r = v.record;
         }
 
-        // Remove column
-        columns.remove(colIndex);
+        return r;
+    }
 
-        // Modify table rows
-        for (Map.Entry<String, Record> pair : records.entrySet()) {
-            Record r = pair.getValue();
+    /**
+     * Cuts the versions replaced up to the horizon off a chain. Chains are never changed,
+     * so the versions that are kept are copied. A chain with no versions to keep is
+     * returned as it is, to be removed whole.
+     */
+    private static Version prune(Version chain, long horizon) {
+        int keep = 0;
+        Version v = chain;
+        while (v != null && v.replacedAt > horizon) {
+            keep++;
+            v = v.older;
+        }
+        if (v == null || keep == 0) {
+            return chain;
+        }
 
-            List<String> newVals = new ArrayList<>();
-            newVals.addAll(Arrays.asList(r.getValues()));
-            newVals.remove(colIndex);
+        Version[] kept = new Version[keep];
+        v = chain;
+        for (int i = 0; i < keep; i++, v = v.older) {
+            kept[i] = v;
+        }
 
-            // Create a new record and replace the old one in the table
-            Record newRecord = new Record(newVals.toArray(new String[newVals.size()]));
-            records.replace(pair.getKey(), newRecord);
+        Version pruned = null;
+        for (int i = keep - 1; i >= 0; i--) {
+            pruned = new Version(kept[i].record, kept[i].replacedAt, pruned);
         }
 
-        return true;
+        return pruned;
     }
 
-    public void truncate() {
-        records.clear();
+    /**
+     * A version of a record that a write replaced.
+     */
+    private static class Version {
+        // Null if the key did not exist
+        private final Record record;
+        // The write that replaced it
+        private final long replacedAt;
+        private final Version older;
+
+        Version(Record record, long replacedAt, Version older) {
+            this.record = record;
+            this.replacedAt = replacedAt;
+            this.older = older;
+        }
     }
 
-    // Record Operations
+    /**
+     * A read view of a table as of the moment it was opened.
+     * Reads never lock, and never see the writes made after the snapshot was opened.
+     * Streams run in two passes, over the stored records and then over the records
+     * removed since, so they have to be consumed sequentially. On a single threaded
+     * table a stream has to be consumed before the table is written.
+     */
+    public class Snapshot implements AutoCloseable {
+        private final long readTs;
+        private boolean closed;
 
-    public boolean insert(Record r) {
-        //check if record is compatible
-        if (isViolation(r)) {
-            return false;
+        private Snapshot(long readTs) {
+            this.readTs = readTs;
         }
 
-        records.put(r.getValue(getPKColIndex()), r);
-        return true;
-    }
-
-    public void insert(Record... records) {
-        for(Record r : records) {
-            insert(r);
+        public Record select_record(String key) {
+            checkOpen();
+            Record r = records().get(key);
+            return current(visible(r, oldVersions.get(key), readTs));
         }
-    }
 
-    public Record select_record(String key) {
-        return records.get(key);
-    }
+        /**
+         * @return A stream of the rows as of the snapshot.
+         */
+        public Stream<Map.Entry<String, Record>> getRows() {
+            checkOpen();
+            // The keys returned by the first pass. A concurrent write may give any of them
+            // old versions while the stream runs, so a concurrent table remembers all of them
+            Set<String> seen = new HashSet<>();
+            Stream<Map.Entry<String, Record>> stored = records().entries().map(pair -> {
+                String key = pair.getKey();
+                Version chain = oldVersions.get(key);
+                if (chain != null || locks != null) {
+                    seen.add(key);
+                }
 
-    public Set<Record> select_record(Set<String> keys) {
+                return entry(key, visible(pair.getValue(), chain, readTs));
+            });
 
-        Set<Record> results = new LinkedHashSet<>();
+            Stream<Map.Entry<String, Record>> removed = Stream.of(oldVersions)
+                    .flatMap(versions -> versions.keySet().stream())
+                    .filter(key -> !seen.contains(key))
+                    .map(key -> entry(key, visible(records().get(key), oldVersions.get(key), readTs)));
 
-        for(String key : keys) {
-            Record r = select_record(key);
-            if (r != null) {
-                results.add(r);
-            }
+            return Stream.concat(stored, removed).sequential().filter(Objects::nonNull);
         }
 
-        return results;
-    }
-
-    public boolean update(String key, int colIndex, String newValue) {
-        if (colIndex < 0 || colIndex >= columns()) {
-            throw new IndexOutOfBoundsException();
+        /**
+         * @return The number of rows as of the snapshot.
+         */
+        public long rows() {
+            return getRows().count();
         }
 
-        Record r = select_record(key);
-        if (r == null) {
-            return false;
+        /**
+         * Scans the snapshot for the records that satisfy a predicate. See Table.scan().
+         */
+        public Stream<String[]> scan(Predicate where, int[] projection) {
+            Predicate bound = where == null ? null : where.bind(getColumns());
+            if (projection != null) {
+                for (int colIndex : projection) {
+                    if (colIndex < 0 || colIndex >= columns()) {
+                        throw new IndexOutOfBoundsException();
+                    }
+                }
+            }
+
+            return getRows()
+                    .map(pair -> pair.getValue().rawValues())
+                    .filter(values -> bound == null || bound.test(values))
+                    .map(values -> project(values, projection));
         }
 
-        // Check for constraint violations
-        EnumSet<Constraint> constraintSet = columns.get(colIndex).getConstraints();
+        /**
+         * Closes the snapshot and drops the old versions no other snapshot can read.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
 
-        for(Constraint constraint : constraintSet) {
-            if (constraint.isViolated(records.entrySet().stream(), newValue, colIndex)) {
-                return false;
+            closed = true;
+            synchronized (snapshots) {
+                if (snapshots.merge(readTs, -1, Integer::sum) == 0) {
+                    snapshots.remove(readTs);
+                }
+                versioning = !snapshots.isEmpty();
             }
+            vacuum();
         }
 
-        // If everything is ok modify record
-        r.setValue(colIndex, newValue);
-        return true;
-    }
-
-    public void update(Set<String> keys, int colIndex, String newValue) {
-        if (colIndex < 0 || colIndex >= columns()) {
-            throw new IndexOutOfBoundsException();
+        private Map.Entry<String, Record> entry(String key, Record r) {
+            return r == null ? null : new AbstractMap.SimpleImmutableEntry<>(key, current(r));
         }
 
-        for(String key : keys) {
-            update(key, colIndex, newValue);
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Snapshot is closed.");
+            }
         }
     }
 
-    public Record delete(String key) {
-        return records.remove(key);
+    // Schema Versions
+
+    private int schemaVersion() {
+        return baseVersion + schemaChanges.size();
     }
 
-    public Set<Record> delete(Set<String> keys) {
-        Set<Record> results = new LinkedHashSet<>();
+    /**
+     * Upgrades a record written under an older schema to the current one.
+     * Stores that hold copies of their records only keep the upgrade if the record is written back.
+     * @return The record.
+     */
+    private Record current(Record r) {
+        int version = schemaVersion();
+        if (r == null || r.getVersion() == version) {
+            return r;
+        }
 
-        for(String key : keys) {
-            Record r = delete(key);
-            if (r != null) {
-                results.add(r);
+        // Readers of a concurrent table may upgrade the same record at once
+        synchronized (r) {
+            if (r.getVersion() != version) {
+                List<String> values = new ArrayList<>(Arrays.asList(r.rawValues()));
+                for (SchemaChange change : schemaChanges.subList(r.getVersion() - baseVersion, schemaChanges.size())) {
+                    change.apply(values);
+                }
+                r.upgrade(values.toArray(new String[values.size()]), version);
             }
         }
 
-        return results;
+        return r;
     }
 
     /**
-     * Checks if a record violates any column constraints.
-     * @param r
-     * @return True if any violations are detected.
+     * Upgrades the old versions kept for snapshots, before the schema changes are dropped.
+     * Called under the alter lock.
      */
-    private boolean isViolation(Record r) {
-        // Checks if record has the same number of fields as columns
-        if ( r.size() != columns.size()) {
-            return true;
+    private void upgradeOldVersions() {
+        for (Version chain : oldVersions.values()) {
+            for (Version v = chain; v != null; v = v.older) {
+                current(v.record);
+            }
         }
+    }
 
-        // Loops through columns and checks if any constraints are violated
-        boolean violation = false;
-        int i =0;
-        while (i < columns.size()) {
-            EnumSet<Constraint> constraintSet= columns.get(i).getConstraints();
+    private Map.Entry<String, Record> currentEntry(Map.Entry<String, Record> pair) {
+        current(pair.getValue());
+        return pair;
+    }
 
-            for (Constraint constraint : constraintSet) {
-                violation = constraint.isViolated(records.entrySet().stream(), r.getValue(i), i);
-                if (violation) {
-                    return true;
-                }
+    /**
+     * An added or dropped column.
+     */
+    private static class SchemaChange {
+        private final int colIndex;
+        // The value of an added column. Null for a dropped column
+        private final String fill;
+
+        SchemaChange(int colIndex, String fill) {
+            this.colIndex = colIndex;
+            this.fill = fill;
+        }
+
+        void apply(List<String> values) {
+            if (fill == null) {
+                values.remove(colIndex);
+            } else {
+                values.add(colIndex, fill);
             }
+        }
+    }
 
-            i++;
+    private void addToIndexes(String key, Record r) {
+        for (Map.Entry<Column, Index> pair : indexes().entrySet()) {
+            pair.getValue().add(r.getValue(columns.indexOf(pair.getKey())), key);
         }
+    }
 
-        return false;
+    private void removeFromIndexes(String key, Record r) {
+        for (Map.Entry<Column, Index> pair : indexes().entrySet()) {
+            pair.getValue().remove(r.getValue(columns.indexOf(pair.getKey())), key);
+        }
     }
 
     // Unit Testing
@@ -408,6 +1714,13 @@ public class Table {
         t2.update(keys, 2, "Hampshire");
 
         assert(r1_1.getValue(2).equals("Hampshire") && r1_3.getValue(2).equals("Hampshire"));
+
+        // While a snapshot is open, updates replace the records with changed copies
+        try (Snapshot s = t2.snapshot()) {
+            t2.update("Tom", 2, "London");
+            assert(t2.select_record("Tom").getValue(2).equals("London"));
+            assert(r1_1.getValue(2).equals("Hampshire") && s.select_record("Tom").getValue(2).equals("Hampshire"));
+        }
     }
 
     public static void test_deletion() {
@@ -562,6 +1875,710 @@ public class Table {
         assert(t1.update("1",3, "Bristol"));
     }
 
+    public static void test_constraints_unique_index() {
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("First_Name");
+        Column c2 = new Column("Email", Constraint.UNIQUE);
+
+        Table t1 = new Table("t1", c0, c1, c2);
+        t1.insert(new Record("0", "Angela", "angela@mail.com"),
+                new Record("1", "Tom", "tom@mail.com"));
+        assert(t1.rows() == 2);
+
+        // Deleting a record frees its unique values
+        assert(t1.insert(new Record("2", "Paul", "tom@mail.com")) == false);
+        t1.delete("1");
+        assert(t1.insert(new Record("1", "Paul", "tom@mail.com")));
+
+        // Updating a record frees its old unique value
+        assert(t1.update("1", 2, "paul@mail.com"));
+        assert(t1.insert(new Record("2", "Tom", "tom@mail.com")));
+        assert(t1.update("0", 2, "paul@mail.com") == false);
+
+        // Updating the PK re-keys the record
+        assert(t1.update("2", 0, "3"));
+        assert(t1.select_record("2") == null);
+        assert(t1.select_record("3").getValue(1).equals("Tom"));
+        assert(t1.insert(new Record("3", "Hannah", "hannah@mail.com")) == false);
+        assert(t1.insert(new Record("2", "Hannah", "hannah@mail.com")));
+        assert(t1.delete("3") != null);
+        assert(t1.insert(new Record("4", "Helen", "tom@mail.com")));
+
+        // Dropping a unique column drops its index
+        t1.dropColumn(2);
+        assert(t1.insert(new Record("5", "Paul")));
+
+        // Adding a unique column indexes the existing values
+        Column c3 = new Column("Phone", Constraint.UNIQUE);
+        t1.appendColumns(c3);
+        assert(t1.update("5", 2, "0123"));
+        assert(t1.insert(new Record("6", "Jane", "0123")) == false);
+
+        // Truncate clears the indexes
+        t1.truncate();
+        assert(t1.insert(new Record("0", "Jane", "0123")));
+    }
+
+    public static void test_secondary_index() {
+        Column c0 = new Column("First_Name", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Last_Name");
+        Column c2 = new Column("County");
+
+        Table t1 = new Table("t1", c0, c1, c2);
+        Record r0 = new Record("Angela", "Walker", "Bristol");
+        Record r1 = new Record("Tom", "Olson", "London");
+        Record r2 = new Record("Paul", "Hudson", "London");
+        Record r3 = new Record("Hannah", "Powell", "Essex");
+        t1.insert(r0, r1, r2, r3);
+
+        // Select by value without an index
+        assert(!t1.hasIndex(2));
+        Set<Record> london = t1.selectWhere(2, "London");
+        assert(london.size() == 2 && london.contains(r1) && london.contains(r2));
+
+        // Select by value with an index
+        assert(t1.createIndex(2));
+        assert(t1.createIndex(2) == false);
+        assert(t1.hasIndex(2));
+        assert(t1.selectWhere(2, "London").equals(london));
+        assert(t1.selectWhere(2, "York").isEmpty());
+
+        // Index stays correct through insert, update and delete
+        Record r4 = new Record("Helen", "White", "York");
+        t1.insert(r4);
+        assert(t1.selectWhere(2, "York").contains(r4));
+        assert(t1.update("Tom", 2, "York"));
+        assert(t1.selectWhere(2, "York").size() == 2);
+        assert(t1.selectWhere(2, "London").size() == 1);
+        t1.delete("Paul");
+        assert(t1.selectWhere(2, "London").isEmpty());
+
+        // And through alter table
+        t1.dropColumn(1);
+        assert(t1.hasIndex(1));
+        assert(t1.selectWhere(1, "York").size() == 2);
+        t1.addColumn(1, new Column("Last_Name"));
+        assert(t1.hasIndex(2));
+        // Records are upgraded in place, instead of replaced
+        assert(t1.selectWhere(2, "Essex").contains(r3) && r3.size() == 3);
+        assert(t1.selectWhere(2, "Essex").iterator().next().getValue(0).equals("Hannah"));
+
+        // PK index cannot be dropped
+        assert(t1.dropIndex(0) == false);
+        assert(t1.dropIndex(2));
+        assert(t1.dropIndex(2) == false);
+        assert(t1.selectWhere(2, "York").size() == 2);
+    }
+
+    public static void test_btree_record_store() {
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("First_Name");
+        Column c2 = new Column("County");
+
+        Table t1 = new Table("t1", new BTreeRecordStore(), c0, c1, c2);
+        Table t2 = new Table("t2", c0, c1, c2);
+        String[] names = {"Angela", "Tom", "Paul", "Hannah"};
+        for (int i = 99; i >= 0; i--) {
+            t1.insert(new Record(String.format("%02d", i), names[i % 4], "Bristol"));
+            t2.insert(new Record(String.format("%02d", i), names[i % 4], "Bristol"));
+        }
+        assert(t1.rows() == 100);
+        assert(t1.select_record("07").getValue(1).equals("Hannah"));
+
+        // Range scans return the same rows in key order, with or without the B+ tree
+        Object[] range = t1.selectRange("10", "19").map(Map.Entry::getKey).toArray();
+        assert(range.length == 10 && range[0].equals("10") && range[9].equals("19"));
+        assert(Arrays.equals(range, t2.selectRange("10", "19").map(Map.Entry::getKey).toArray()));
+
+        // Ordered iteration
+        Iterator<Map.Entry<String, Record>> cursor = t1.cursor("95");
+        assert(cursor.next().getKey().equals("95"));
+        assert(t2.cursor(null).next().getKey().equals("00"));
+
+        // Existing operations work with the B+ tree
+        assert(t1.update("07", 2, "London"));
+        assert(t1.delete("08") != null);
+        assert(t1.selectRange("05", "09").count() == 4);
+        t1.dropColumn(1);
+        assert(t1.select_record("07").getValue(1).equals("London"));
+        t1.truncate();
+        assert(t1.rows() == 0 && t1.selectRange(null, null).count() == 0);
+    }
+
+    public static void test_scan() {
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("First_Name");
+        Column c2 = new Column("County");
+
+        Table t1 = new Table("t1", new BTreeRecordStore(), c0, c1, c2);
+        t1.insert(new Record("0", "Angela", "Bristol"),
+                new Record("1", "Tom", "London"),
+                new Record("2", "Paul", "London"),
+                new Record("3", "Hannah", "Essex"),
+                new Record("4", "Helen", ""));
+
+        // Projection
+        List<String[]> rows = t1.scan(Predicate.eq(2, "London"), new int[] {1}).collect(Collectors.toList());
+        assert(rows.size() == 2 && rows.get(0).length == 1);
+        assert(rows.get(0)[0].equals("Tom") && rows.get(1)[0].equals("Paul"));
+
+        // Same results with an index
+        t1.createIndex(2);
+        assert(t1.scan(Predicate.eq(2, "London"), new int[] {1}).count() == 2);
+        assert(t1.scan(Predicate.in(2, "London", "Essex", "York"), null).count() == 3);
+
+        // Key range on the B+ tree
+        assert(t1.scan(Predicate.range(0, "1", "3"), null).count() == 3);
+        assert(t1.scan(Predicate.and(Predicate.range(0, "1", "3"), Predicate.eq(1, "Tom")), null).count() == 1);
+
+        // Range on a non-key column, and empty values
+        assert(t1.scan(Predicate.range(1, "H", "P"), null).count() == 2);
+        assert(t1.scan(Predicate.isEmpty(2), new int[] {0}).findFirst().get()[0].equals("4"));
+
+        // And / Or, mixing indexed and non-indexed columns
+        assert(t1.scan(Predicate.and(Predicate.eq(2, "London"), Predicate.eq(1, "Paul")), null).count() == 1);
+        assert(t1.scan(Predicate.or(Predicate.eq(2, "Essex"), Predicate.eq(1, "Angela")), null).count() == 2);
+        assert(t1.scan(Predicate.or(Predicate.eq(2, "Essex"), Predicate.eq(0, "1")), null).count() == 2);
+
+        // No predicate returns every row, and rows are copies
+        String[] row = t1.scan(null, null).findFirst().get();
+        row[1] = "Changed";
+        assert(t1.select_record("0").getValue(1).equals("Angela"));
+
+        // Invalid columns
+        boolean failed = false;
+        try {
+            t1.scan(Predicate.eq(5, "x"), null);
+        } catch (IndexOutOfBoundsException e) {
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    public static void test_parallel_scan() {
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("County");
+
+        Table t1 = new Table("t1", new ChunkedRecordStore(), c0, c1);
+        String[] counties = {"Bristol", "London", "Essex", "York"};
+        List<Record> batch = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            batch.add(new Record(Integer.toString(i), counties[i % 4]));
+        }
+        new BulkInsert(t1).run(batch);
+        t1.delete("0");
+
+        assert(t1.parallelScan(Predicate.eq(1, "London"), new int[] {0}).count() == 12500);
+        assert(t1.parallelScan(Predicate.eq(1, "Bristol"), null).count() == 12499);
+        assert(t1.parallelScan(null, new int[] {0}).map(row -> row[0]).distinct().count() == 49999);
+    }
+
+    public static void test_aggregate() {
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("County");
+        Column c2 = new Column("Price", DataType.DOUBLE);
+        Column c3 = new Column("Stock", DataType.INT);
+
+        Table t1 = new Table("t1", new ChunkedRecordStore(), c0, c1, c2, c3);
+        String[] counties = {"Bristol", "London", "Essex", "York"};
+        List<Record> batch = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            batch.add(new Record(Integer.toString(i), counties[i % 4], Double.toString(i % 100 / 4.0),
+                    i % 5 == 0 ? "" : Integer.toString(i % 10)));
+        }
+        new BulkInsert(t1).run(batch);
+
+        // GROUP BY County, in parallel
+        Map<String, String[]> byCounty = t1.aggregate(new int[] {1}, Aggregate.count(), Aggregate.count(3),
+                Aggregate.sum(3), Aggregate.min(2), Aggregate.max(2), Aggregate.avg(3))
+                .collect(Collectors.toMap(row -> row[0], row -> row));
+        assert(byCounty.size() == 4);
+        // London: ids 1, 5, 9, ... Stocks 1, 5, 9, 3, 7 repeating, and every fifth blank
+        assert(Arrays.equals(byCounty.get("London"),
+                new String[] {"London", "12500", "10000", "50000", "0.25", "24.25", "5.0"}));
+
+        // With a predicate, and a single group
+        String[] total = t1.aggregate(Predicate.eq(1, "York"), new int[0], Aggregate.count(), Aggregate.max(0))
+                .iterator().next();
+        assert(total[0].equals("12500") && total[1].equals("49999"));
+        assert(t1.aggregate(Predicate.eq(1, "Leeds"), new int[0], Aggregate.count()).iterator().next()[0].equals("0"));
+
+        // Spilling groups gives the same result
+        Map<String, String> perId = t1.aggregate(null, new int[] {0}, 1000, Aggregate.sum(3))
+                .collect(Collectors.toMap(row -> row[0], row -> row[1] == null ? "" : row[1]));
+        assert(perId.size() == 50000 && perId.get("123").equals("3") && perId.get("120").isEmpty());
+
+        // Column checks
+        boolean failed = false;
+        try {
+            t1.aggregate(new int[] {1}, Aggregate.sum(1));
+        } catch (IllegalArgumentException e) {
+            failed = true;
+        }
+        assert(failed);
+        failed = false;
+        try {
+            t1.aggregate(new int[] {4}, Aggregate.count());
+        } catch (IndexOutOfBoundsException e) {
+            failed = true;
+        }
+        assert(failed);
+    }
+
+    public static void test_columnar_table() {
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("First_Name", Constraint.NOT_NULL);
+        Column c2 = new Column("County");
+
+        Table t1 = new Table("t1", new ColumnarRecordStore(), c0, c1, c2);
+        t1.insert(new Record("0", "Angela", "Bristol"),
+                new Record("1", "Tom", "London"),
+                new Record("2", "Paul", "London"),
+                new Record("3", "Hannah", "Essex"));
+        assert(t1.rows() == 4);
+        assert(t1.insert(new Record("1", "Tom", "London")) == false);
+        assert(t1.insert(new Record("4", "", "London")) == false);
+
+        // Select, update and delete through the same API
+        assert(t1.select_record("1").getValue(1).equals("Tom"));
+        assert(t1.update("1", 2, "York"));
+        assert(t1.select_record("1").getValue(2).equals("York"));
+        assert(t1.update("1", 0, "5"));
+        assert(t1.select_record("5").getValue(1).equals("Tom"));
+        assert(t1.delete("0").getValue(1).equals("Angela"));
+        assert(t1.rows() == 3);
+
+        // Column at a time scans
+        assert(t1.scanColumn(2).filter(v -> v.equals("London")).count() == 1);
+        assert(t1.scan(Predicate.eq(2, "Essex"), new int[] {1}).findFirst().get()[0].equals("Hannah"));
+
+        // Alter table
+        t1.addColumn(1, new Column("Last_Name"));
+        assert(t1.select_record("2").getValue(1).equals(" ") && t1.select_record("2").getValue(3).equals("London"));
+        assert(t1.update("2", 1, "Hudson"));
+        assert(t1.selectWhere(1, "Hudson").size() == 1);
+        t1.dropColumn(2);
+        assert(t1.select_record("2").size() == 3 && t1.select_record("2").getValue(2).equals("London"));
+    }
+
+    public static void test_dictionary_encoding() {
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("County");
+        c1.setDictionaryEncoded(true);
+        Column c2 = new Column("Country");
+
+        // Row oriented tables share the dictionary's instances
+        Table t1 = new Table("t1", c0, c1, c2);
+        t1.insert(new Record("0", new String("Bristol"), "UK"), new Record("1", new String("Bristol"), "UK"));
+        assert(t1.select_record("0").getValue(1) == t1.select_record("1").getValue(1));
+        assert(c1.getDictionary().size() == 1);
+
+        // Column oriented tables store codes
+        Table t2 = new Table("t2", new ColumnarRecordStore(), c0, c1, c2);
+        String[] counties = {"Bristol", "London", "Essex"};
+        for (int i = 0; i < 30; i++) {
+            t2.insert(new Record(Integer.toString(i), counties[i % 3], "UK"));
+        }
+        assert(c1.getDictionary().size() == 3);
+        assert(t2.scan(Predicate.eq(1, "Essex"), new int[] {0}).count() == 10);
+        assert(t2.update("0", 1, "York"));
+        assert(t2.scan(Predicate.eq(1, "York"), null).findFirst().get()[0].equals("0"));
+
+        // Encoding an existing column
+        t2.encodeColumn(2);
+        assert(c2.isDictionaryEncoded() && c2.getDictionary().size() == 1);
+        assert(t2.scan(Predicate.and(Predicate.eq(2, "UK"), Predicate.eq(1, "London")), null).count() == 10);
+    }
+
+    public static void test_typed_columns() {
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Name");
+        Column c2 = new Column("Price", DataType.DOUBLE);
+        Column c3 = new Column("Added", DataType.TIMESTAMP);
+
+        // Values are validated and stored in canonical form
+        Table t1 = new Table("t1", new BTreeRecordStore(DataType.INT), c0, c1, c2, c3);
+        assert(t1.insert(new Record("007", "Pen", "1.50", "2018-03-01T10:15:30.000Z")));
+        assert(t1.select_record("7").getValue(2).equals("1.5"));
+        assert(t1.select_record("7").getTimestamp(3).toEpochMilli() == 1519899330000L);
+        assert(t1.insert(new Record("8", "Ink", "cheap", "")) == false);
+        assert(t1.update("7", 2, "free") == false);
+        assert(t1.update("7", 2, "2"));
+        assert(t1.select_record("7").getDouble(2) == 2.0);
+
+        BulkInsert.Report report = new BulkInsert(t1).run(Arrays.asList(
+                new Record("9", "Pad", "3", ""),
+                new Record("10", "Cap", "0.5", ""),
+                new Record("x", "Cup", "1", "")));
+        assert(report.getInserted() == 2);
+        assert(report.getRejects().get(0).getConstraint() == null && report.getRejects().get(0).getColIndex() == 0);
+
+        // Ranges and keys use the order of the type
+        Object[] keys = t1.selectRange("8", "10").map(Map.Entry::getKey).toArray();
+        assert(Arrays.equals(keys, new Object[] {"9", "10"}));
+        assert(t1.scan(Predicate.range(2, "1", "2.5"), new int[] {0}).count() == 1);
+        assert(t1.scan(Predicate.eq(0, "09"), null).count() == 1);
+        boolean failed = false;
+        try {
+            t1.scan(Predicate.range(2, "a", null), null);
+        } catch (IllegalArgumentException e) {
+            failed = true;
+        }
+        assert(failed);
+
+        // Numeric scans skip blank fields
+        t1.appendColumns(new Column("Stock", DataType.INT));
+        assert(t1.select_record("9").getValue(4).equals(""));
+        assert(t1.update("9", 4, "5"));
+        assert(t1.scanLongs(4).sum() == 5 && t1.scanDoubles(2).sum() == 5.5);
+
+        // Column oriented tables store the primitive values
+        Table t2 = new Table("t2", new ColumnarRecordStore(), c0, c1, c2, c3);
+        for (int i = 0; i < 100; i++) {
+            t2.insert(new Record(Integer.toString(i), "Item", i + ".25", ""));
+        }
+        assert(t2.select_record("10").getValue(2).equals("10.25"));
+        assert(t2.scanDoubles(2).sum() == 4975.0);
+        assert(t2.scan(Predicate.range(2, "9", "20"), null).count() == 11);
+        assert(t2.selectRange("8", "10").count() == 3);
+    }
+
+    public static void test_off_heap_table() {
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Email", Constraint.UNIQUE);
+        Column c2 = new Column("County");
+
+        Table t1 = new Table("t1", new OffHeapRecordStore(), c0, c1, c2);
+        List<Record> batch = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            batch.add(new Record(Integer.toString(i), i + "@mail.com", i % 2 == 0 ? "Bristol" : "London"));
+        }
+        assert(new BulkInsert(t1).run(batch).getInserted() == 10000);
+        assert(t1.insert(new Record("1", "x@mail.com", "York")) == false);
+
+        // Select, update and delete through the same API
+        assert(t1.select_record("42").getValue(1).equals("42@mail.com"));
+        assert(t1.update("42", 2, "East Riding of Yorkshire"));
+        assert(t1.select_record("42").getValue(2).equals("East Riding of Yorkshire"));
+        assert(t1.update("42", 0, "10042"));
+        assert(t1.selectWhere(1, "42@mail.com").iterator().next().getValue(0).equals("10042"));
+        assert(t1.delete("7").getValue(1).equals("7@mail.com"));
+        assert(t1.scan(Predicate.eq(2, "London"), new int[] {0}).count() == 4999);
+        assert(t1.scanLongs(0).count() == 9999);
+
+        // Alter table
+        t1.addColumn(3, new Column("Country"));
+        assert(t1.select_record("3").getValue(3).equals(" "));
+        t1.dropColumn(2);
+        assert(t1.select_record("3").size() == 3);
+
+        t1.truncate();
+        assert(t1.rows() == 0 && t1.insert(new Record("1", "x@mail.com", " ")));
+        t1.close();
+    }
+
+    public static void test_paged_table() {
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Email", Constraint.UNIQUE);
+        Column c2 = new Column("County");
+
+        // A pool of 16 pages, for a table of more than a hundred
+        PagedRecordStore store = new StorageEngine().createPagedStore(new File("Databases", "PagedTableTest.pages"), 16);
+        Table t1 = new Table("t1", store, c0, c1, c2);
+        for (int i = 0; i < 20000; i++) {
+            assert(t1.insert(new Record(Integer.toString(i), i + "@mail.com", i % 2 == 0 ? "Bristol" : "London")));
+        }
+        assert(t1.insert(new Record("1", "x@mail.com", "York")) == false);
+        assert(store.getBufferPool().evictions() > 0);
+
+        // Select, update and delete through the same API
+        assert(t1.select_record("42").getValue(1).equals("42@mail.com"));
+        assert(t1.update("42", 2, "East Riding of Yorkshire"));
+        assert(t1.select_record("42").getValue(2).equals("East Riding of Yorkshire"));
+        assert(t1.selectWhere(1, "19999@mail.com").iterator().next().getValue(0).equals("19999"));
+        assert(t1.delete("7").getValue(1).equals("7@mail.com"));
+        assert(t1.scan(Predicate.eq(2, "London"), new int[] {0}).count() == 9999);
+        assert(t1.rows() == 19999);
+
+        // Parallel reads share the buffer pool
+        t1.createIndex(2);
+        assert(t1.parallelScan(Predicate.eq(2, "London"), new int[] {0}).distinct().count() == 9999);
+        t1.dropIndex(2);
+
+        // Alter table
+        t1.addColumn(3, new Column("Country"));
+        assert(t1.select_record("3").getValue(3).equals(" "));
+        t1.compact();
+        assert(t1.getRows().allMatch(pair -> pair.getValue().size() == 4));
+
+        t1.truncate();
+        assert(t1.rows() == 0 && t1.insert(new Record("1", "x@mail.com", " ", " ")));
+        t1.close();
+    }
+
+    public static void test_lazy_schema_changes() {
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("First_Name");
+        Column c2 = new Column("County");
+
+        for (RecordStore store : new RecordStore[] {new HashRecordStore(), new BTreeRecordStore(), new OffHeapRecordStore()}) {
+            Table t1 = new Table("t1", store, c0, c1, c2);
+            Record r0 = new Record("0", "Angela", "Bristol");
+            t1.insert(r0, new Record("1", "Tom", "London"), new Record("2", "Paul", "London"));
+
+            // Altering the table doesn't touch the records
+            t1.addColumn(1, new Column("Title"));
+            t1.dropColumn(3);
+            assert(store instanceof OffHeapRecordStore || r0.size() == 3 && r0.getValue(2).equals("Bristol"));
+
+            // Records are read in the current schema, before and after they are upgraded
+            t1.insert(new Record("3", "Ms", "Hannah"));
+            assert(t1.select_record("0").getValue(1).equals(" ") && t1.select_record("0").size() == 3);
+            assert(t1.update("1", 1, "Mr"));
+            assert(t1.select_record("1").getValue(1).equals("Mr") && t1.select_record("1").getValue(2).equals("Tom"));
+            assert(t1.scan(Predicate.eq(1, " "), new int[] {2}).count() == 2);
+            assert(t1.scanColumn(2).filter(v -> v.equals("Hannah")).count() == 1);
+            assert(t1.getRows().allMatch(pair -> pair.getValue().size() == 3));
+
+            // Records written under different versions
+            t1.appendColumns(new Column("Email", Constraint.UNIQUE));
+            assert(t1.update("2", 3, "paul@mail.com"));
+            assert(t1.update("3", 3, "paul@mail.com") == false);
+            assert(t1.delete("2").getValue(3).equals("paul@mail.com"));
+            assert(t1.selectRange("0", "1").allMatch(pair -> pair.getValue().getValue(3).equals(" ")));
+
+            t1.compact();
+            assert(t1.schemaChanges.isEmpty());
+            assert(t1.select_record("0").getValue(2).equals("Angela") && t1.rows() == 3);
+        }
+    }
+
+    /**
+     * Runs a task on several threads at once, and waits for all of them.
+     */
+    static void runConcurrently(int threads, java.util.function.IntConsumer task) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                start.await();
+                task.accept(thread);
+                return null;
+            }));
+        }
+
+        start.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new AssertionError(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void test_concurrent_table() {
+        int threads = 8;
+        int rows = 2000;
+
+        // No lost updates: each thread writes its own column of the same records
+        Column[] columns = new Column[threads + 1];
+        columns[0] = new Column("Id", Constraint.PRIMARY_KEY);
+        for (int t = 0; t < threads; t++) {
+            columns[t + 1] = new Column("Col_" + t);
+        }
+        Table t1 = new Table("t1", new ConcurrentRecordStore(), columns[0], Arrays.copyOfRange(columns, 1, threads + 1));
+        for (int i = 0; i < rows; i++) {
+            String[] values = new String[threads + 1];
+            Arrays.fill(values, "");
+            values[0] = Integer.toString(i);
+            t1.insert(new Record(values));
+        }
+
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < rows; i++) {
+                assert(t1.update(Integer.toString(i), thread + 1, thread + ":" + i));
+            }
+        });
+        t1.getRows().forEach(pair -> {
+            for (int t = 0; t < threads; t++) {
+                assert(pair.getValue().getValue(t + 1).equals(t + ":" + pair.getKey()));
+            }
+        });
+
+        // No duplicate unique values: threads race to insert and update the same emails
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Email", Constraint.UNIQUE);
+        Column c2 = new Column("County");
+        Table t2 = new Table("t2", new ConcurrentRecordStore(), c0, c1, c2);
+        t2.createIndex(2);
+        int emails = 50;
+
+        runConcurrently(threads, thread -> {
+            Random random = new Random(thread);
+            List<Record> batch = new ArrayList<>();
+            for (int i = 0; i < rows; i++) {
+                String key = thread + "-" + i;
+                String email = random.nextInt(emails) + "@mail.com";
+                if (i % 4 == 0) {
+                    batch.add(new Record(key, email, "Bristol"));
+                } else {
+                    t2.insert(new Record(key, email, "London"));
+                }
+                if (i % 3 == 0) {
+                    t2.update(thread + "-" + random.nextInt(i + 1), 1, random.nextInt(emails) + "@mail.com");
+                }
+                if (i % 5 == 0) {
+                    t2.delete((thread + 1) % threads + "-" + random.nextInt(i + 1));
+                }
+            }
+            new BulkInsert(t2).run(batch);
+        });
+
+        Set<String> seen = new HashSet<>();
+        t2.getRows().forEach(pair -> {
+            assert(seen.add(pair.getValue().getValue(1)));
+        });
+        assert(seen.size() == t2.rows() && t2.rows() <= emails);
+        for (String email : seen) {
+            assert(t2.selectWhere(1, email).size() == 1);
+        }
+        assert(t2.scan(Predicate.in(2, "Bristol", "London"), null).count() == t2.rows());
+
+        // Alter table waits for the running writes
+        runConcurrently(2, thread -> {
+            if (thread == 0) {
+                t2.appendColumns(new Column("Phone"));
+            } else {
+                t2.insert(new Record("x", "x@mail.com", "York", "0123"));
+            }
+        });
+        assert(t2.select_record("x") == null || t2.select_record("x").size() == 4);
+    }
+
+    public static void test_snapshots() {
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Name");
+        Column c2 = new Column("Email", Constraint.UNIQUE);
+
+        Table t1 = new Table("t1", c0, c1, c2);
+        for (int i = 0; i < 10; i++) {
+            t1.insert(new Record(Integer.toString(i), "name" + i, i + "@mail.com"));
+        }
+
+        // The snapshot keeps reading the table as it was, while it is written
+        Snapshot s1 = t1.snapshot();
+        assert(t1.update("1", 1, "changed"));
+        assert(t1.delete("2") != null);
+        assert(t1.insert(new Record("10", "name10", "10@mail.com")));
+        assert(t1.update("3", 0, "30"));
+        assert(t1.update("4", 2, "2@mail.com"));
+
+        assert(t1.select_record("1").getValue(1).equals("changed"));
+        assert(s1.select_record("1").getValue(1).equals("name1"));
+        assert(s1.select_record("2") != null && t1.select_record("2") == null);
+        assert(s1.select_record("10") == null);
+        assert(s1.select_record("3") != null && s1.select_record("30") == null);
+        assert(s1.rows() == 10 && t1.rows() == 10);
+        Set<String> keys = s1.getRows().map(Map.Entry::getKey).collect(Collectors.toSet());
+        assert(keys.size() == 10 && keys.contains("2") && keys.contains("3") && !keys.contains("10"));
+        assert(s1.scan(Predicate.eq(2, "2@mail.com"), new int[] {0}).map(v -> v[0]).collect(Collectors.toList())
+                .equals(Collections.singletonList("2")));
+
+        // A later snapshot reads the writes made before it
+        Snapshot s2 = t1.snapshot();
+        t1.truncate();
+        assert(s2.rows() == 10 && s2.select_record("30") != null && s2.select_record("3") == null);
+        assert(s1.rows() == 10 && s1.select_record("3") != null);
+
+        // Closing the snapshots drops the versions only they could read
+        s1.close();
+        assert(s2.select_record("1").getValue(1).equals("changed"));
+        assert(t1.oldVersions.size() == 10);
+        s2.close();
+        assert(t1.oldVersions.isEmpty());
+        try {
+            s2.rows();
+            assert(false);
+        } catch (IllegalStateException e) {
+            // The snapshot is closed
+        }
+
+        // Without an open snapshot, writes keep no versions
+        t1.insert(new Record("1", "name1", "1@mail.com"));
+        t1.update("1", 1, "changed");
+        t1.delete("1");
+        assert(t1.oldVersions.isEmpty());
+
+        // A snapshot of a column oriented table
+        Table t2 = new Table("t2", new ColumnarRecordStore(), c0, c1, c2);
+        t2.insert(new Record("1", "name1", "1@mail.com"), new Record("2", "name2", "2@mail.com"));
+        try (Snapshot s = t2.snapshot()) {
+            t2.update("1", 1, "changed");
+            t2.delete("2");
+            assert(s.select_record("1").getValue(1).equals("name1"));
+            assert(s.scan(Predicate.eq(1, "name2"), null).count() == 1);
+        }
+
+        // Scans of a concurrent table read the same rows while writers run
+        int rows = 500;
+        Table t3 = new Table("t3", new ConcurrentRecordStore(), c0, c1, c2);
+        for (int i = 0; i < rows; i++) {
+            t3.insert(new Record(Integer.toString(i), "name" + i, i + "@mail.com"));
+        }
+
+        try (Snapshot s = t3.snapshot()) {
+            runConcurrently(2, thread -> {
+                if (thread == 0) {
+                    Random random = new Random(0);
+                    for (int i = 0; i < rows * 4; i++) {
+                        String key = Integer.toString(random.nextInt(rows * 2));
+                        if (t3.delete(key) == null) {
+                            t3.insert(new Record(key, "name" + key, key + "@mail.com"));
+                        }
+                        t3.update(Integer.toString(random.nextInt(rows)), 1, "changed");
+                    }
+                } else {
+                    for (int pass = 0; pass < 10; pass++) {
+                        Map<String, String> names = new HashMap<>();
+                        s.getRows().forEach(pair -> {
+                            assert(names.put(pair.getKey(), pair.getValue().getValue(1)) == null);
+                        });
+                        assert(names.size() == rows);
+                        for (int i = 0; i < rows; i++) {
+                            assert(names.get(Integer.toString(i)).equals("name" + i));
+                        }
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        assert(t3.oldVersions.isEmpty());
+
+        // Old versions written under an older schema are read after truncate() or compact()
+        // drop the schema changes
+        Table t4 = new Table("t4", c0, c1, c2);
+        t4.insert(new Record("1", "name1", "1@mail.com"));
+        t4.appendColumns(new Column("Age", DataType.INT));
+        try (Snapshot s = t4.snapshot()) {
+            t4.truncate();
+            assert(s.rows() == 1 && s.select_record("1").getValues().length == 4);
+        }
+        Table t5 = new Table("t5", c0, c1, c2);
+        t5.insert(new Record("1", "name1", "1@mail.com"));
+        try (Snapshot s = t5.snapshot()) {
+            t5.update("1", 1, "changed");
+            t5.appendColumns(new Column("Age", DataType.INT));
+            t5.compact();
+            assert(s.rows() == 1 && s.select_record("1").getValue(1).equals("name1"));
+            assert(s.select_record("1").getValues().length == 4);
+        }
+    }
+
     public static void main(String[] args) {
         test_create_table();
         test_insertion();
@@ -571,5 +2588,19 @@ public class Table {
         test_alter_table_append_columns();
         test_alter_table_remove_columns();
         test_constraints_primary_key();
+        test_constraints_unique_index();
+        test_secondary_index();
+        test_btree_record_store();
+        test_scan();
+        test_parallel_scan();
+        test_aggregate();
+        test_columnar_table();
+        test_dictionary_encoding();
+        test_typed_columns();
+        test_off_heap_table();
+        test_paged_table();
+        test_lazy_schema_changes();
+        test_concurrent_table();
+        test_snapshots();
     }
 }
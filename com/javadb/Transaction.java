@@ -0,0 +1,603 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of inserts, updates and deletes over the tables of a database, that is
+ * applied as a whole or not at all. Started with Database.begin().
+ * Operations are buffered until commit(), and reads through the transaction see its
+ * own writes. Nothing is locked while the transaction runs: the values of each record
+ * it touches are remembered, and commit() checks that no other write changed them in
+ * the meantime. Only then are the operations applied, under the locks of the records
+ * they touch, and their constraints checked. If a check fails, the operations already
+ * applied are undone, and the transaction has no effect.
+ * A commit runs as one write of each table, so a snapshot sees all of it or none of it,
+ * and its writes are logged as one frame, so a crash loses all of them or none of them.
+ */
+public class Transaction implements AutoCloseable {
+    private final Database db;
+    // Table -> the records the transaction touched in it
+    private final Map<Table, Writes> writes;
+    private final List<Operation> operations;
+    private boolean done;
+
+    Transaction(Database db) {
+        this.db = db;
+        writes = new LinkedHashMap<>();
+        operations = new ArrayList<>();
+    }
+
+    /**
+     * Reads a record. The commit fails if another write changes the record first.
+     * @return The record as the transaction sees it, including its own writes.
+     */
+    public Record select_record(Table t, String key) {
+        checkOpen();
+        Record r = writesOf(t).read(t, key);
+        return r == null ? null : r.copy();
+    }
+
+    /**
+     * Buffers an insert. Constraints are checked at commit.
+     * @return False if the record does not fit the table, or its key is taken.
+     */
+    public boolean insert(Table t, Record r) {
+        checkOpen();
+        Record copy = new Record(r.getValues());
+        if (copy.size() != t.columns() || t.normalizeValues(copy) != -1) {
+            return false;
+        }
+
+        String key = copy.getValue(t.getPKColIndex());
+        Writes w = writesOf(t);
+        if (w.read(t, key) != null) {
+            return false;
+        }
+
+        w.write(key, copy);
+        operations.add(new Insert(t, copy));
+        return true;
+    }
+
+    /**
+     * Buffers an update. Constraints are checked at commit.
+     * @return False if the record does not exist, or the value does not fit the column.
+     */
+    public boolean update(Table t, String key, int colIndex, String newValue) {
+        checkOpen();
+        if (colIndex < 0 || colIndex >= t.columns()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        String value = t.getColumns()[colIndex].getType().normalize(newValue);
+        Writes w = writesOf(t);
+        Record r = w.read(t, key);
+        if (value == null || r == null) {
+            return false;
+        }
+
+        Record updated = r.copy();
+        updated.setValue(colIndex, value);
+        if (colIndex == t.getPKColIndex()) {
+            // Re-keys the record
+            if (w.read(t, value) != null) {
+                return false;
+            }
+            w.write(key, null);
+            w.write(value, updated);
+        } else {
+            w.write(key, updated);
+        }
+
+        operations.add(new Update(t, key, colIndex, value));
+        return true;
+    }
+
+    /**
+     * Buffers a delete.
+     * @return The record as the transaction sees it. Null if it does not exist.
+     */
+    public Record delete(Table t, String key) {
+        checkOpen();
+        Writes w = writesOf(t);
+        Record r = w.read(t, key);
+        if (r == null) {
+            return null;
+        }
+
+        w.write(key, null);
+        operations.add(new Delete(t, key));
+        return r.copy();
+    }
+
+    /**
+     * Applies the transaction's operations, if no other write changed the records it
+     * touched since it read them, and every operation satisfies the constraints.
+     * The transaction ends either way.
+     * @return True if the transaction was applied. False if it had no effect, in which
+     * case it can be retried by a new transaction.
+     */
+    public boolean commit() {
+        checkOpen();
+        done = true;
+
+        // Tables are locked in the order of the database, so two commits cannot deadlock
+        List<Table> tables = new ArrayList<>(writes.keySet());
+        List<Table> order = db.getTables();
+        tables.sort(Comparator.comparingInt(order::indexOf));
+
+        WriteAheadLog log = db.getLog();
+        if (log != null) {
+            log.beginBatch();
+        }
+
+        boolean committed = false;
+        List<int[]> held = new ArrayList<>();
+        try {
+            for (Table t : tables) {
+                t.beginWrite();
+                Writes w = writes.get(t);
+                try {
+                    held.add(t.lockRecords(w.expected.keySet(), w.records));
+                } catch (RuntimeException e) {
+                    // The table is not in held, so its write ends here
+                    t.endWrite();
+                    throw e;
+                }
+            }
+
+            committed = isValid() && apply();
+            return committed;
+        } finally {
+            try {
+                // The batch is logged before the records are unlocked, so that a later write
+                // to them is never logged, or made durable, before this one.
+                // An undone transaction leaves nothing to replay
+                if (log != null) {
+                    log.endBatch(committed);
+                }
+            } finally {
+                for (int i = held.size() - 1; i >= 0; i--) {
+                    Table t = tables.get(i);
+                    t.unlock(held.get(i));
+                    t.endWrite();
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the transaction's operations. The transaction ends.
+     */
+    public void rollback() {
+        checkOpen();
+        done = true;
+        operations.clear();
+        writes.clear();
+    }
+
+    /**
+     * Rolls the transaction back, unless it has ended.
+     */
+    @Override
+    public void close() {
+        if (!done) {
+            rollback();
+        }
+    }
+
+    /**
+     * @return True if every record the transaction touched still has the values it read.
+     */
+    private boolean isValid() {
+        for (Map.Entry<Table, Writes> pair : writes.entrySet()) {
+            Table t = pair.getKey();
+            for (Map.Entry<String, String[]> read : pair.getValue().expected.entrySet()) {
+                Record r = t.select_record(read.getKey());
+                if (!Arrays.equals(r == null ? null : r.getValues(), read.getValue())) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Applies the operations in order. Undoes the applied ones if any fails.
+     * @return True if every operation was applied.
+     */
+    private boolean apply() {
+        Deque<Operation> undoLog = new ArrayDeque<>();
+        for (Operation op : operations) {
+            if (!op.apply()) {
+                while (!undoLog.isEmpty()) {
+                    if (!undoLog.pop().undo()) {
+                        throw new IllegalStateException("Unable to undo a transaction.");
+                    }
+                }
+                return false;
+            }
+            undoLog.push(op);
+        }
+
+        return true;
+    }
+
+    private Writes writesOf(Table t) {
+        if (!db.getTables().contains(t)) {
+            throw new IllegalArgumentException("Table is not in the database.");
+        }
+
+        return writes.computeIfAbsent(t, table -> new Writes());
+    }
+
+    private void checkOpen() {
+        if (done) {
+            throw new IllegalStateException("Transaction has ended.");
+        }
+    }
+
+    /**
+     * The records a transaction touched in a table.
+     */
+    private static class Writes {
+        // Key -> the values of the record when the transaction first read it. Null if there was none
+        private final Map<String, String[]> expected = new HashMap<>();
+        // Key -> the record the transaction leaves. Null if it leaves none
+        private final Map<String, Record> working = new HashMap<>();
+        // The records read and written, whose unique values are locked at commit
+        private final List<Record> records = new ArrayList<>();
+
+        /**
+         * @return The record as the transaction sees it.
+         */
+        Record read(Table t, String key) {
+            if (working.containsKey(key)) {
+                return working.get(key);
+            }
+
+            Record r = t.select_record(key);
+            if (r != null) {
+                r = r.copy();
+                records.add(r);
+            }
+            expected.put(key, r == null ? null : r.getValues());
+            working.put(key, r);
+            return r;
+        }
+
+        void write(String key, Record r) {
+            working.put(key, r);
+            if (r != null) {
+                records.add(r);
+            }
+        }
+    }
+
+    // Operations
+
+    private static abstract class Operation {
+        final Table table;
+
+        Operation(Table table) {
+            this.table = table;
+        }
+
+        /**
+         * @return False if the operation violates a constraint.
+         */
+        abstract boolean apply();
+
+        /**
+         * Reverts the operation, after it was applied.
+         * @return False if it could not be reverted.
+         */
+        abstract boolean undo();
+    }
+
+    private static class Insert extends Operation {
+        private final Record record;
+
+        Insert(Table table, Record record) {
+            super(table);
+            this.record = record;
+        }
+
+        @Override
+        boolean apply() {
+            return table.insert(record.copy());
+        }
+
+        @Override
+        boolean undo() {
+            return table.delete(record.getValue(table.getPKColIndex())) != null;
+        }
+    }
+
+    private static class Update extends Operation {
+        private final String key;
+        private final int colIndex;
+        private final String value;
+        private String oldValue;
+
+        Update(Table table, String key, int colIndex, String value) {
+            super(table);
+            this.key = key;
+            this.colIndex = colIndex;
+            this.value = value;
+        }
+
+        @Override
+        boolean apply() {
+            Record r = table.select_record(key);
+            if (r == null) {
+                return false;
+            }
+
+            oldValue = r.getValue(colIndex);
+            return table.update(key, colIndex, value);
+        }
+
+        @Override
+        boolean undo() {
+            String newKey = colIndex == table.getPKColIndex() ? value : key;
+            return table.update(newKey, colIndex, oldValue);
+        }
+    }
+
+    private static class Delete extends Operation {
+        private final String key;
+        private Record removed;
+
+        Delete(Table table, String key) {
+            super(table);
+            this.key = key;
+        }
+
+        @Override
+        boolean apply() {
+            removed = table.delete(key);
+            return removed != null;
+        }
+
+        @Override
+        boolean undo() {
+            return table.insert(removed.copy());
+        }
+    }
+
+    // Unit Testing
+
+    private static void test_commit() {
+        Database db = new Database("TransactionTest");
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Name");
+        Column c2 = new Column("Email", Constraint.UNIQUE);
+        Table customers = new Table("customers", c0, c1, c2);
+        Column o0 = new Column("Order", DataType.INT, Constraint.PRIMARY_KEY);
+        Column o1 = new Column("Customer", DataType.INT);
+        Table orders = new Table("orders", o0, o1);
+        db.addTable(customers, orders);
+        customers.insert(new Record("1", "Angela", "angela@mail.com"));
+
+        // Writes are buffered, and seen by the transaction's own reads
+        Transaction tx = db.begin();
+        assert(tx.insert(customers, new Record("2", "Tom", "tom@mail.com")));
+        assert(tx.insert(orders, new Record("10", "2")));
+        assert(tx.update(customers, "1", 1, "Angie"));
+        assert(!tx.insert(customers, new Record("2", "Paul", "paul@mail.com")));
+        assert(!tx.update(customers, "3", 1, "Paul"));
+        assert(!tx.update(orders, "10", 1, "not a number"));
+        assert(tx.select_record(customers, "2") != null && customers.select_record("2") == null);
+        assert(tx.select_record(customers, "1").getValue(1).equals("Angie"));
+        assert(customers.select_record("1").getValue(1).equals("Angela"));
+        assert(tx.commit());
+        assert(customers.rows() == 2 && orders.rows() == 1);
+        assert(customers.select_record("1").getValue(1).equals("Angie"));
+        try {
+            tx.insert(orders, new Record("11", "1"));
+            assert(false);
+        } catch (IllegalStateException e) {
+            // The transaction has ended
+        }
+
+        // Re-keying and deleting, then reading the result
+        try (Transaction tx2 = db.begin()) {
+            assert(tx2.update(customers, "2", 0, "3"));
+            assert(tx2.select_record(customers, "2") == null);
+            assert(tx2.delete(customers, "3").getValue(1).equals("Tom"));
+            assert(tx2.insert(customers, new Record("3", "Paul", "tom@mail.com")));
+            assert(tx2.commit());
+        }
+        assert(customers.select_record("2") == null);
+        assert(customers.select_record("3").getValue(1).equals("Paul"));
+        assert(customers.selectWhere(2, "tom@mail.com").size() == 1);
+
+        // Rolled back transactions have no effect
+        try (Transaction tx3 = db.begin()) {
+            tx3.delete(customers, "1");
+        }
+        Transaction tx4 = db.begin();
+        tx4.delete(customers, "1");
+        tx4.rollback();
+        assert(customers.select_record("1") != null);
+    }
+
+    private static void test_abort() {
+        Database db = new Database("TransactionTest");
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Name");
+        Column c2 = new Column("Email", Constraint.UNIQUE);
+        Table t1 = new Table("t1", c0, c1, c2);
+        Table t2 = new Table("t2", new ColumnarRecordStore(), c0, c1, c2);
+        db.addTable(t1, t2);
+        t1.insert(new Record("1", "Angela", "angela@mail.com"));
+        t2.insert(new Record("1", "Angela", "angela@mail.com"));
+
+        // A constraint violation at commit undoes the operations applied before it
+        Transaction tx = db.begin();
+        tx.update(t1, "1", 1, "Angie");
+        tx.delete(t2, "1");
+        tx.insert(t1, new Record("2", "Tom", "tom@mail.com"));
+        tx.insert(t2, new Record("2", "Tom", "tom@mail.com"));
+        tx.insert(t2, new Record("3", "Tom", "tom@mail.com"));
+        assert(!tx.commit());
+        assert(t1.rows() == 1 && t2.rows() == 1);
+        assert(t1.select_record("1").getValue(1).equals("Angela"));
+        assert(t2.select_record("1").getValue(1).equals("Angela"));
+        assert(t1.selectWhere(2, "tom@mail.com").isEmpty() && t2.selectWhere(2, "tom@mail.com").isEmpty());
+
+        // A write to a record the transaction read makes it fail, without applying anything
+        Transaction tx2 = db.begin();
+        tx2.update(t1, "1", 1, "Angie");
+        tx2.insert(t2, new Record("2", "Tom", "tom@mail.com"));
+        t1.update("1", 2, "angela@mail.co.uk");
+        assert(!tx2.commit());
+        assert(t1.select_record("1").getValue(1).equals("Angela") && t2.select_record("2") == null);
+
+        // So does an insert of a key the transaction found missing
+        Transaction tx3 = db.begin();
+        assert(tx3.select_record(t1, "2") == null);
+        tx3.insert(t1, new Record("2", "Tom", "tom@mail.com"));
+        t1.insert(new Record("2", "Paul", "paul@mail.com"));
+        assert(!tx3.commit());
+        assert(t1.select_record("2").getValue(1).equals("Paul"));
+
+        // A commit that fails while locking its records ends its write of the table
+        Table t4 = new Table("t4", new ConcurrentRecordStore(), c0, c1);
+        db.addTable(t4);
+        Transaction tx4 = db.begin();
+        tx4.insert(t4, new Record("1", "Angela"));
+        t4.appendColumns(c2);
+        try {
+            tx4.commit();
+            assert(false);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // The record was made under the old schema
+        }
+        try {
+            CompletableFuture.runAsync(() -> t4.dropColumn(2)).get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new Error(e);
+        }
+        assert(t4.columns() == 2);
+
+        // Tables outside the database cannot take part
+        try {
+            db.begin().insert(new Table("t3", c0), new Record("1"));
+            assert(false);
+        } catch (IllegalArgumentException e) {
+            // The table is not in the database
+        }
+    }
+
+    private static void test_concurrent_transfers() {
+        int threads = 4;
+        int accounts = 20;
+        int transfers = 300;
+        Database db = new Database("TransactionTest");
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Balance", DataType.LONG);
+        Table t1 = new Table("accounts", new ConcurrentRecordStore(), c0, c1);
+        db.addTable(t1);
+        for (int i = 0; i < accounts; i++) {
+            t1.insert(new Record(Integer.toString(i), "100"));
+        }
+
+        // Transfers keep the total, and every snapshot sees the same total
+        AtomicInteger committed = new AtomicInteger();
+        Table.runConcurrently(threads + 1, thread -> {
+            if (thread == threads) {
+                for (int i = 0; i < 50; i++) {
+                    try (Table.Snapshot s = t1.snapshot()) {
+                        assert(s.getRows().mapToLong(pair -> pair.getValue().getLong(1)).sum() == accounts * 100);
+                    }
+                    Thread.yield();
+                }
+                return;
+            }
+
+            Random random = new Random(thread);
+            for (int i = 0; i < transfers; i++) {
+                String from = Integer.toString(random.nextInt(accounts));
+                String to = Integer.toString(random.nextInt(accounts));
+                if (from.equals(to)) {
+                    continue;
+                }
+
+                // Retries until no other transfer gets in the way
+                boolean done = false;
+                while (!done) {
+                    try (Transaction tx = db.begin()) {
+                        long fromBalance = tx.select_record(t1, from).getLong(1);
+                        long toBalance = tx.select_record(t1, to).getLong(1);
+                        tx.update(t1, from, 1, Long.toString(fromBalance - 1));
+                        tx.update(t1, to, 1, Long.toString(toBalance + 1));
+                        done = tx.commit();
+                    }
+                }
+                committed.incrementAndGet();
+            }
+        });
+
+        assert(committed.get() > 0);
+        assert(t1.scanLongs(1).sum() == accounts * 100);
+    }
+
+    private static void test_logged_commits() {
+        int threads = 4;
+        int increments = 200;
+        File dir = new File("Databases", "TransactionLogTest");
+        dir.mkdirs();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        Database db = new Database("TransactionLogTest");
+        Table t1 = new Table("counters", new ConcurrentRecordStore(), new Column("Id", DataType.INT, Constraint.PRIMARY_KEY),
+                new Column("Count", DataType.LONG));
+        t1.insert(new Record("1", "0"));
+        db.openLog(WriteAheadLog.SyncPolicy.NEVER);
+        db.addTable(t1);
+
+        // Every commit writes the same record, so the log must have them in the order they
+        // were applied, for the replay to end with the last value
+        Table.runConcurrently(threads, thread -> {
+            for (int i = 0; i < increments; i++) {
+                boolean done = false;
+                while (!done) {
+                    try (Transaction tx = db.begin()) {
+                        long count = tx.select_record(t1, "1").getLong(1);
+                        tx.update(t1, "1", 1, Long.toString(count + 1));
+                        done = tx.commit();
+                    }
+                }
+            }
+        });
+        assert(t1.select_record("1").getLong(1) == threads * increments);
+
+        Database recovered = new Database("TransactionLogTest");
+        recovered.loadDb();
+        assert(recovered.getTables().get(0).select_record("1").getLong(1) == threads * increments);
+        db.close();
+    }
+
+    public static void main(String[] args) {
+        test_commit();
+        test_abort();
+        test_concurrent_transfers();
+        test_logged_commits();
+    }
+}
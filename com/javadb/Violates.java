@@ -6,12 +6,14 @@
 
 package com.javadb;
 
-import java.util.Map;
-import java.util.stream.Stream;
-
 /**
  * An interface for handling column constraints.
  */
 public interface Violates {
-    boolean isViolated(Stream<Map.Entry<String, Record>> s, String newValue, int colIndex);
+    /**
+     * @param index The column's index, or null when the column is not indexed.
+     * @param newValue The value to be written in the column.
+     * @return True if writing the value violates the constraint.
+     */
+    boolean isViolated(Index index, String newValue);
 }
@@ -0,0 +1,778 @@
+/*
+ * Written by Evan Lalopoulos <evan.lalopoulos.2017@my.bristol.ac.uk>
+ * Copyright (C) 2018 - All rights reserved.
+ * Unauthorized copying of this file is strictly prohibited.
+ */
+
+package com.javadb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A binary log of the writes to a database's tables, appended before each write returns.
+ * After a crash, the writes made since the last checkpoint are replayed from the log.
+ * The log is a header, holding the log position of its first frame, followed by frames.
+ * A frame holds its length, a CRC32 checksum and one or more operations, and is replayed
+ * whole or not at all: a frame torn by a crash fails its checksum and ends the log.
+ * Writes are collected in memory and written to the file by the first writer that needs
+ * them on disk, together with every write appended before it. With the ALWAYS policy
+ * the writers waiting meanwhile find their writes synced by that one fsync: concurrent
+ * writes share their syncs (group commit).
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * When the log is synced to disk.
+     */
+    public enum SyncPolicy {
+        // Every write returns once it is on disk. Concurrent writes share one sync
+        ALWAYS,
+        // Writes reach the operating system before they return, and are synced periodically
+        PERIODIC,
+        // Writes reach the operating system before they return, and are synced at checkpoints
+        NEVER
+    }
+
+    private static final int MAGIC = 0x4A44424C;
+    // The magic number and the position of the first frame
+    private static final int HEADER = 12;
+    private static final long SYNC_PERIOD_MILLIS = 50;
+
+    // Operations
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 3;
+    private static final byte TRUNCATE = 4;
+    private static final byte ADD_COLUMN = 5;
+    private static final byte DROP_COLUMN = 6;
+    // Updates by column name
+    private static final byte UPDATE_COLUMN = 7;
+
+    private final File file;
+    private final SyncPolicy policy;
+    private FileChannel channel;
+    // The log position of the first frame in the file
+    private long basePosition;
+    // Frames appended but not yet written to the file. Guarded by the log
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private long appended;
+    private boolean closed;
+    // Held by the thread writing and syncing the pending frames
+    private final ReentrantLock flushLock;
+    private volatile long written;
+    private volatile long synced;
+    private volatile long syncs;
+    // The operations of the running transaction of each thread, logged as one frame
+    private final ThreadLocal<ByteArrayOutputStream> batches;
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * Opens a log for appending, or creates it. A torn frame at the end of the log is cut off.
+     */
+    WriteAheadLog(File file, SyncPolicy policy) {
+        this(file, policy, SYNC_PERIOD_MILLIS);
+    }
+
+    /**
+     * @param syncPeriodMillis How often a PERIODIC log is synced.
+     */
+    WriteAheadLog(File file, SyncPolicy policy, long syncPeriodMillis) {
+        this.file = file;
+        this.policy = policy;
+        pending = ByteBuffer.allocate(64 * 1024);
+        spare = ByteBuffer.allocate(64 * 1024);
+        flushLock = new ReentrantLock();
+        batches = new ThreadLocal<>();
+
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() < HEADER) {
+                writeHeader(channel, 0);
+                channel.force(true);
+            }
+            basePosition = readHeader(channel);
+            long end = forEachFrame(channel, payload -> {});
+            channel.truncate(end);
+            channel.position(end);
+            appended = written = synced = basePosition + end - HEADER;
+        } catch (IOException e) {
+            throw new Error("Unable to open the log.");
+        }
+
+        if (policy == SyncPolicy.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "log-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(() -> flush(position(), true),
+                    syncPeriodMillis, syncPeriodMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    // Logged Operations
+
+    void logInsert(Table t, Record r) {
+        log(out -> {
+            out.writeByte(INSERT);
+            writeString(out, t.getName());
+            writeStrings(out, r.getValues());
+        });
+    }
+
+    /**
+     * Updates are logged by column name, since columns may be added or dropped between
+     * the update and the next checkpoint, which moves the column before it's replayed.
+     */
+    void logUpdate(Table t, String key, Column c, String value) {
+        log(out -> {
+            out.writeByte(UPDATE_COLUMN);
+            writeString(out, t.getName());
+            writeString(out, key);
+            writeString(out, c.getName());
+            writeString(out, value);
+        });
+    }
+
+    void logDelete(Table t, String key) {
+        log(out -> {
+            out.writeByte(DELETE);
+            writeString(out, t.getName());
+            writeString(out, key);
+        });
+    }
+
+    void logTruncate(Table t) {
+        log(out -> {
+            out.writeByte(TRUNCATE);
+            writeString(out, t.getName());
+        });
+    }
+
+    void logAddColumn(Table t, int colIndex, Column c) {
+        log(out -> {
+            out.writeByte(ADD_COLUMN);
+            writeString(out, t.getName());
+            out.writeInt(colIndex);
+            writeString(out, c.getName());
+            writeString(out, c.getType().name());
+            String[] constraints = new String[c.getConstraints().size()];
+            int i = 0;
+            for (Constraint constraint : c.getConstraints()) {
+                constraints[i++] = constraint.name();
+            }
+            writeStrings(out, constraints);
+        });
+    }
+
+    /**
+     * Columns are dropped by name, so that replaying the drop twice has no effect.
+     */
+    void logDropColumn(Table t, String name) {
+        log(out -> {
+            out.writeByte(DROP_COLUMN);
+            writeString(out, t.getName());
+            writeString(out, name);
+        });
+    }
+
+    /**
+     * Collects the operations the current thread logs into one frame, until endBatch().
+     */
+    void beginBatch() {
+        batches.set(new ByteArrayOutputStream());
+    }
+
+    /**
+     * Appends the operations logged since beginBatch() as one frame, and waits for them
+     * as a single write would.
+     * @param keep False to discard the operations, e.g. when they were undone.
+     */
+    void endBatch(boolean keep) {
+        ByteArrayOutputStream batch = batches.get();
+        batches.remove();
+        if (keep && batch != null && batch.size() > 0) {
+            await(append(batch.toByteArray()));
+        }
+    }
+
+    private interface Encoder {
+        void encode(DataOutputStream out) throws IOException;
+    }
+
+    private void log(Encoder op) {
+        try {
+            ByteArrayOutputStream batch = batches.get();
+            if (batch != null) {
+                op.encode(new DataOutputStream(batch));
+                return;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            op.encode(new DataOutputStream(bytes));
+            await(append(bytes.toByteArray()));
+        } catch (IOException e) {
+            throw new Error("Unable to write the log.");
+        }
+    }
+
+    // Appending and Syncing
+
+    /**
+     * @return The log position after the frames appended so far.
+     */
+    synchronized long position() {
+        return appended;
+    }
+
+    /**
+     * @return The number of times the log was synced to disk.
+     */
+    long syncs() {
+        return syncs;
+    }
+
+    /**
+     * Adds a frame to the pending frames.
+     * @return The log position after the frame.
+     */
+    private synchronized long append(byte[] payload) {
+        if (closed) {
+            throw new IllegalStateException("Log is closed.");
+        }
+
+        int frameSize = 8 + payload.length;
+        if (pending.remaining() < frameSize) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + frameSize));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        pending.putInt(payload.length);
+        pending.putInt((int) crc.getValue());
+        pending.put(payload);
+        appended += frameSize;
+        return appended;
+    }
+
+    /**
+     * Waits until the frames up to a log position are as durable as the policy requires.
+     */
+    private void await(long position) {
+        flush(position, policy == SyncPolicy.ALWAYS);
+    }
+
+    /**
+     * Writes the pending frames to the file, and syncs it, unless another thread already
+     * did so past the position.
+     */
+    private void flush(long position, boolean sync) {
+        flushLock.lock();
+        try {
+            if (written >= position && (!sync || synced >= position)) {
+                return;
+            }
+
+            write();
+            if (sync) {
+                long end = written;
+                channel.force(false);
+                syncs++;
+                synced = end;
+            }
+        } catch (IOException e) {
+            throw new Error("Unable to write the log.");
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending frames to the file. Called holding the flush lock.
+     * Writers keep appending to the other buffer meanwhile.
+     */
+    private void write() throws IOException {
+        ByteBuffer frames;
+        long end;
+        synchronized (this) {
+            frames = pending;
+            pending = spare;
+            end = appended;
+        }
+
+        frames.flip();
+        while (frames.hasRemaining()) {
+            channel.write(frames);
+        }
+        frames.clear();
+
+        synchronized (this) {
+            spare = frames;
+        }
+        written = end;
+    }
+
+    /**
+     * Drops the frames before a log position, once the writes they hold are checkpointed.
+     * The frames after it are copied to a new log, which replaces the old one atomically.
+     */
+    void truncate(long position) {
+        flushLock.lock();
+        try {
+            // Appends wait while the file is replaced
+            synchronized (this) {
+                if (position < basePosition || position > appended) {
+                    throw new IllegalArgumentException("Position is outside the log.");
+                }
+
+                write();
+                File copy = new File(file.getPath() + ".tmp");
+                try (FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    writeHeader(out, position);
+                    // The header is written at its position, so the frames are copied after it
+                    out.position(HEADER);
+                    long from = HEADER + position - basePosition;
+                    long size = channel.size();
+                    while (from < size) {
+                        from += channel.transferTo(from, size - from, out);
+                    }
+                    out.force(true);
+                }
+
+                channel.close();
+                Files.move(copy.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                basePosition = position;
+                synced = appended;
+            }
+        } catch (IOException e) {
+            throw new Error("Unable to truncate the log.");
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Syncs the log and closes it.
+     */
+    @Override
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+
+        flushLock.lock();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+
+            write();
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            throw new Error("Unable to close the log.");
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // Replay
+
+    /**
+     * Replays a log over tables loaded from the last checkpoint.
+     * Writes logged while the checkpoint was taken may be in the tables already. Replaying
+     * them again fails their checks or leaves the same values: updates name their column,
+     * so an update replayed after the columns moved still changes the same column, and
+     * columns are added and dropped by name, so they are not added or dropped twice.
+     * @param tables The tables, by name. Operations on other tables are ignored.
+     * @return The number of frames replayed.
+     */
+    static int replay(File file, Map<String, Table> tables) {
+        int[] frames = new int[1];
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (in.size() < HEADER) {
+                return 0;
+            }
+
+            readHeader(in);
+            forEachFrame(in, payload -> {
+                apply(payload, tables);
+                frames[0]++;
+            });
+        } catch (IOException e) {
+            throw new Error("Unable to replay the log.");
+        }
+
+        return frames[0];
+    }
+
+    private static void apply(byte[] payload, Map<String, Table> tables) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        while (in.available() > 0) {
+            byte op = in.readByte();
+            Table t = tables.get(readString(in));
+            switch (op) {
+                case INSERT: {
+                    String[] values = readStrings(in);
+                    if (t != null) {
+                        t.insert(new Record(values));
+                    }
+                    break;
+                }
+                case UPDATE_COLUMN: {
+                    String key = readString(in);
+                    String name = readString(in);
+                    String value = readString(in);
+                    int colIndex = t == null ? -1 : columnIndex(t, name);
+                    if (colIndex != -1) {
+                        t.update(key, colIndex, value);
+                    }
+                    break;
+                }
+                case DELETE: {
+                    String key = readString(in);
+                    if (t != null) {
+                        t.delete(key);
+                    }
+                    break;
+                }
+                case TRUNCATE: {
+                    if (t != null) {
+                        t.truncate();
+                    }
+                    break;
+                }
+                case ADD_COLUMN: {
+                    int colIndex = in.readInt();
+                    String name = readString(in);
+                    DataType type = DataType.valueOf(readString(in));
+                    String[] names = readStrings(in);
+                    if (t != null && columnIndex(t, name) == -1) {
+                        Constraint[] constraints = new Constraint[names.length];
+                        for (int i = 0; i < names.length; i++) {
+                            constraints[i] = Constraint.valueOf(names[i]);
+                        }
+                        t.addColumn(Math.min(colIndex, t.columns()), new Column(name, type, constraints));
+                    }
+                    break;
+                }
+                case DROP_COLUMN: {
+                    String name = readString(in);
+                    int colIndex = t == null ? -1 : columnIndex(t, name);
+                    if (colIndex != -1) {
+                        t.dropColumn(colIndex);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown log operation.");
+            }
+        }
+    }
+
+    private static int columnIndex(Table t, String name) {
+        Column[] columns = t.getColumns();
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].getName().equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // Frames
+
+    private interface FrameConsumer {
+        void accept(byte[] payload) throws IOException;
+    }
+
+    /**
+     * Reads the frames of a log, up to the first incomplete or corrupt frame.
+     * @return The file position after the last valid frame.
+     */
+    private static long forEachFrame(FileChannel in, FrameConsumer consumer) throws IOException {
+        long position = HEADER;
+        long size = in.size();
+        ByteBuffer head = ByteBuffer.allocate(8);
+        while (position + 8 <= size) {
+            head.clear();
+            readFully(in, head, position);
+            int length = head.getInt(0);
+            int checksum = head.getInt(4);
+            if (length < 0 || position + 8 + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(in, payload, position + 8);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            consumer.accept(payload.array());
+            position += 8 + length;
+        }
+
+        return position;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeHeader(FileChannel out, long basePosition) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putLong(basePosition).flip();
+        out.write(header, 0);
+    }
+
+    /**
+     * @return The log position of the first frame.
+     */
+    private static long readHeader(FileChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(in, header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a log file.");
+        }
+
+        return header.getLong(4);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] values = new String[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(in);
+        }
+
+        return values;
+    }
+
+    // Unit Testing
+
+    /**
+     * @return A database with an empty directory.
+     */
+    private static Database emptyDatabase(String name) {
+        File dir = new File("Databases", name);
+        dir.mkdirs();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+
+        return new Database(name);
+    }
+
+    /**
+     * @return The rows of a table, sorted by key.
+     */
+    private static List<String> rowsOf(Table t) {
+        List<String> rows = new ArrayList<>();
+        t.getRows().forEach(pair -> rows.add(Arrays.toString(pair.getValue().getValues())));
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static void test_replay() {
+        Database db = emptyDatabase("LogTest");
+        Column c0 = new Column("Id", DataType.INT, Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Name");
+        Column c2 = new Column("Email", Constraint.UNIQUE);
+        Table t1 = new Table("t1", c0, c1, c2);
+        t1.insert(new Record("1", "Angela", "angela@mail.com"));
+
+        // Adding a table to a logged database saves it
+        db.openLog(SyncPolicy.ALWAYS);
+        db.addTable(t1);
+        File logFile = new File("Databases/LogTest/wal.log");
+        assert(logFile.length() == HEADER);
+
+        t1.insert(new Record("2", "Tom", "tom@mail.com"));
+        t1.insert(new Record("3", "Paul", "paul@mail.com"));
+        t1.update("1", 1, "Angie");
+        t1.update("3", 0, "4");
+        t1.delete("2");
+        t1.appendColumns(new Column("Age", DataType.INT));
+        t1.update("4", 3, "30");
+        try (Transaction tx = db.begin()) {
+            tx.insert(t1, new Record("5", "Hannah", "hannah@mail.com", "25"));
+            tx.update(t1, "1", 3, "40");
+            assert(tx.commit());
+        }
+        // An undone transaction is not logged
+        Transaction tx2 = db.begin();
+        tx2.insert(t1, new Record("6", "George", "george@mail.com", ""));
+        tx2.insert(t1, new Record("7", "George", "george@mail.com", ""));
+        assert(!tx2.commit());
+        assert(db.getLog().position() > 0);
+
+        // A crash: the tables are not saved. The writes are replayed from the log
+        Database recovered = new Database("LogTest");
+        recovered.loadDb();
+        Table r1 = recovered.getTables().get(0);
+        assert(rowsOf(r1).equals(rowsOf(t1)));
+        assert(r1.getColumns()[3].getName().equals("Age") && r1.getColumns()[3].getType() == DataType.INT);
+
+        // A checkpoint empties the log. Later writes are logged after it
+        db.checkpoint();
+        assert(logFile.length() == HEADER);
+        t1.delete("5");
+        t1.dropColumn(1);
+        db.close();
+        Database recovered2 = new Database("LogTest");
+        recovered2.loadDb();
+        assert(rowsOf(recovered2.getTables().get(0)).equals(rowsOf(t1)));
+
+        // A torn frame at the end of the log is ignored, and cut off when the log is opened
+        long length = logFile.length();
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        Database recovered3 = new Database("LogTest");
+        recovered3.loadDb();
+        assert(rowsOf(recovered3.getTables().get(0)).equals(rowsOf(t1)));
+        recovered3.openLog(SyncPolicy.NEVER);
+        assert(logFile.length() == length);
+        recovered3.getTables().get(0).insert(new Record("8", "g@mail.com", "50"));
+        recovered3.close();
+        Database recovered4 = new Database("LogTest");
+        recovered4.loadDb();
+        assert(recovered4.getTables().get(0).select_record("8") != null);
+    }
+
+    private static void test_checkpoint_overlap() {
+        Database db = emptyDatabase("LogTest");
+        db.enablePagedFiles();
+        Table t1 = new Table("t1", new Column("Id", DataType.INT, Constraint.PRIMARY_KEY), new Column("Name"));
+        t1.insert(new Record("1", "Angela"));
+        t1.insert(new Record("2", "Tom"));
+        db.openLog(SyncPolicy.ALWAYS);
+        db.addTable(t1);
+
+        // Writes logged after the checkpoint position are in the save as well, and the
+        // columns move before the save
+        WriteAheadLog log = db.getLog();
+        long position = log.position();
+        t1.update("1", 1, "Angie");
+        t1.addColumn(0, new Column("Tag"));
+        db.saveDB();
+        log.truncate(position);
+        File logFile = new File("Databases/LogTest/wal.log");
+        assert(logFile.length() > HEADER);
+        t1.update("2", 2, "Tommy");
+
+        // The frames kept by the truncation replay over the save, into the same columns
+        Database recovered = new Database("LogTest");
+        recovered.loadDb();
+        assert(rowsOf(recovered.getTables().get(0)).equals(rowsOf(t1)));
+        db.close();
+    }
+
+    private static void test_group_commit() {
+        int threads = 4;
+        int rows = 200;
+        Database db = emptyDatabase("LogTest");
+        Column c0 = new Column("Id", Constraint.PRIMARY_KEY);
+        Column c1 = new Column("Value");
+        Table t1 = new Table("t1", new ConcurrentRecordStore(), c0, c1);
+        db.addTable(t1);
+        db.openLog(SyncPolicy.ALWAYS);
+        db.checkpoint();
+
+        // Every insert is on disk when it returns, and concurrent inserts share syncs
+        long syncs = db.getLog().syncs();
+        Table.runConcurrently(threads, thread -> {
+            for (int i = 0; i < rows; i++) {
+                assert(t1.insert(new Record(thread + "-" + i, Integer.toString(i))));
+            }
+        });
+        assert(db.getLog().syncs() - syncs < threads * rows);
+
+        Database recovered = new Database("LogTest");
+        recovered.loadDb();
+        assert(recovered.getTables().get(0).rows() == threads * rows);
+        db.close();
+
+        // A periodically synced log replays the same
+        Database db2 = new Database("LogTest");
+        db2.loadDb();
+        db2.openLog(SyncPolicy.PERIODIC);
+        db2.scheduleCheckpoints(10, TimeUnit.MILLISECONDS);
+        Table t2 = db2.getTables().get(0);
+        for (int i = 0; i < rows; i++) {
+            t2.update("0-" + i, 1, "changed");
+        }
+        db2.close();
+        Database recovered2 = new Database("LogTest");
+        recovered2.loadDb();
+        assert(rowsOf(recovered2.getTables().get(0)).equals(rowsOf(t2)));
+    }
+
+    public static void main(String[] args) {
+        test_replay();
+        test_checkpoint_overlap();
+        test_group_commit();
+    }
+}